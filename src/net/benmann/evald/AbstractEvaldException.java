@@ -122,4 +122,73 @@ public abstract class AbstractEvaldException extends RuntimeException {
             return new UninitialisedEvaldException(getMessage() + " in " + context);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Thrown when an expression contains an operation which has no {@link CompactProgram} equivalent,
+     * such as an operator added with a custom parser.
+     */
+    static public class UncompilableEvaldException extends AbstractEvaldException {
+        UncompilableEvaldException(String message) {
+            super(message);
+        }
+
+        UncompilableEvaldException withContext(String context) {
+            return new UncompilableEvaldException(getMessage() + " in " + context);
+        }
+    }
+
+    /**
+     * Thrown when a saved {@link CompactProgram} can't be loaded.
+     */
+    static public class InvalidProgramEvaldException extends AbstractEvaldException {
+        InvalidProgramEvaldException(String message) {
+            super(message);
+        }
+
+        InvalidProgramEvaldException withContext(String context) {
+            return new InvalidProgramEvaldException(getMessage() + " in " + context);
+        }
+    }
+
+    /**
+     * Thrown when an expression exceeds one of the budgets set on {@link Evald}, such as
+     * {@link Evald#setMaxDepth(int)}. Parsing stops as soon as a budget is exceeded.
+     */
+    static public class BudgetExceededEvaldException extends AbstractEvaldException {
+        /** The budgets which may be exceeded */
+        public enum Budget {
+            SOURCE_LENGTH("source length"),
+            STATEMENTS("number of statements"),
+            DEPTH("depth"),
+            NODES("number of nodes"),
+            COST("estimated cost");
+
+            private final String description;
+
+            private Budget(String description) {
+                this.description = description;
+            }
+        }
+
+        private final Budget budget;
+
+        BudgetExceededEvaldException(Budget budget, Number limit) {
+            super("The expression exceeds the maximum " + budget.description + " of " + limit);
+            this.budget = budget;
+        }
+
+        private BudgetExceededEvaldException(Budget budget, String message) {
+            super(message);
+            this.budget = budget;
+        }
+
+        /** @return the budget which was exceeded */
+        public Budget getBudget() {
+            return budget;
+        }
+
+        BudgetExceededEvaldException withContext(String context) {
+            return new BudgetExceededEvaldException(budget, getMessage() + " in " + context);
+        }
+    }
+}
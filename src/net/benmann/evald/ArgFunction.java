@@ -11,10 +11,14 @@ import java.util.List;
  * also provide a simplified interface for implementing custom functions, as there is no need to call {@link Node#get()}
  */
 public abstract class ArgFunction {
+    /** The cost assumed for a function unless {@link #setCost(double)} is called, 10 times that of an addition */
+    public static final double DEFAULT_COST = 10;
+
     final int minArgs;
     final int maxArgs;
     final String token;
     final boolean isPure;
+    private double cost = DEFAULT_COST;
 
     protected ArgFunction(String token, int minArgs, int maxArgs, boolean isPure) {
         this.minArgs = minArgs;
@@ -25,6 +29,39 @@ public abstract class ArgFunction {
 
     abstract protected double get(Node[] inputs, double[] values);
 
+    /**
+     * Set the relative cost of calling this function, used by {@link Evald#estimateCost()}, where an addition costs 1.
+     * The cost of evaluating the function's arguments is estimated separately. Only expressions parsed after the cost
+     * is set are affected.
+     * 
+     * @param cost
+     *            the cost of a call, which must not be negative. The default is {@link #DEFAULT_COST}.
+     */
+    public void setCost(double cost) {
+        if (cost < 0)
+            throw new IllegalArgumentException("The cost must not be negative");
+        this.cost = cost;
+    }
+
+    /**
+     * @return the value set by {@link #setCost(double)}, or {@link #DEFAULT_COST}
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    /**
+     * Evaluate this function from already evaluated arguments, used by {@link CompactProgram}.
+     * 
+     * @param args
+     *            an array holding the argument values
+     * @param offset
+     *            the position of the first argument in args
+     * @param count
+     *            the number of arguments
+     */
+    abstract double call(double[] args, int offset, int count);
+
     ValueNode createNode(final List<Node> args) {
         if (isPure)
             return new PureFunctionValueNode(args);
@@ -41,7 +78,7 @@ public abstract class ArgFunction {
         }
     }
 
-    private class PureFunctionValueNode extends ValueNode {
+    class PureFunctionValueNode extends ValueNode {
         protected Node[] inputs;
         protected double[] values;
 
@@ -75,6 +112,26 @@ public abstract class ArgFunction {
         @Override protected double get() {
             return ArgFunction.this.get(inputs, values);
         }
+
+        @Override int arity() {
+            return inputs.length;
+        }
+
+        @Override Node arg(int index) {
+            return inputs[index];
+        }
+
+        @Override void setArg(int index, Node node) {
+            inputs[index] = node;
+        }
+
+        @Override Opcode opcode() {
+            return Opcode.CALL;
+        }
+
+        ArgFunction function() {
+            return ArgFunction.this;
+        }
     }
 
     /**
@@ -118,6 +175,12 @@ public abstract class ArgFunction {
             return get(values);
         }
 
+        @Override double call(double[] args, int offset, int count) {
+            double[] values = new double[count];
+            System.arraycopy(args, offset, values, 0, count);
+            return get(values);
+        }
+
         /**
          * Return the result of a custom function given the supplied arguments.
          * 
@@ -174,6 +237,12 @@ public abstract class ArgFunction {
             return get(values);
         }
 
+        @Override double call(double[] args, int offset, int count) {
+            double[] values = new double[count];
+            System.arraycopy(args, offset, values, 0, count);
+            return get(values);
+        }
+
         /**
          * Return the result of a custom function given the supplied arguments.
          * 
@@ -205,6 +274,10 @@ public abstract class ArgFunction {
             return get(inputs[0].get());
         }
 
+        @Override double call(double[] args, int offset, int count) {
+            return get(args[offset]);
+        }
+
         /**
          * Return the result of a custom function given the supplied argument.
          * 
@@ -236,6 +309,10 @@ public abstract class ArgFunction {
             return get(inputs[0].get(), inputs[1].get());
         }
 
+        @Override double call(double[] args, int offset, int count) {
+            return get(args[offset], args[offset + 1]);
+        }
+
         /**
          * Return the result of a custom function given the supplied arguments.
          * 
@@ -269,6 +346,10 @@ public abstract class ArgFunction {
             return get(inputs[0].get(), inputs[1].get(), inputs[2].get());
         }
 
+        @Override double call(double[] args, int offset, int count) {
+            return get(args[offset], args[offset + 1], args[offset + 2]);
+        }
+
         /**
          * Return the result of a custom function given the supplied arguments.
          * 
@@ -31,4 +31,31 @@ abstract class BinaryOperatorNode extends OperatorNode {
         return sb.toString();
     }
 
+    @Override int arity() {
+        return 2;
+    }
+
+    @Override Node arg(int index) {
+        switch (index) {
+        case 0:
+            return a;
+        case 1:
+            return b;
+        default:
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    @Override void setArg(int index, Node node) {
+        switch (index) {
+        case 0:
+            a = node;
+            break;
+        case 1:
+            b = node;
+            break;
+        default:
+            throw new IndexOutOfBoundsException();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,869 @@
+package net.benmann.evald;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.benmann.evald.AbstractEvaldException.InvalidProgramEvaldException;
+import net.benmann.evald.AbstractEvaldException.UncompilableEvaldException;
+import net.benmann.evald.AbstractEvaldException.UndeclaredVariableEvaldException;
+import net.benmann.evald.ArgFunction.PureFunctionValueNode;
+
+/**
+ * A compact, immutable form of a parsed and optimised expression, created with {@link Evald#compact()}.
+ *
+ * The expression tree is flattened into parallel arrays of opcodes and operands, with constant values
+ * held in a separate array. None of the parse-only state of the tree (parent links, tokens, per statement
+ * variable sets) is retained, so a compact program is considerably smaller than the {@link Evald} instance
+ * it was created from, and that instance may be discarded.
+ *
+ * Variable values are held in a caller supplied frame created with {@link #newFrame()}. Variable indices
+ * within the frame are the same as those returned by {@link Evald#addVariable(String)} at the time the program
+ * was compacted. As a program holds no mutable state, it may be evaluated concurrently provided each thread
+ * uses its own frame.
+ *
+ * A program can be saved in a compact binary form with {@link #save(OutputStream)}, and loaded much faster
+ * than the original expression can be parsed with {@link #load(ByteBuffer, ArgFunction...)}.
+ */
+public final class CompactProgram {
+    static final int MAGIC = 0x45564350; //EVCP
+    static final short VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final int[] opcodes;
+    final int[] operands;
+    final double[] constants;
+    final ArgFunction[] functions;
+    final int[] functionArgCounts;
+    final String[] variableTokens;
+    final int maxStackDepth;
+
+    CompactProgram(int[] opcodes, int[] operands, double[] constants, ArgFunction[] functions, int[] functionArgCounts, String[] variableTokens, int maxStackDepth) {
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.constants = constants;
+        this.functions = functions;
+        this.functionArgCounts = functionArgCounts;
+        this.variableTokens = variableTokens;
+        this.maxStackDepth = maxStackDepth;
+    }
+
+    /**
+     * Create a frame to hold variable values for this program. All variables are initially 0.
+     * The frame also holds working space for evaluation, so it is longer than the number of variables.
+     *
+     * @return a new frame for use with {@link #evaluate(double[])}
+     */
+    public double[] newFrame() {
+        return new double[variableTokens.length + maxStackDepth];
+    }
+
+    /**
+     * Evaluate the program, storing each statement's result in the frame.
+     *
+     * @param frame
+     *            a frame created with {@link #newFrame()}, holding the current variable values.
+     * @return the result of the last statement.
+     */
+    public double evaluate(double[] frame) {
+        if (frame.length < variableTokens.length + maxStackDepth)
+            throw new IllegalArgumentException("The frame is too small for this program; use newFrame()");
+        return evaluate(frame, frame, variableTokens.length);
+    }
+
+    /**
+     * Find the frame index for a variable. This is a linear search; cache the result where possible.
+     *
+     * @throws UndeclaredVariableEvaldException
+     *             if the variable is not known to this program.
+     */
+    public int getVariableIndex(String token) {
+        for (int i = 0; i < variableTokens.length; i++) {
+            if (variableTokens[i].equals(token))
+                return i;
+        }
+        throw new UndeclaredVariableEvaldException(token);
+    }
+
+    /**
+     * List all variables held in this program's frame, in index order.
+     */
+    public String[] listAllVariables() {
+        return variableTokens.clone();
+    }
+
+    /**
+     * @return the number of instructions in this program.
+     */
+    public int size() {
+        return opcodes.length;
+    }
+
+    private static byte[][] encode(String[] strings) {
+        byte[][] result = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            result[i] = strings[i].getBytes(UTF8);
+        }
+        return result;
+    }
+
+    private static int sizeOf(byte[][] strings) {
+        int size = 4;
+        for (byte[] string : strings) {
+            size += 4 + string.length;
+        }
+        return size;
+    }
+
+    private static void put(ByteBuffer buffer, byte[][] strings) {
+        buffer.putInt(strings.length);
+        for (byte[] string : strings) {
+            buffer.putInt(string.length).put(string);
+        }
+    }
+
+    /** Read an element count, checking the buffer holds at least that many elements of the specified size */
+    private static int getCount(ByteBuffer buffer, int elementSize) {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * elementSize > buffer.remaining())
+            throw new BufferUnderflowException();
+        return count;
+    }
+
+    private static String[] getStrings(ByteBuffer buffer) {
+        String[] result = new String[getCount(buffer, 4)];
+        for (int i = 0; i < result.length; i++) {
+            byte[] bytes = new byte[getCount(buffer, 1)];
+            buffer.get(bytes);
+            result[i] = new String(bytes, UTF8);
+        }
+        return result;
+    }
+
+    /**
+     * Write this program in a compact binary form, which can be read with {@link #load(ByteBuffer, ArgFunction...)}.
+     * Several programs may be written one after another to the same stream.
+     *
+     * User functions are saved by token only, and must be supplied again when loading.
+     *
+     * @param out
+     *            the stream to write to. The stream is not closed.
+     */
+    public void save(OutputStream out) throws IOException {
+        //Opcodes are saved by name, so that saved programs remain valid if opcodes are added. Only used opcodes are named.
+        int[] localOpcode = new int[Opcode.VALUES.length];
+        List<String> opcodeNames = new ArrayList<String>();
+        byte[] code = new byte[opcodes.length];
+        for (int i = 0; i < opcodes.length; i++) {
+            if (localOpcode[opcodes[i]] == 0) {
+                opcodeNames.add(Opcode.VALUES[opcodes[i]].name());
+                localOpcode[opcodes[i]] = opcodeNames.size();
+            }
+            code[i] = (byte) (localOpcode[opcodes[i]] - 1);
+        }
+        String[] functionTokens = new String[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            functionTokens[i] = functions[i].token;
+        }
+        byte[][] opcodeBytes = encode(opcodeNames.toArray(new String[] {}));
+        byte[][] variableBytes = encode(variableTokens);
+        byte[][] functionBytes = encode(functionTokens);
+
+        int size = 4 + 2 + 4 + sizeOf(opcodeBytes) + sizeOf(variableBytes) + 4 + 8 * constants.length + sizeOf(functionBytes) + 4 * functions.length + 4
+                + 5 * opcodes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putShort(VERSION).putInt(maxStackDepth);
+        put(buffer, opcodeBytes);
+        put(buffer, variableBytes);
+        buffer.putInt(constants.length);
+        buffer.asDoubleBuffer().put(constants);
+        buffer.position(buffer.position() + 8 * constants.length);
+        put(buffer, functionBytes);
+        buffer.asIntBuffer().put(functionArgCounts);
+        buffer.position(buffer.position() + 4 * functions.length);
+        buffer.putInt(opcodes.length).put(code);
+        buffer.asIntBuffer().put(operands);
+        out.write(buffer.array());
+    }
+
+    /**
+     * Read a program written by {@link #save(OutputStream)}. The buffer's position is left after the program,
+     * so that several programs may be loaded from one buffer, such as a memory mapped file.
+     *
+     * @param buffer
+     *            the buffer to read from, which must use the default (big endian) byte order.
+     * @param functions
+     *            the user functions called by the program. Functions are matched by token.
+     * @return the loaded program.
+     * @throws InvalidProgramEvaldException
+     *             if the buffer does not hold a valid program, or the program calls a function which was not supplied.
+     */
+    public static CompactProgram load(ByteBuffer buffer, ArgFunction... functions) {
+        try {
+            if (buffer.getInt() != MAGIC)
+                throw new InvalidProgramEvaldException("The buffer does not hold a compact program");
+            short version = buffer.getShort();
+            if (version != VERSION)
+                throw new InvalidProgramEvaldException("Unsupported compact program version " + version);
+            int maxStackDepth = buffer.getInt();
+
+            String[] opcodeNames = getStrings(buffer);
+            int[] opcodeMap = new int[opcodeNames.length];
+            for (int i = 0; i < opcodeNames.length; i++) {
+                try {
+                    opcodeMap[i] = Opcode.valueOf(opcodeNames[i]).ordinal();
+                } catch (IllegalArgumentException e) {
+                    opcodeMap[i] = -1;
+                }
+            }
+
+            String[] variableTokens = getStrings(buffer);
+            double[] constants = new double[getCount(buffer, 8)];
+            buffer.asDoubleBuffer().get(constants);
+            buffer.position(buffer.position() + 8 * constants.length);
+
+            String[] functionTokens = getStrings(buffer);
+            int[] functionArgCounts = new int[functionTokens.length];
+            if (buffer.remaining() < 4 * functionArgCounts.length)
+                throw new BufferUnderflowException();
+            buffer.asIntBuffer().get(functionArgCounts);
+            buffer.position(buffer.position() + 4 * functionArgCounts.length);
+            ArgFunction[] boundFunctions = new ArgFunction[functionTokens.length];
+            for (int i = 0; i < functionTokens.length; i++) {
+                boundFunctions[i] = bind(functionTokens[i], functionArgCounts[i], functions);
+            }
+
+            int length = getCount(buffer, 5);
+            int[] opcodes = new int[length];
+            for (int i = 0; i < length; i++) {
+                int saved = buffer.get() & 0xff;
+                opcodes[i] = saved < opcodeMap.length ? opcodeMap[saved] : -1;
+                if (opcodes[i] < 0)
+                    throw new InvalidProgramEvaldException("The program uses an unknown operation");
+            }
+            int[] operands = new int[length];
+            buffer.asIntBuffer().get(operands);
+            buffer.position(buffer.position() + 4 * length);
+
+            CompactProgram program = new CompactProgram(opcodes, operands, constants, boundFunctions, functionArgCounts, variableTokens, maxStackDepth);
+            program.verify();
+            return program;
+        } catch (BufferUnderflowException e) {
+            throw new InvalidProgramEvaldException("The compact program is truncated");
+        }
+    }
+
+    private static ArgFunction bind(String token, int argCount, ArgFunction[] functions) {
+        for (ArgFunction function : functions) {
+            if (!function.token.equals(token))
+                continue;
+            if (argCount < function.minArgs || (function.maxArgs != NArgParser.NO_MAX && argCount > function.maxArgs))
+                throw new InvalidProgramEvaldException("The function " + token + " does not accept " + argCount + " arguments");
+            return function;
+        }
+        throw new InvalidProgramEvaldException("The program calls the function " + token + ", which was not supplied");
+    }
+
+    /**
+     * Check every operand refers to an existing constant, variable, function or instruction, and that the stack is
+     * used consistently on every path: each instruction finds the values it pops, every path reaches an instruction
+     * with the same stack depth, and each statement ends with a STORE which leaves the stack empty. The greatest depth
+     * reached must be exactly {@link #maxStackDepth}, which sizes each frame.
+     */
+    private void verify() {
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            int limit;
+            switch (Opcode.VALUES[opcodes[pc]]) {
+            case CONST:
+                limit = constants.length;
+                break;
+            case LOAD:
+            case STORE:
+                limit = variableTokens.length;
+                break;
+            case CALL:
+                limit = functions.length;
+                break;
+            case JUMP:
+            case IF:
+            case AND:
+            case OR:
+                limit = opcodes.length + 1;
+                break;
+            default:
+                continue;
+            }
+            if (operands[pc] < 0 || operands[pc] >= limit)
+                throw corrupt(pc);
+        }
+
+        //The stack depth on reaching each instruction, or -1 if not yet reached; the end of the program is reached last
+        int[] depths = new int[opcodes.length + 1];
+        Arrays.fill(depths, -1);
+        int[] pending = new int[opcodes.length + 1];
+        int count = 0;
+        int maxDepth = 0;
+        depths[0] = 0;
+        pending[count++] = 0;
+        while (count > 0) {
+            int pc = pending[--count];
+            int depth = depths[pc];
+            if (pc == opcodes.length) {
+                if (depth != 0)
+                    throw corrupt(pc);
+                continue;
+            }
+            int popped;
+            int next;
+            int branch = -1;
+            int branchDepth = 0;
+            switch (Opcode.VALUES[opcodes[pc]]) {
+            case CONST:
+            case LOAD:
+            case RANDOM:
+                popped = 0;
+                next = depth + 1;
+                break;
+            case STORE:
+                //A statement's result is the only value on the stack
+                if (depth != 1)
+                    throw corrupt(pc);
+                popped = 1;
+                next = 0;
+                break;
+            case CALL:
+                popped = functionArgCounts[operands[pc]];
+                next = depth - popped + 1;
+                break;
+            case JUMP:
+                popped = 0;
+                next = -1;
+                branch = operands[pc];
+                branchDepth = depth;
+                break;
+            case IF:
+                popped = 1;
+                next = depth - 1;
+                branch = operands[pc];
+                branchDepth = depth - 1;
+                break;
+            case AND:
+            case OR:
+                popped = 1;
+                next = depth - 1;
+                branch = operands[pc];
+                branchDepth = depth;
+                break;
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case MOD:
+            case POW:
+            case EQUALS:
+            case NOTEQUALS:
+            case LT:
+            case LTE:
+            case GT:
+            case GTE:
+            case XOR:
+            case BITWISE_OR:
+            case BITWISE_AND:
+            case HYPOT:
+            case MAX:
+            case MIN:
+            case ATAN2:
+                popped = 2;
+                next = depth - 1;
+                break;
+            default:
+                popped = 1;
+                next = depth;
+                break;
+            }
+            if (depth < popped)
+                throw new InvalidProgramEvaldException("The compact program underflows the stack at instruction " + pc);
+            maxDepth = Math.max(maxDepth, Math.max(next, branchDepth));
+            if (next >= 0)
+                count = reach(depths, pending, count, pc + 1, next);
+            if (branch >= 0)
+                count = reach(depths, pending, count, branch, branchDepth);
+        }
+        if (maxStackDepth != maxDepth)
+            throw new InvalidProgramEvaldException("The compact program has a stack depth of " + maxStackDepth + ", but uses " + maxDepth);
+    }
+
+    /**
+     * Record the stack depth on reaching an instruction, which must agree with any other path to it.
+     *
+     * @return the number of pending instructions.
+     */
+    private int reach(int[] depths, int[] pending, int count, int pc, int depth) {
+        if (depths[pc] == depth)
+            return count;
+        if (depths[pc] >= 0)
+            throw corrupt(pc);
+        depths[pc] = depth;
+        pending[count] = pc;
+        return count + 1;
+    }
+
+    private static InvalidProgramEvaldException corrupt(int pc) {
+        return new InvalidProgramEvaldException("The compact program is corrupt at instruction " + pc);
+    }
+
+    private static boolean isTrue(double value) {
+        return value > 0 || value < 0;
+    }
+
+    /**
+     * Evaluate the program.
+     *
+     * @param frame
+     *            variable values
+     * @param stack
+     *            working space of at least {@link #maxStackDepth} elements from base.
+     * @param base
+     *            the first index of stack to be used
+     */
+    double evaluate(double[] frame, double[] stack, int base) {
+        final int[] opcodes = this.opcodes;
+        final int[] operands = this.operands;
+        final int length = opcodes.length;
+        int sp = base - 1;
+        double result = 0;
+        double value;
+
+        for (int pc = 0; pc < length; pc++) {
+            switch (Opcode.VALUES[opcodes[pc]]) {
+            case CONST:
+                stack[++sp] = constants[operands[pc]];
+                break;
+            case LOAD:
+                stack[++sp] = frame[operands[pc]];
+                break;
+            case STORE:
+                result = stack[sp--];
+                frame[operands[pc]] = result;
+                break;
+            case CALL: {
+                int count = functionArgCounts[operands[pc]];
+                sp -= count;
+                stack[sp + 1] = functions[operands[pc]].call(stack, sp + 1, count);
+                sp++;
+                break;
+            }
+            case JUMP:
+                pc = operands[pc] - 1;
+                break;
+            case IF:
+                if (!isTrue(stack[sp--]))
+                    pc = operands[pc] - 1;
+                break;
+            case AND:
+                if (!isTrue(stack[sp])) {
+                    stack[sp] = 0.0;
+                    pc = operands[pc] - 1;
+                } else {
+                    sp--;
+                }
+                break;
+            case OR:
+                if (isTrue(stack[sp])) {
+                    stack[sp] = 1.0;
+                    pc = operands[pc] - 1;
+                } else {
+                    sp--;
+                }
+                break;
+            case TRUTHY:
+                stack[sp] = isTrue(stack[sp]) ? 1.0 : 0.0;
+                break;
+
+            case ADD:
+                value = stack[sp--];
+                stack[sp] = stack[sp] + value;
+                break;
+            case SUBTRACT:
+                value = stack[sp--];
+                stack[sp] = stack[sp] - value;
+                break;
+            case MULTIPLY:
+                value = stack[sp--];
+                stack[sp] = stack[sp] * value;
+                break;
+            case DIVIDE:
+                value = stack[sp--];
+                stack[sp] = stack[sp] / value;
+                break;
+            case MOD:
+                value = stack[sp--];
+                stack[sp] = stack[sp] % value;
+                break;
+            case POW:
+                value = stack[sp--];
+                stack[sp] = Math.pow(stack[sp], value);
+                break;
+            case POSITIVE:
+                break;
+            case NEGATIVE:
+                stack[sp] = -stack[sp];
+                break;
+
+            case EQUALS:
+                value = stack[sp--];
+                stack[sp] = stack[sp] == value ? 1.0 : 0.0;
+                break;
+            case NOTEQUALS:
+                value = stack[sp--];
+                stack[sp] = stack[sp] != value ? 1.0 : 0.0;
+                break;
+            case LT:
+                value = stack[sp--];
+                stack[sp] = stack[sp] < value ? 1.0 : 0.0;
+                break;
+            case LTE:
+                value = stack[sp--];
+                stack[sp] = stack[sp] <= value ? 1.0 : 0.0;
+                break;
+            case GT:
+                value = stack[sp--];
+                stack[sp] = stack[sp] > value ? 1.0 : 0.0;
+                break;
+            case GTE:
+                value = stack[sp--];
+                stack[sp] = stack[sp] >= value ? 1.0 : 0.0;
+                break;
+            case NOT:
+                stack[sp] = isTrue(stack[sp]) ? 0.0 : 1.0;
+                break;
+            case ISNAN:
+                stack[sp] = Double.isNaN(stack[sp]) ? 1.0 : 0.0;
+                break;
+            case ISINF:
+                stack[sp] = Double.isInfinite(stack[sp]) ? 1.0 : 0.0;
+                break;
+
+            case XOR:
+                value = stack[sp--];
+                stack[sp] = (double) ((long) stack[sp] ^ (long) value);
+                break;
+            case BITWISE_OR:
+                value = stack[sp--];
+                stack[sp] = (double) ((long) stack[sp] | (long) value);
+                break;
+            case BITWISE_AND:
+                value = stack[sp--];
+                stack[sp] = (double) ((long) stack[sp] & (long) value);
+                break;
+            case COMPLEMENT:
+                stack[sp] = (double) ~(long) stack[sp];
+                break;
+
+            case SIGN:
+                value = stack[sp];
+                if (!Double.isNaN(value))
+                    stack[sp] = value < 0 ? -1 : (value > 0 ? 1 : 0);
+                break;
+            case LOG2:
+                stack[sp] = Math.log(stack[sp]) / LOG_2;
+                break;
+            case RINT:
+                stack[sp] = Math.rint(stack[sp]);
+                break;
+            case TAN:
+                stack[sp] = Math.tan(stack[sp]);
+                break;
+            case TANH:
+                stack[sp] = Math.tanh(stack[sp]);
+                break;
+            case TODEGREES:
+                stack[sp] = Math.toDegrees(stack[sp]);
+                break;
+            case TORADIANS:
+                stack[sp] = Math.toRadians(stack[sp]);
+                break;
+            case ROUND:
+                stack[sp] = (double) Math.round(stack[sp]);
+                break;
+            case SQRT:
+                stack[sp] = Math.sqrt(stack[sp]);
+                break;
+            case HYPOT:
+                value = stack[sp--];
+                stack[sp] = Math.hypot(stack[sp], value);
+                break;
+            case MAX:
+                value = stack[sp--];
+                stack[sp] = Math.max(stack[sp], value);
+                break;
+            case MIN:
+                value = stack[sp--];
+                stack[sp] = Math.min(stack[sp], value);
+                break;
+            case RANDOM:
+                stack[++sp] = ThreadLocalRandom.current().nextDouble();
+                break;
+            case SINH:
+                stack[sp] = Math.sinh(stack[sp]);
+                break;
+            case LOG:
+                stack[sp] = Math.log(stack[sp]);
+                break;
+            case LOG10:
+                stack[sp] = Math.log10(stack[sp]);
+                break;
+            case EXP:
+                stack[sp] = Math.exp(stack[sp]);
+                break;
+            case FLOOR:
+                stack[sp] = Math.floor(stack[sp]);
+                break;
+            case CBRT:
+                stack[sp] = Math.cbrt(stack[sp]);
+                break;
+            case CEIL:
+                stack[sp] = Math.ceil(stack[sp]);
+                break;
+            case COS:
+                stack[sp] = Math.cos(stack[sp]);
+                break;
+            case COSH:
+                stack[sp] = Math.cosh(stack[sp]);
+                break;
+            case ABS:
+                stack[sp] = Math.abs(stack[sp]);
+                break;
+            case ASIN:
+                stack[sp] = Math.asin(stack[sp]);
+                break;
+            case ACOS:
+                stack[sp] = Math.acos(stack[sp]);
+                break;
+            case ATAN:
+                stack[sp] = Math.atan(stack[sp]);
+                break;
+            case ATAN2:
+                value = stack[sp--];
+                stack[sp] = Math.atan2(stack[sp], value);
+                break;
+            case SIN:
+                stack[sp] = Math.sin(stack[sp]);
+                break;
+            case SECANT:
+                stack[sp] = 1 / Math.cos(stack[sp]);
+                break;
+            case COSECANT:
+                stack[sp] = 1 / Math.sin(stack[sp]);
+                break;
+            case COTAN:
+                stack[sp] = 1 / Math.tan(stack[sp]);
+                break;
+            case ASINH:
+                value = stack[sp];
+                stack[sp] = Math.log(value + Math.sqrt(value * value + 1.0));
+                break;
+            case ACOSH:
+                value = stack[sp];
+                stack[sp] = Math.log(value + Math.sqrt(value * value - 1.0));
+                break;
+            case ATANH:
+                value = stack[sp];
+                stack[sp] = 0.5 * Math.log((1.0 + value) / (1.0 - value));
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static final double LOG_2 = Math.log(2);
+
+    /**
+     * Flattens expression trees into a {@link CompactProgram}. The tree is walked with an explicit stack,
+     * so that very deep trees can be compiled without risk of a StackOverflowError.
+     */
+    static class Compiler {
+        private int[] opcodes = new int[16];
+        private int[] operands = new int[16];
+        private int length;
+        private final List<Double> constants = new ArrayList<Double>();
+        private final Map<Long, Integer> constantIndex = new HashMap<Long, Integer>();
+        private final List<ArgFunction> functions = new ArrayList<ArgFunction>();
+        private final List<Integer> functionArgCounts = new ArrayList<Integer>();
+        private int depth;
+        private int maxDepth;
+        /** True to load each variable from its slot, rather than its index; see {@link Variable#slot} */
+        private final boolean slots;
+
+        Compiler() {
+            this(false);
+        }
+
+        Compiler(boolean slots) {
+            this.slots = slots;
+        }
+
+        /** Compilation state for a single node */
+        private static class Frame {
+            final Node node;
+            final Opcode opcode;
+            int nextArg;
+            int patch = -1;
+            int patch2 = -1;
+
+            Frame(Node node) {
+                this.node = node;
+                this.opcode = node.opcode();
+                if (opcode == null)
+                    throw new UncompilableEvaldException("The expression contains an operation which cannot be compacted:\n" + node.toTree("  "));
+            }
+        }
+
+        private int emit(Opcode opcode, int operand) {
+            if (length == opcodes.length) {
+                int[] newOpcodes = new int[length * 2];
+                int[] newOperands = new int[length * 2];
+                System.arraycopy(opcodes, 0, newOpcodes, 0, length);
+                System.arraycopy(operands, 0, newOperands, 0, length);
+                opcodes = newOpcodes;
+                operands = newOperands;
+            }
+            opcodes[length] = opcode.ordinal();
+            operands[length] = operand;
+            return length++;
+        }
+
+        private void push(int count) {
+            depth += count;
+            if (depth > maxDepth)
+                maxDepth = depth;
+        }
+
+        /**
+         * Compile a statement, evaluating root and storing the result in the variable at outputIndex.
+         */
+        void compile(Node root, int outputIndex) {
+            List<Frame> stack = new ArrayList<Frame>();
+            stack.add(new Frame(root));
+            while (!stack.isEmpty()) {
+                Frame frame = stack.get(stack.size() - 1);
+                if (frame.nextArg < frame.node.arity()) {
+                    beforeArg(frame);
+                    stack.add(new Frame(frame.node.arg(frame.nextArg++)));
+                    continue;
+                }
+                stack.remove(stack.size() - 1);
+                complete(frame);
+            }
+            emit(Opcode.STORE, outputIndex);
+            push(-1);
+        }
+
+        /** Emit any control flow required before the next argument of a node */
+        private void beforeArg(Frame frame) {
+            //A fold combines each argument with the result so far, once it has been evaluated
+            Opcode fold = frame.nextArg > 1 ? frame.node.foldOpcode(frame.nextArg - 1) : null;
+            if (fold != null) {
+                emit(fold, 0);
+                push(-1);
+                return;
+            }
+            switch (frame.opcode) {
+            case IF:
+                if (frame.nextArg == 1) {
+                    frame.patch = emit(Opcode.IF, -1);
+                    push(-1);
+                } else if (frame.nextArg == 2) {
+                    frame.patch2 = emit(Opcode.JUMP, -1);
+                    operands[frame.patch] = length;
+                    push(-1);
+                }
+                break;
+            case AND:
+            case OR:
+                if (frame.nextArg == 1) {
+                    frame.patch = emit(frame.opcode, -1);
+                    push(-1);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        /** Emit the instruction(s) for a node, once all of its arguments have been emitted */
+        private void complete(Frame frame) {
+            Opcode fold = frame.node.foldOpcode(frame.node.arity() - 1);
+            if (fold != null) {
+                emit(fold, 0);
+                push(-1);
+                return;
+            }
+            switch (frame.opcode) {
+            case CONST:
+                emit(Opcode.CONST, addConstant(((Constant) frame.node).value));
+                push(1);
+                break;
+            case LOAD:
+                emit(Opcode.LOAD, slots ? ((Variable) frame.node).slot : ((Variable) frame.node).index);
+                push(1);
+                break;
+            case CALL: {
+                int count = frame.node.arity();
+                functions.add(((PureFunctionValueNode) frame.node).function());
+                functionArgCounts.add(count);
+                emit(Opcode.CALL, functions.size() - 1);
+                push(1 - count);
+                break;
+            }
+            case IF:
+                operands[frame.patch2] = length;
+                break;
+            case AND:
+            case OR:
+                emit(Opcode.TRUTHY, 0);
+                operands[frame.patch] = length;
+                break;
+            default:
+                emit(frame.opcode, 0);
+                push(1 - frame.node.arity());
+                break;
+            }
+        }
+
+        private int addConstant(double value) {
+            Long bits = Double.doubleToRawLongBits(value);
+            Integer index = constantIndex.get(bits);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constantIndex.put(bits, index);
+            }
+            return index;
+        }
+
+        CompactProgram build(String[] variableTokens) {
+            int[] finalOpcodes = new int[length];
+            int[] finalOperands = new int[length];
+            System.arraycopy(opcodes, 0, finalOpcodes, 0, length);
+            System.arraycopy(operands, 0, finalOperands, 0, length);
+            double[] finalConstants = new double[constants.size()];
+            for (int i = 0; i < finalConstants.length; i++) {
+                finalConstants[i] = constants.get(i);
+            }
+            int[] finalArgCounts = new int[functionArgCounts.size()];
+            for (int i = 0; i < finalArgCounts.length; i++) {
+                finalArgCounts[i] = functionArgCounts.get(i);
+            }
+            return new CompactProgram(finalOpcodes, finalOperands, finalConstants, functions.toArray(new ArgFunction[] {}), finalArgCounts, variableTokens, maxDepth);
+        }
+    }
+}
@@ -21,4 +21,20 @@ class Constant extends ValueNode {
         sb.append(prefix).append("Constant = ").append(value).append("\n");
         return sb.toString();
     }
+
+    @Override int arity() {
+        return 0;
+    }
+
+    @Override Node arg(int index) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override void setArg(int index, Node node) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override Opcode opcode() {
+        return Opcode.CONST;
+    }
 }
\ No newline at end of file
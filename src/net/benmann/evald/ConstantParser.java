@@ -1,27 +1,38 @@
 package net.benmann.evald;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 abstract class ConstantParser extends ValueParser {
-    final Pattern pattern;
-
     ConstantParser(String token) {
         super(token);
-        this.pattern = Pattern.compile("^(\\s*" + Pattern.quote(token) + ")[^A-Za-z0-9_]");
     }
 
     abstract Constant create();
 
+    @Override boolean startsWithToken() {
+        return true;
+    }
+
+    /**
+     * @return the end of the constant's token if it is at the start of the region, and not followed by an identifier
+     *         character, or -1.
+     */
+    private int match(String expression, int start, int end) {
+        int position = matchToken(expression, skipSpace(expression, start, end), end);
+        if (position < 0 || position < end && Variable.isNameChar(expression.charAt(position)))
+            return -1;
+        return position;
+    }
+
     @Override Node parse(ExpressionParser op, ExpressionString str) {
-        Matcher matcher = pattern.matcher(str.expression + " "); //FIXME this is a hack for search order
-        if (!matcher.find())
+        int position = match(str.expression, 0, str.expression.length());
+        if (position < 0)
             return null;
-        
-        String tokenFound = matcher.group(1);
-        int skip = tokenFound.length();
-        str.update(skip);
+        str.update(position);
 
         return create();
     }
+
+    @Override int validate(Validator validator, int start, int end) {
+        int position = match(validator.expression, start, end);
+        return position < 0 ? Validator.NO_MATCH : position;
+    }
 }
\ No newline at end of file
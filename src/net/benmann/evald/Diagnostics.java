@@ -0,0 +1,98 @@
+package net.benmann.evald;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The outcome of validating an expression with {@link Evald#validate(String, Diagnostics)}. A single instance may be
+ * reused for any number of validations; each validation replaces the previous outcome.
+ */
+public final class Diagnostics {
+    /**
+     * The kind of the first error found in an expression.
+     */
+    public enum Kind {
+        NONE("No error"),
+        EXPECTED_ASSIGNMENT("Expected an assignment expression"),
+        EMPTY_EXPRESSION("Expected an expression"),
+        EXPECTED_VALUE("Expected a value or expression"),
+        INVALID_NUMBER("Invalid number"),
+        EXPECTED_OPERATOR("Expected an operator"),
+        MISSING_VALUE("Expected a value after the operator"),
+        MISMATCHED_BRACES("Mismatched braces"),
+        EMPTY_BRACES("Empty braces - a value was expected"),
+        MISSING_CLOSING_BRACE("Missing closing brace for function"),
+        UNKNOWN_METHOD("Unknown method"),
+        TOO_FEW_ARGUMENTS("Insufficient arguments for function"),
+        TOO_MANY_ARGUMENTS("Too many arguments for function"),
+        UNDECLARED_VARIABLE("Undeclared variable");
+
+        private final String description;
+
+        private Kind(String description) {
+            this.description = description;
+        }
+
+        /** @return a short description of the error */
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private String expression;
+    private Kind kind = Kind.NONE;
+    private int offset;
+    private int length;
+    /** The output variables of statements validated so far */
+    final Set<String> outputs = new HashSet<String>();
+
+    void reset(String expression) {
+        this.expression = expression;
+        kind = Kind.NONE;
+        offset = 0;
+        length = 0;
+        outputs.clear();
+    }
+
+    void set(Kind kind, int start, int end) {
+        this.kind = kind;
+        this.offset = start;
+        this.length = end - start;
+    }
+
+    /** @return true if no error was found */
+    public boolean isValid() {
+        return kind == Kind.NONE;
+    }
+
+    /** @return the kind of error found, or {@link Kind#NONE} */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /** @return the offset of the text causing the error, from the start of the validated expression */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** @return the length of the text causing the error */
+    public int getLength() {
+        return length;
+    }
+
+    /** @return the text causing the error, or an empty string if the expression is valid */
+    public String getToken() {
+        return expression == null ? "" : expression.substring(offset, offset + length);
+    }
+
+    /** @return the validated expression */
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override public String toString() {
+        if (isValid())
+            return kind.getDescription();
+        return kind.getDescription() + " at offset " + offset + ": " + getToken();
+    }
+}
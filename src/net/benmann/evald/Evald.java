@@ -1,18 +1,33 @@
 package net.benmann.evald;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.benmann.evald.AbstractEvaldException.BudgetExceededEvaldException;
+import net.benmann.evald.AbstractEvaldException.BudgetExceededEvaldException.Budget;
 import net.benmann.evald.AbstractEvaldException.EmptyExpressionEvaldException;
 import net.benmann.evald.AbstractEvaldException.EvaldException;
 import net.benmann.evald.AbstractEvaldException.InvalidTokenEvaldException;
+import net.benmann.evald.AbstractEvaldException.UncompilableEvaldException;
 import net.benmann.evald.AbstractEvaldException.UndeclaredVariableEvaldException;
 import net.benmann.evald.AbstractEvaldException.UninitialisedEvaldException;
 import net.benmann.evald.AbstractEvaldException.UnknownMethodEvaldException;
@@ -24,43 +39,149 @@ public class Evald {
     private boolean allowUndeclared = true;
     private boolean implicitMultiplication = true;
     private boolean allowMultiplePostfixOperators = true;
+    private boolean optimisation = true;
+    private boolean lazyParsing = false;
+    private int parseThreads = 1;
+    private int maxSourceLength = -1;
+    private int maxStatements = -1;
+    private int maxDepth = -1;
+    private int maxNodes = -1;
+    private double maxCost = -1;
+    private boolean reuseIntermediateSlots = false;
+    /** Expressions with fewer statements than this are always parsed on the calling thread */
+    static final int PARALLEL_PARSE_MINIMUM = 64;
     private static final Pattern validTokenPattern = Pattern.compile("^[a-zA-Z_][a-zA-Z_0-9]*$");
-    private static final Pattern subExpressionPattern = Pattern.compile("^\\s*([a-zA-Z_][a-z_A-Z0-9]*)\\s*=([^=]+.*)");
-    private static final int ARRAY_RESIZE_BUFFER = 16;
+    static final Pattern subExpressionPattern = Pattern.compile("^\\s*([a-zA-Z_][a-z_A-Z0-9]*)\\s*=([^=]+.*)");
+    private static final Pattern identifierPattern = Pattern.compile("[a-zA-Z_][a-z_A-Z0-9]*");
+    private static final int INITIAL_VALUE_ARRAY_SIZE = 16;
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private static final String DEFAULT_RESULT_VARIABLE = "result";
     private String resultVariable = DEFAULT_RESULT_VARIABLE;
 
     private double[] valueArray;
     private String[] variableToken;
     private int valueArraySize;
-    private Set<Integer> inputSet = new HashSet<>();
+    private final BitSet inputSet = new BitSet();
+    private Recorder recorder;
+
+    /** A compiled form of the current expression, used once it is available */
+    private static final class Tier {
+        final int generation;
+        final CompactProgram program;
+        final double[] stack;
+
+        Tier(int generation, CompactProgram program) {
+            this.generation = generation;
+            this.program = program;
+            this.stack = new double[program.maxStackDepth];
+        }
+    }
+
+    /** Compiles hot expressions for every instance, on a single daemon thread */
+    private static final class BackgroundCompiler {
+        static final Executor EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "evald-compiler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private int compileThreshold = -1;
+    private int evaluationCount;
+    private boolean compileRequested;
+    /** Incremented whenever the expression, or the set of enabled statements, changes */
+    private int generation;
+    private volatile Tier tier;
+    /** Incremented whenever the statement list or variable indices change, invalidating any {@link OutputPlan} */
+    private int expressionVersion;
 
     /**
      * Track subexpression properties, primarily linking a variable to an expression.
      * Also used to manage dependencies - if an output variable is to be ignored, then
      * we can determine if it need not be evaluated at all.
      */
-    private static class SubExpression {
+    static class SubExpression {
         int outputVariableIndex;
+        /** The element of the value array the result is stored in; see {@link #setReuseIntermediateSlots(boolean)} */
+        int outputSlot;
+        /**
+         * The statement text with whitespace normalised, used to match unchanged statements when reparsing, or null if
+         * the text was not retained
+         */
+        final String key;
         Node expressionRoot;
-        boolean enabled;
-        final Set<Integer> usedVariables;
-
-        SubExpression(int outputVariableIndex, Node expressionRoot, Set<Integer> usedVariables) {
+        boolean enabled = true;
+        /** The variables read by the statement, in ascending order */
+        int[] usedVariables = IndexList.EMPTY;
+        /** The statement text, when lazy parsing has deferred parsing it; otherwise null */
+        String statement;
+        /** The functions used by this statement */
+        Set<String> functions = Collections.emptySet();
+        /** The number of nodes created while parsing, and the estimated cost of evaluating the collapsed tree */
+        int nodes;
+        double cost;
+        /**
+         * For a statement too deep to evaluate recursively, the statement compiled to be evaluated in postfix order,
+         * with its working space; otherwise null
+         */
+        CompactProgram program;
+        double[] stack;
+
+        SubExpression(int outputVariableIndex, String key) {
             this.outputVariableIndex = outputVariableIndex;
-            this.expressionRoot = expressionRoot;
-            this.usedVariables = usedVariables;
-            enabled = true;
+            this.outputSlot = outputVariableIndex;
+            this.key = key;
         }
     }
 
+    /** True if any statement has not yet been parsed. See {@link #setLazyParsing(boolean)} */
+    private boolean unparsedStatements;
+    /** The outputs passed to {@link #enableOutputs(int...)}, or null if all outputs are enabled */
+    private int[] requestedOutputs;
+    /** The nodes and estimated cost of the parsed statements, checked against the budgets as statements are added */
+    private int totalNodes;
+    private double totalCost;
+
     final List<SubExpression> expressions = new ArrayList<>();
 
-    final Map<String, Integer> keyIndexMap = new HashMap<String, Integer>();
+    final TokenIndexMap keyIndexMap = new TokenIndexMap();
     final Set<String> undeclaredKeyMap = new HashSet<String>();
     final Set<String> outputKeyMap = new HashSet<String>();
-    private final List<SetValueArrayCallback> valueArrayCallbacks = new ArrayList<SetValueArrayCallback>();
-    private final Set<Integer> usedIndices = new HashSet<Integer>();
+    private final BitSet usedIndices = new BitSet();
+    /**
+     * The variables added by the caller, rather than by parsing, which are kept by {@link #compactVariables()} and
+     * never share a slot
+     */
+    private final BitSet declaredIndices = new BitSet();
+    /** The outputs of the plans created since the expression was parsed, which never share a slot */
+    private final BitSet plannedOutputs = new BitSet();
+    /** A table from each variable index to the slot it is evaluated from, or null if each uses its own index */
+    private int[] slots;
+    /** The variables set and read by {@link #evaluate(double[], double[])} */
+    private int[] boundInputs = IndexList.EMPTY;
+    private int[] boundOutputs = IndexList.EMPTY;
+    /**
+     * The caller's array or buffer holding the inputs bound by {@link #bindInputs(double[], int...)}, the variable read
+     * from each element, or -1, and the offset of the first element in the array. Null if no inputs are bound.
+     */
+    private double[] externalArray;
+    private DoubleBuffer externalBuffer;
+    private int[] externalVariables;
+    private int externalOffset;
+    /** A table from each variable index to the element of the external array it is read from in place, or -1 */
+    private int[] externalElements;
+    /**
+     * The bound inputs copied into the value array before evaluating a compiled statement, which reads only the value
+     * array, or every evaluation when the buffer has no accessible array
+     */
+    private int[] copiedVariables = IndexList.EMPTY;
+    private int[] copiedElements = IndexList.EMPTY;
+    /** The variables and statements required by the enabled outputs, reused by {@link #enableOutputs(int...)} */
+    private final BitSet requiredIndices = new BitSet();
+    private final BitSet requiredStatements = new BitSet();
     private final Set<String> usedFunctions = new HashSet<String>();
 
     ParserList<ValueParser> valueParsers = new ParserList<ValueParser>();
@@ -94,127 +215,1108 @@ public class Evald {
      * 
      * @param libraries
      */
-    public void removeLibrary(Library... libraries) {
-        for (Library library : libraries) {
-            remove(library.getParsers());
-        }
+    public void removeLibrary(Library... libraries) {
+        for (Library library : libraries) {
+            remove(library.getParsers());
+        }
+    }
+
+    /**
+     * Construct with the specified set of libraries.
+     */
+    public Evald(Library... libraries) {
+    	for(Library library : libraries) {
+    		assignParsers(library.getParsers());
+    	}
+    }
+    
+    /**
+     * Parse the specified expression.
+     * 
+     * @param expression
+     *            an expression to parse
+     * 
+     * @throws UndeclaredVariableEvaldException
+     *             if any variable in the expression has not yet been declared, and setAllowUndeclared was not set. The exception lists the variable names in its message.
+     * @throws UnknownMethodEvaldException
+     *             if any method in the expression has not been declared. Set the method using {@link #addUserFunction}.
+     * @throws EvaldException
+     *             on any other syntax error.
+     * @throws BudgetExceededEvaldException
+     *             if the expression exceeds a budget, such as {@link #setMaxDepth(int)}.
+     */
+    public void parse(String expression) {
+        checkSourceLength(expression.length());
+        startParse();
+        //Variables declared while parsing are recreated when the parse is replayed, so aren't recorded
+        Recorder activeRecorder = recorder;
+        recorder = null;
+        try {
+            parseSubExpressions(expression);
+        } finally {
+            recorder = activeRecorder;
+        }
+        finishParse(expression);
+    }
+
+    /**
+     * Parse an expression read from a source, one statement at a time. The text of each statement is discarded once
+     * it has been parsed, so the memory used while reading is bounded by the longest statement rather than the
+     * length of the source. Statements are parsed on the calling thread, whatever the value set by
+     * {@link #setParseThreads(int)}.
+     * 
+     * As statement text isn't retained, a later {@link #reparse(String)} parses every statement. The complete text is
+     * only held in memory if a {@link Recorder} is attached, or for statements deferred by lazy parsing.
+     * 
+     * @param source
+     *            the expression. The source is read to the end, but not closed.
+     * @throws IOException
+     *             if the source can't be read.
+     * @throws EvaldException
+     *             on any syntax error, as for {@link #parse(String)}.
+     */
+    public void parse(Readable source) throws IOException {
+        startParse();
+        StringBuilder recorded = recorder == null ? null : new StringBuilder();
+        Recorder activeRecorder = recorder;
+        recorder = null;
+        try {
+            parseStatements(source, recorded);
+        } finally {
+            recorder = activeRecorder;
+        }
+        finishParse(recorded == null ? null : recorded.toString());
+    }
+
+    /**
+     * Parse an expression from a UTF-8 encoded file, as for {@link #parse(Readable)}.
+     * 
+     * @throws IOException
+     *             if the file can't be read.
+     */
+    public void parse(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, UTF8)) {
+            parse(reader);
+        }
+    }
+
+    private void startParse() {
+        invalidateTier();
+        expressionVersion++;
+        plannedOutputs.clear();
+        slots = null;
+        externalElements = null;
+        unparsedStatements = false;
+        requestedOutputs = null;
+        totalNodes = 0;
+        totalCost = 0;
+        usedIndices.clear();
+        usedFunctions.clear();
+        inputSet.clear();
+        expressions.clear();
+    }
+
+    private void finishParse(String expression) {
+        if (reuseIntermediateSlots || externalVariables != null)
+            allocateSlots();
+        if (!allowUndeclared && !undeclaredKeyMap.isEmpty())
+            throw new UndeclaredVariableEvaldException(undeclaredKeyMap);
+
+        if (recorder != null)
+            recorder.parsed(this, expression);
+    }
+
+    /**
+     * Read and parse statements separated by semicolons. As for {@link #splitStatements(String)}, a single statement
+     * without an assignment is assigned to the result variable, so the first statement is held until another
+     * non-empty statement is read. As with {@link String#split(String)}, only statements with no characters at all
+     * are ignored when deciding this.
+     */
+    private void parseStatements(Readable source, StringBuilder recorded) throws IOException {
+        CharBuffer buffer = CharBuffer.allocate(STREAM_BUFFER_SIZE);
+        StringBuilder statement = new StringBuilder();
+        String first = null;
+        boolean multiple = false;
+        int length = 0;
+        while (true) {
+            int read = source.read(buffer);
+            buffer.flip();
+            length += buffer.remaining();
+            checkSourceLength(length);
+            if (recorded != null)
+                recorded.append(buffer);
+            while (buffer.hasRemaining() || read < 0) {
+                if (buffer.hasRemaining()) {
+                    char c = buffer.get();
+                    if (c != ';') {
+                        statement.append(c);
+                        continue;
+                    }
+                }
+                String text = statement.toString();
+                statement.setLength(0);
+                if (first == null && !multiple) {
+                    first = text;
+                } else if (!text.isEmpty()) {
+                    if (first != null) {
+                        parseStreamedStatement(first, true);
+                        first = null;
+                        multiple = true;
+                    }
+                    parseStreamedStatement(text, true);
+                }
+                if (read < 0)
+                    break;
+            }
+            if (read < 0)
+                break;
+            buffer.clear();
+        }
+        if (first != null) {
+            if (subExpressionPattern.matcher(first).find()) {
+                parseStreamedStatement(first, true);
+            } else {
+                addSubExpression(createSubExpression(resultVariable + " = " + first, false, false));
+            }
+        }
+    }
+
+    private void parseStreamedStatement(String statement, boolean includeContext) {
+        statement = statement.trim();
+        if (!statement.isEmpty())
+            addSubExpression(createSubExpression(statement, includeContext, false));
+    }
+
+    /**
+     * Split an expression into trimmed, non-empty statements. A single statement without an assignment is assigned
+     * to the result variable.
+     */
+    private List<String> splitStatements(String expression) {
+        String[] statements = expression.split(";");
+        if (statements.length == 1 && !subExpressionPattern.matcher(statements[0]).find())
+            return Collections.singletonList(resultVariable + " = " + statements[0]);
+        List<String> result = new ArrayList<String>(statements.length);
+        for (String statement : statements) {
+            statement = statement.trim();
+            if (!statement.isEmpty())
+                result.add(statement);
+        }
+        return result;
+    }
+
+    /** @return true if the expression is a single expression without an assignment */
+    private boolean isImplicitResult(String expression) {
+        String[] statements = expression.split(";");
+        return statements.length == 1 && !subExpressionPattern.matcher(statements[0]).find();
+    }
+
+    /**
+     * @return the output variable and expression of an assignment statement, or null if the statement is not an
+     *         assignment.
+     */
+    String[] splitAssignment(String statement) {
+        Matcher matcher = subExpressionPattern.matcher(statement);
+        if (!matcher.find() || matcher.groupCount() != 2)
+            return null;
+        return new String[] { matcher.group(1), matcher.group(2) };
+    }
+
+    private void parseSubExpressions(String expression) {
+        boolean includeContext = !isImplicitResult(expression);
+        List<String> statements = splitStatements(expression);
+        checkBudget(statements.size(), 0, 0);
+        if (parseThreads > 1 && !lazyParsing && statements.size() >= PARALLEL_PARSE_MINIMUM) {
+            ParallelParser.Statement[] parsed = ParallelParser.parse(this, statements, parseThreads);
+            //Reserve space for every variable which may be declared, rather than growing the value array repeatedly
+            int declarations = parsed.length;
+            for (ParallelParser.Statement statement : parsed) {
+                if (statement.symbols != null)
+                    declarations += statement.symbols.size();
+            }
+            validateValueArrayIndex(valueArraySize + declarations);
+            for (ParallelParser.Statement statement : parsed) {
+                SubExpression subExpression;
+                try {
+                    subExpression = bindSubExpression(statement);
+                } catch (AbstractEvaldException e) {
+                    if (!includeContext)
+                        throw e;
+                    throw e.withContext(statement.text);
+                }
+                addSubExpression(subExpression);
+            }
+            return;
+        }
+        for (String statement : statements) {
+            addSubExpression(createSubExpression(statement, includeContext, true));
+        }
+    }
+
+    /**
+     * Declare the variables of a statement parsed by {@link ParallelParser}, in the order a sequential parse would
+     * declare them, and bind its tree to their indices. Throws any exception from parsing the statement.
+     */
+    private SubExpression bindSubExpression(ParallelParser.Statement statement) {
+        if (statement.variable == null)
+            throw statement.error;
+        SubExpression result = new SubExpression(addParsedVariable(statement.variable), normalise(statement.text));
+        IndexList used = new IndexList();
+        for (Variable variable : statement.symbols) {
+            int index = keyIndexMap.get(variable.token);
+            if (index == TokenIndexMap.MISSING) {
+                undeclaredKeyMap.add(variable.token);
+                index = addParsedVariable(variable.token);
+            }
+            used.add(index);
+            if (statement.error == null)
+                variable.bind(index);
+        }
+        if (statement.error != null)
+            throw statement.error;
+        usedFunctions.addAll(statement.functions);
+        result.expressionRoot = statement.root;
+        result.usedVariables = used.toSortedSet();
+        result.functions = statement.functions;
+        result.nodes = statement.nodes;
+        result.cost = statement.cost;
+        compileDeepStatement(result, statement.depth);
+        return result;
+    }
+
+    /**
+     * Collapse each run of whitespace to a single space, so that statements differing only in whitespace match.
+     */
+    static String normalise(String statement) {
+        StringBuilder sb = new StringBuilder(statement.length());
+        boolean space = false;
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space)
+                sb.append(' ');
+            space = false;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Create a statement, parsing it unless lazy parsing is enabled. The instance's bookkeeping is not updated;
+     * see {@link #addSubExpression(SubExpression)}.
+     * 
+     * @param retainText
+     *            true to keep the statement's normalised text, so it can be reused by {@link #reparse(String)}.
+     */
+    private SubExpression createSubExpression(String subExpression, boolean includeContext, boolean retainText) {
+        try {
+            String[] assignment = splitAssignment(subExpression);
+            if (assignment == null) {
+                throw new EvaldException("Expected an assignment expression.");
+            }
+
+            String variable = assignment[0];
+            String expression = assignment[1];
+            if (lazyParsing)
+                return deferSubExpression(variable, expression, subExpression, retainText);
+
+            ExpressionString string = new ExpressionString(expression);
+            if (string.expression.isEmpty())
+                throw new EmptyExpressionEvaldException(string);
+
+            SubExpression result = new SubExpression(addParsedVariable(variable), retainText ? normalise(subExpression) : null);
+            parseStatement(result, string);
+            return result;
+        } catch (AbstractEvaldException e) {
+            if (!includeContext) {
+                throw e;
+            }
+            throw e.withContext(subExpression);
+        }
+    }
+
+    /**
+     * Parse a statement's expression, recording the variables and functions it uses.
+     */
+    private void parseStatement(SubExpression statement, ExpressionString string) {
+        ExpressionParser parser = new ExpressionParser(this, string);
+        statement.expressionRoot = parser.parse();
+        statement.usedVariables = parser.usedIndices.toSortedSet();
+        statement.functions = parser.usedFunctions;
+        statement.nodes = parser.count.nodes;
+        statement.cost = parser.cost;
+        compileDeepStatement(statement, parser.depth);
+    }
+
+    /**
+     * Compile a statement too deep to evaluate recursively, so that it is evaluated with an explicit stack, in
+     * postfix order. A statement which can't be compiled is evaluated recursively, which may require a larger stack.
+     */
+    private void compileDeepStatement(SubExpression statement, int depth) {
+        statement.program = null;
+        statement.stack = null;
+        if (depth > ExpressionParser.MAX_RECURSIVE_DEPTH)
+            compileStatement(statement);
+    }
+
+    private void compileStatement(SubExpression statement) {
+        try {
+            CompactProgram.Compiler compiler = new CompactProgram.Compiler(true);
+            compiler.compile(statement.expressionRoot, statement.outputSlot);
+            statement.program = compiler.build(listAllVariables());
+            statement.stack = new double[statement.program.maxStackDepth];
+        } catch (UncompilableEvaldException e) {
+            //evaluate the tree
+        }
+    }
+
+    /**
+     * Add a statement, updating the used and input variables, and binding its variables to the value array. Every
+     * parsed statement in {@link #expressions} is bound to the current value array, and is bound again whenever the
+     * array grows.
+     */
+    private void addSubExpression(SubExpression statement) {
+        checkBudget(expressions.size() + 1, totalNodes + statement.nodes, totalCost + statement.cost);
+        bindStatement(statement, null);
+        totalNodes += statement.nodes;
+        totalCost += statement.cost;
+        usedIndices.set(statement.outputVariableIndex);
+        if (statement.statement == null) {
+            addInputs(statement.usedVariables, usedIndices);
+        } else {
+            unparsedStatements = true;
+        }
+        expressions.add(statement);
+    }
+
+    /**
+     * Record a statement's output variable and text, without parsing it. The variables it may depend on are
+     * found by scanning for identifiers, which may include more than are actually used.
+     */
+    private SubExpression deferSubExpression(String variable, String expression, String subExpression, boolean retainText) {
+        SubExpression result = new SubExpression(addParsedVariable(variable), retainText ? normalise(subExpression) : null);
+        IndexList dependencies = new IndexList();
+        Matcher identifiers = identifierPattern.matcher(expression);
+        while (identifiers.find()) {
+            int dependency = keyIndexMap.get(identifiers.group());
+            if (dependency != TokenIndexMap.MISSING)
+                dependencies.add(dependency);
+        }
+        result.usedVariables = dependencies.toSortedSet();
+        result.statement = subExpression;
+        return result;
+    }
+
+    /**
+     * Parse an edited version of the most recently parsed expression. Statements whose text is unchanged (ignoring
+     * whitespace) keep their parsed form, and only new or changed statements are parsed. Removed statements are
+     * dropped. Variable indices are unchanged, and the outputs set by {@link #enableOutputs(String...)} remain
+     * enabled.
+     * 
+     * If the edited expression has a syntax error, the exception is thrown and the previous expression remains in use.
+     * 
+     * @param expression
+     *            the complete edited expression.
+     * @throws EvaldException
+     *             on any syntax error, as for {@link #parse(String)}.
+     */
+    public void reparse(String expression) {
+        if (expressions.isEmpty()) {
+            parse(expression);
+            return;
+        }
+        checkSourceLength(expression.length());
+        Map<String, List<SubExpression>> previous = new HashMap<String, List<SubExpression>>();
+        for (SubExpression statement : expressions) {
+            if (statement.key == null)
+                continue;
+            List<SubExpression> matches = previous.get(statement.key);
+            if (matches == null) {
+                matches = new ArrayList<SubExpression>(1);
+                previous.put(statement.key, matches);
+            }
+            matches.add(statement);
+        }
+
+        boolean includeContext = !isImplicitResult(expression);
+        List<SubExpression> statements = new ArrayList<SubExpression>();
+        Recorder activeRecorder = recorder;
+        recorder = null;
+        try {
+            List<String> texts = splitStatements(expression);
+            checkBudget(texts.size(), 0, 0);
+            int nodes = 0;
+            double cost = 0;
+            for (String statement : texts) {
+                List<SubExpression> matches = previous.get(normalise(statement));
+                if (matches != null && !matches.isEmpty()) {
+                    statements.add(matches.remove(0));
+                } else {
+                    statements.add(createSubExpression(statement, includeContext, true));
+                }
+                SubExpression added = statements.get(statements.size() - 1);
+                nodes += added.nodes;
+                cost += added.cost;
+                checkBudget(statements.size(), nodes, cost);
+            }
+        } finally {
+            recorder = activeRecorder;
+        }
+
+        invalidateTier();
+        expressionVersion++;
+        plannedOutputs.clear();
+        expressions.clear();
+        usedIndices.clear();
+        usedFunctions.clear();
+        inputSet.clear();
+        unparsedStatements = false;
+        totalNodes = 0;
+        totalCost = 0;
+        for (SubExpression statement : statements) {
+            statement.enabled = true;
+            addSubExpression(statement);
+            usedFunctions.addAll(statement.functions);
+        }
+        if (reuseIntermediateSlots || externalVariables != null)
+            allocateSlots();
+        if (requestedOutputs != null) {
+            recorder = null;
+            enableOutputs(requestedOutputs);
+            recorder = activeRecorder;
+        }
+
+        if (!allowUndeclared && !undeclaredKeyMap.isEmpty())
+            throw new UndeclaredVariableEvaldException(undeclaredKeyMap);
+
+        //A replay parses the whole expression, which enables all outputs
+        if (recorder != null) {
+            recorder.parsed(this, expression);
+            if (requestedOutputs != null)
+                recorder.outputsEnabled(requestedOutputs);
+        }
+    }
+
+    /**
+     * Parse any enabled statements which were deferred by lazy parsing.
+     */
+    private void parseDeferred() {
+        parseDeferred(null);
+    }
+
+    /**
+     * Parse statements which were deferred by lazy parsing.
+     * 
+     * @param required
+     *            the positions of the statements to parse, or null to parse the enabled statements.
+     */
+    private void parseDeferred(BitSet required) {
+        if (!unparsedStatements)
+            return;
+        Recorder activeRecorder = recorder;
+        recorder = null;
+        try {
+            unparsedStatements = false;
+            BitSet outputs = new BitSet();
+            for (int i = 0; i < expressions.size(); i++) {
+                SubExpression expression = expressions.get(i);
+                outputs.set(expression.outputVariableIndex);
+                if (expression.statement == null)
+                    continue;
+                if (required == null ? !expression.enabled : !required.get(i)) {
+                    unparsedStatements = true;
+                    continue;
+                }
+                try {
+                    Matcher matcher = subExpressionPattern.matcher(expression.statement);
+                    matcher.find();
+                    ExpressionString string = new ExpressionString(matcher.group(2));
+                    if (string.expression.isEmpty())
+                        throw new EmptyExpressionEvaldException(string);
+                    parseStatement(expression, string);
+                    bindStatement(expression, null);
+                    checkBudget(expressions.size(), totalNodes + expression.nodes, totalCost + expression.cost);
+                    totalNodes += expression.nodes;
+                    totalCost += expression.cost;
+                    addInputs(expression.usedVariables, outputs);
+                } catch (AbstractEvaldException e) {
+                    unparsedStatements = true;
+                    throw e.withContext(expression.statement);
+                }
+                expression.statement = null;
+            }
+        } finally {
+            recorder = activeRecorder;
+        }
+
+        if (reuseIntermediateSlots || externalVariables != null)
+            allocateSlots();
+        if (!allowUndeclared && !undeclaredKeyMap.isEmpty())
+            throw new UndeclaredVariableEvaldException(undeclaredKeyMap);
+    }
+
+    /**
+     * Enable or disable lazy parsing. When enabled, parsing a multi-statement expression only records each statement's
+     * output variable and text. A statement is parsed, and any syntax errors reported, when it is first needed: by
+     * {@link #evaluate()} or any other method which uses the parsed statements, if its output is enabled (see
+     * {@link #enableOutputs(String...)}). When only a few outputs of a large script are enabled, the time spent
+     * parsing is proportional to the statements actually used.
+     * 
+     * In lazy mode, input variables which were not declared before parsing are declared when the first statement
+     * using them is parsed. Call {@link #enableOutputs(String...)} before looking up such variables, or every statement
+     * will be parsed.
+     * 
+     * @param enabled
+     *            true to defer parsing, false to parse every statement immediately (the default).
+     */
+    public void setLazyParsing(boolean enabled) {
+        lazyParsing = enabled;
+    }
+
+    /**
+     * @return the value set by {@link #setLazyParsing(boolean)}, or the default (false)
+     */
+    public boolean getLazyParsing() {
+        return lazyParsing;
+    }
+
+    /**
+     * Enable or disable sharing of value array slots between intermediate variables. When enabled, a variable set by a
+     * statement is stored in a slot shared with other intermediates whose values are no longer needed, so that
+     * evaluating a long expression touches far fewer slots. This applies to variables set by a single statement, not
+     * read before they are set, not added with {@link #addVariable(String)}, and not requested as an output with
+     * {@link #enableOutputs(int...)} or {@link #createOutputPlan(int...)}.
+     *
+     * The values of shared intermediates can't be read once evaluation completes, so add any other variable to be read
+     * with {@link #getVariableValue(int)} with addVariable, either before or after parsing. Compact programs and
+     * generated code are unaffected.
+     *
+     * @param reuse
+     *            true to share slots; the default is false.
+     */
+    public void setReuseIntermediateSlots(boolean reuse) {
+        reuseIntermediateSlots = reuse;
+        allocateSlots();
+    }
+
+    /**
+     * @return the value set by {@link #setReuseIntermediateSlots(boolean)}, or the default (false)
+     */
+    public boolean getReuseIntermediateSlots() {
+        return reuseIntermediateSlots;
+    }
+
+    /**
+     * Set the number of threads used to parse expressions with many statements. Statements are parsed concurrently,
+     * then merged in order, so variable indices, results and any syntax error reported are the same as for a
+     * sequential parse. Expressions with only a few statements are always parsed on the calling thread, and lazy
+     * parsing (see {@link #setLazyParsing(boolean)}) takes precedence.
+     * 
+     * User functions are called while parsing to collapse constant arguments, so must be thread safe when more than
+     * one thread is used.
+     * 
+     * @param threads
+     *            the number of threads, including the calling thread. 1 (the default) parses sequentially.
+     */
+    public void setParseThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is required");
+        parseThreads = threads;
+    }
+
+    /**
+     * @return the value set by {@link #setParseThreads(int)}, or the default (1)
+     */
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    private void checkSourceLength(int length) {
+        if (maxSourceLength >= 0 && length > maxSourceLength)
+            throw new BudgetExceededEvaldException(Budget.SOURCE_LENGTH, maxSourceLength);
+    }
+
+    private void checkBudget(int statements, int nodes, double cost) {
+        if (maxStatements >= 0 && statements > maxStatements)
+            throw new BudgetExceededEvaldException(Budget.STATEMENTS, maxStatements);
+        if (maxNodes >= 0 && nodes > maxNodes)
+            throw new BudgetExceededEvaldException(Budget.NODES, maxNodes);
+        if (maxCost >= 0 && cost > maxCost)
+            throw new BudgetExceededEvaldException(Budget.COST, maxCost);
+    }
+
+    /**
+     * Limit the length of the expressions which may be parsed. Longer expressions are rejected with a
+     * {@link BudgetExceededEvaldException} before any statement is parsed, or as soon as the limit is read when
+     * parsing from a {@link Readable}.
+     * 
+     * @param characters
+     *            the maximum number of characters, or -1 (the default) for no limit.
+     */
+    public void setMaxSourceLength(int characters) {
+        maxSourceLength = characters;
+    }
+
+    /**
+     * @return the value set by {@link #setMaxSourceLength(int)}, or the default (-1)
+     */
+    public int getMaxSourceLength() {
+        return maxSourceLength;
+    }
+
+    /**
+     * Limit the number of statements in an expression.
+     * 
+     * @param statements
+     *            the maximum number of statements, or -1 (the default) for no limit.
+     */
+    public void setMaxStatements(int statements) {
+        maxStatements = statements;
+    }
+
+    /**
+     * @return the value set by {@link #setMaxStatements(int)}, or the default (-1)
+     */
+    public int getMaxStatements() {
+        return maxStatements;
+    }
+
+    /**
+     * Limit the depth of each statement's tree, where a single value has depth 1. Braces and function arguments are
+     * parsed recursively, so each level of nesting also counts towards the limit while parsing, even if it doesn't
+     * add a level to the tree. As evaluation is recursive, this bounds the stack used to evaluate a statement.
+     * 
+     * @param depth
+     *            the maximum depth, or -1 (the default) for no limit.
+     */
+    public void setMaxDepth(int depth) {
+        maxDepth = depth;
+    }
+
+    /**
+     * @return the value set by {@link #setMaxDepth(int)}, or the default (-1)
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Limit the number of nodes created while parsing an expression, before constant parts are simplified. Parsing
+     * stops as soon as the limit is reached.
+     * 
+     * @param nodes
+     *            the maximum number of nodes over all statements, or -1 (the default) for no limit.
+     */
+    public void setMaxNodes(int nodes) {
+        maxNodes = nodes;
+    }
+
+    /**
+     * @return the value set by {@link #setMaxNodes(int)}, or the default (-1)
+     */
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    /**
+     * Limit the estimated cost of evaluating an expression, as reported by {@link #estimateCost()} when every output
+     * is enabled. Each statement's cost is estimated once it has been parsed and its constant parts simplified.
+     * 
+     * With lazy parsing (see {@link #setLazyParsing(boolean)}), deferred statements count towards the limit when they
+     * are parsed.
+     * 
+     * @param cost
+     *            the maximum estimated cost over all statements, or -1 (the default) for no limit.
+     */
+    public void setMaxCost(double cost) {
+        maxCost = cost;
+    }
+
+    /**
+     * @return the value set by {@link #setMaxCost(double)}, or the default (-1)
+     */
+    public double getMaxCost() {
+        return maxCost;
+    }
+
+    /**
+     * Check the syntax of an expression without parsing it. The same rules are applied as for {@link #parse(String)},
+     * including function arguments and, if {@link #setAllowUndeclared(boolean)} was set to false, undeclared variables.
+     * No nodes are created, no variables are declared, and no exceptions are thrown for invalid expressions, so this is
+     * much cheaper than parsing when most expressions are only checked.
+     * 
+     * Unlike parsing with lazy parsing enabled, every statement is checked.
+     * 
+     * @param expression
+     *            the expression to check.
+     * @param diagnostics
+     *            receives the outcome. May be reused for any number of validations.
+     * @return true if the expression is valid.
+     */
+    public boolean validate(String expression, Diagnostics diagnostics) {
+        return new Validator(this, expression, diagnostics).validate();
+    }
+
+    /**
+     * Check the syntax of an expression without parsing it, as for {@link #validate(String, Diagnostics)}.
+     * 
+     * @return the outcome.
+     */
+    public Diagnostics validate(String expression) {
+        Diagnostics diagnostics = new Diagnostics();
+        validate(expression, diagnostics);
+        return diagnostics;
+    }
+
+    /**
+     * Evaluate the expression, and return a double value.
+     * 
+     * @return the result of evaluating the expression using the current variable values.
+     * 
+     * @throws NullPointerException
+     *             if an operation is attempted on a null variable.
+     */
+    public double evaluate() {
+        if (expressions.isEmpty()) {
+            throw new UninitialisedEvaldException("Parser not initialised");
+        }
+        if (unparsedStatements)
+            parseDeferred();
+        double result = 0;
+        Tier tier = this.tier;
+        //Inputs bound to an array are copied only for compiled statements or recording; those bound to a buffer, always
+        boolean copied = copiedVariables.length == 0;
+        if (!copied && (externalElements == null || recorder != null)) {
+            copyExternalInputs();
+            copied = true;
+            if (recorder != null)
+                recordExternalInputs();
+        }
+        if (tier != null && tier.generation == generation) {
+            if (!copied)
+                copyExternalInputs();
+            result = tier.program.evaluate(valueArray, tier.stack, 0);
+        } else {
+            for (SubExpression expression : expressions) {
+                if (!expression.enabled) {
+                    continue;
+                }
+                if (expression.program != null) {
+                    if (!copied) {
+                        copyExternalInputs();
+                        copied = true;
+                    }
+                    result = expression.program.evaluate(valueArray, expression.stack, 0);
+                    continue;
+                }
+                result = expression.expressionRoot.get();
+                valueArray[expression.outputSlot] = result;
+            }
+            if (compileThreshold >= 0 && !compileRequested && ++evaluationCount >= compileThreshold)
+                requestCompile();
+        }
+        if (recorder != null)
+            recorder.evaluated(result);
+        return result;
+    }
+
+    /**
+     * Evaluate only the statements needed for the outputs of a plan, ignoring the outputs enabled with
+     * {@link #enableOutputs(String...)}, which are left unchanged. The plan's statements are evaluated as a tree until
+     * the plan has been evaluated the number of times set by {@link #setCompileThreshold(int)}, then in their compiled
+     * form. The evaluation is not recorded (see {@link #setRecorder(Recorder)}).
+     * 
+     * The statements read and store this instance's variables, as for {@link #evaluate()}, so only one thread may
+     * evaluate the instance at a time. To compute outputs on several threads at once, give each thread its own frame
+     * with {@link OutputPlan#newFrame()}, and evaluate with {@link OutputPlan#evaluate(double[])}.
+     * 
+     * @param plan
+     *            a plan created by this instance since it was last parsed.
+     * @return the result of the last statement in the plan.
+     */
+    public double evaluate(OutputPlan plan) {
+        if (plan.evald != this || plan.version != expressionVersion) {
+            throw new IllegalArgumentException("The output plan was not created for the current expression");
+        }
+        if (plan.program != null && compileThreshold >= 0 && plan.evaluations >= compileThreshold) {
+            if (copiedVariables.length != 0)
+                copyExternalInputs();
+            return planProgram(plan).evaluate(valueArray, plan.stack, 0);
+        }
+        plan.evaluations++;
+        double result = 0;
+        boolean copied = copiedVariables.length == 0;
+        if (!copied && externalElements == null) {
+            copyExternalInputs();
+            copied = true;
+        }
+        for (int position : plan.statements) {
+            SubExpression expression = expressions.get(position);
+            if (expression.program != null) {
+                if (!copied) {
+                    copyExternalInputs();
+                    copied = true;
+                }
+                result = expression.program.evaluate(valueArray, expression.stack, 0);
+                continue;
+            }
+            result = expression.expressionRoot.get();
+            valueArray[expression.outputSlot] = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return the plan's statements compiled to use the current slots, which are the variable indices unless slots are
+     *         shared or inputs are bound in place.
+     */
+    private CompactProgram planProgram(OutputPlan plan) {
+        if (slots == null)
+            return plan.program;
+        if (plan.slotGeneration != generation) {
+            CompactProgram.Compiler compiler = new CompactProgram.Compiler(true);
+            for (int position : plan.statements) {
+                SubExpression expression = expressions.get(position);
+                compiler.compile(expression.expressionRoot, expression.outputSlot);
+            }
+            plan.slotProgram = compiler.build(listAllVariables());
+            plan.slotGeneration = generation;
+            if (plan.stack.length < plan.slotProgram.maxStackDepth)
+                plan.stack = new double[plan.slotProgram.maxStackDepth];
+        }
+        return plan.slotProgram;
+    }
+
+    /**
+     * Set the variables bound by {@link #bindInputs(int...)} from an array, evaluate the expression, and copy the
+     * variables bound by {@link #bindOutputs(int...)} to another array. This replaces a call to
+     * {@link #setVariable(int, double)} for each input and {@link #getVariableValue(int)} for each output.
+     * 
+     * @param inputs
+     *            the value of each bound input, in the order they were bound.
+     * @param outputs
+     *            receives the value of each bound output, in the order they were bound.
+     * @return the result of evaluating the expression, as for {@link #evaluate()}.
+     */
+    public double evaluate(double[] inputs, double[] outputs) {
+        setBoundInputs(inputs);
+        double result = evaluate();
+        copyOutputs(outputs);
+        return result;
+    }
+
+    /**
+     * Set the variables bound by {@link #bindInputs(int...)} from the inputs most recently published to a frame, and
+     * evaluate the expression. The inputs are always a consistent set, published together, even while other threads
+     * write to the frame; see {@link InputFrame}. Only one thread may evaluate from a frame at a time.
+     * 
+     * @param frame
+     *            a frame with an element for each bound input, in the order they were bound.
+     * @return the result of evaluating the expression, as for {@link #evaluate()}.
+     */
+    public double evaluate(InputFrame frame) {
+        setBoundInputs(frame.acquire());
+        return evaluate();
+    }
+
+    private void setBoundInputs(double[] inputs) {
+        int[] bound = boundInputs;
+        double[] values = valueArray;
+        if (recorder != null) {
+            for (int i = 0; i < bound.length; i++) {
+                setVariable(bound[i], inputs[i]);
+            }
+        } else {
+            for (int i = 0; i < bound.length; i++) {
+                values[bound[i]] = inputs[i];
+            }
+        }
+    }
+
+    /**
+     * Evaluate the expression, reading any inputs bound by {@link #bindInputs(double[], int...)} in place, and copy
+     * the variables bound by {@link #bindOutputs(int...)} to an array.
+     * 
+     * @param outputs
+     *            receives the value of each bound output, in the order they were bound.
+     * @return the result of evaluating the expression, as for {@link #evaluate()}.
+     */
+    public double evaluateInto(double[] outputs) {
+        double result = evaluate();
+        copyOutputs(outputs);
+        return result;
+    }
+
+    private void copyOutputs(double[] outputs) {
+        int[] bound = boundOutputs;
+        double[] values = valueArray;
+        for (int i = 0; i < bound.length; i++) {
+            outputs[i] = values[bound[i]];
+        }
+    }
+
+    /** Discard any compiled form of the expression, which no longer matches the tree */
+    private void invalidateTier() {
+        generation++;
+        tier = null;
+        evaluationCount = 0;
+        compileRequested = false;
+    }
+
+    /**
+     * Compile the enabled statements in the background. The statement list is copied here, as the tree
+     * itself is never modified after parsing but the list is.
+     */
+    private void requestCompile() {
+        compileRequested = true;
+        final int requestGeneration = generation;
+        final List<SubExpression> statements = new ArrayList<SubExpression>();
+        for (SubExpression expression : expressions) {
+            if (expression.enabled)
+                statements.add(expression);
+        }
+        final int[] outputIndices = new int[statements.size()];
+        for (int i = 0; i < outputIndices.length; i++) {
+            outputIndices[i] = statements.get(i).outputSlot;
+        }
+        final String[] variableTokens = listAllVariables();
+        BackgroundCompiler.EXECUTOR.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    CompactProgram.Compiler compiler = new CompactProgram.Compiler(true);
+                    for (int i = 0; i < outputIndices.length; i++) {
+                        compiler.compile(statements.get(i).expressionRoot, outputIndices[i]);
+                    }
+                    //A tier for an earlier generation is ignored by evaluate()
+                    tier = new Tier(requestGeneration, compiler.build(variableTokens));
+                } catch (UncompilableEvaldException e) {
+                    //continue evaluating the tree
+                }
+            }
+        });
+    }
+
+    /**
+     * Enable tiered evaluation. The parsed expression is evaluated as a tree until it has been evaluated the specified
+     * number of times; it is then compiled to a {@link CompactProgram} on a background thread, and evaluation switches
+     * to the compiled form once it is ready. Results are identical in either form. Expressions which cannot be
+     * compacted continue to be evaluated as a tree.
+     * 
+     * Parsing, or changing the enabled outputs, discards the compiled form and restarts the count.
+     * 
+     * @param evaluations
+     *            the number of evaluations after which to compile, or -1 (the default) to always evaluate the tree.
+     */
+    public void setCompileThreshold(int evaluations) {
+        compileThreshold = evaluations;
+    }
+
+    /**
+     * @return the value set by {@link #setCompileThreshold(int)}, or the default (-1)
+     */
+    public int getCompileThreshold() {
+        return compileThreshold;
     }
 
     /**
-     * Construct with the specified set of libraries.
+     * @return true if evaluation is currently using a compiled form of the expression. See {@link #setCompileThreshold(int)}.
      */
-    public Evald(Library... libraries) {
-    	for(Library library : libraries) {
-    		assignParsers(library.getParsers());
-    	}
+    public boolean isCompiled() {
+        Tier tier = this.tier;
+        return tier != null && tier.generation == generation;
     }
-    
+
     /**
-     * Parse the specified expression.
+     * Estimate the relative cost of each evaluation of the currently enabled outputs (see
+     * {@link #enableOutputs(String...)}), where an addition costs 1. Each operation has a fixed cost reflecting its
+     * typical latency, so that for example sin() costs 20; user functions cost {@link ArgFunction#DEFAULT_COST} unless
+     * set with {@link ArgFunction#setCost(double)}. Where only one branch of an if() is evaluated, the average cost of
+     * the branches is used.
      * 
-     * @param expression
-     *            an expression to parse
+     * The estimate is only a rough guide to evaluation time, useful for comparing expressions.
      * 
-     * @throws UndeclaredVariableEvaldException
-     *             if any variable in the expression has not yet been declared, and setAllowUndeclared was not set. The exception lists the variable names in its message.
-     * @throws UnknownMethodEvaldException
-     *             if any method in the expression has not been declared. Set the method using {@link #addUserFunction}.
-     * @throws EvaldException
-     *             on any other syntax error.
+     * @return the estimated cost.
+     * @throws UninitialisedEvaldException
+     *             if no expression has been parsed.
      */
-    public void parse(String expression) {
-        valueArrayCallbacks.clear();
-        usedIndices.clear();
-        usedFunctions.clear();
-        inputSet.clear();
-        
-        parseSubExpressions(expression);
-
-        for (SetValueArrayCallback callback : valueArrayCallbacks) {
-            callback.setValueArray(valueArray);
+    public double estimateCost() {
+        if (expressions.isEmpty()) {
+            throw new UninitialisedEvaldException("Parser not initialised");
         }
-
-        if (allowUndeclared || undeclaredKeyMap.isEmpty())
-        	return;
-        
-        throw new UndeclaredVariableEvaldException(undeclaredKeyMap);
+        parseDeferred();
+        double cost = 0;
+        for (SubExpression expression : expressions) {
+            if (expression.enabled)
+                cost += expression.cost;
+        }
+        return cost;
     }
 
-    private void parseSubExpressions(String expression) {
-        expressions.clear();
-        String[] statements = expression.split(";");
-        if (statements.length == 1) {
-            if (!subExpressionPattern.matcher(statements[0]).find()) {
-                parseSubExpression(resultVariable + " = " + statements[0], false);
-                return;
-            }
+    /**
+     * Create a {@link CompactProgram} from the most recently parsed expression. Only the currently enabled
+     * outputs (see {@link #enableOutputs(String...)}) are included.
+     * 
+     * The compact program is independent of this instance, which may be discarded if only evaluation is required.
+     * 
+     * @return a compact, immutable copy of the parsed expression.
+     * @throws UncompilableEvaldException
+     *             if the expression uses an operation with no compact equivalent.
+     * @throws UninitialisedEvaldException
+     *             if no expression has been parsed.
+     */
+    public CompactProgram compact() {
+        if (expressions.isEmpty()) {
+            throw new UninitialisedEvaldException("Parser not initialised");
         }
-        for (String statement : statements) {
-            statement = statement.trim();
-            if (statement.isEmpty()) {
+        parseDeferred();
+        CompactProgram.Compiler compiler = new CompactProgram.Compiler();
+        for (SubExpression expression : expressions) {
+            if (!expression.enabled) {
                 continue;
             }
-            parseSubExpression(statement, true);
-        }
-    }
-
-    private void parseSubExpression(String subExpression, boolean includeContext) {
-        try {
-            Matcher matcher = subExpressionPattern.matcher(subExpression);
-            if (!matcher.find() || matcher.groupCount() != 2) {
-                throw new EvaldException("Expected an assignment expression.");
-            }
-
-            String variable = matcher.group(1);
-            String expression = matcher.group(2);
-
-            ExpressionString string = new ExpressionString(expression);
-            if (string.expression.isEmpty())
-                throw new EmptyExpressionEvaldException(string);
-
-            int index = addVariable(variable);
-            usedIndices.add(index);
-            ExpressionParser parser = new ExpressionParser(this, string);
-            Node root = parser.parse();
-            Set<Integer> newInputs = new HashSet<Integer>(parser.usedIndices);
-            newInputs.removeAll(usedIndices);
-            usedIndices.addAll(parser.usedIndices);
-            inputSet.addAll(newInputs);
-            expressions.add(new SubExpression(index, root, parser.usedIndices));
-        } catch (AbstractEvaldException e) {
-            if (!includeContext) {
-                throw e;
-            }
-            throw e.withContext(subExpression);
+            compiler.compile(expression.expressionRoot, expression.outputVariableIndex);
         }
+        return compiler.build(listAllVariables());
     }
 
     /**
-     * Evaluate the expression, and return a double value.
+     * Generate the source of a Java class equivalent to the most recently parsed expression. Only the currently
+     * enabled outputs (see {@link #enableOutputs(String...)}) are included. See {@link JavaGenerator}.
      * 
-     * @return the result of evaluating the expression using the current variable values.
-     * 
-     * @throws NullPointerException
-     *             if an operation is attempted on a null variable.
+     * @param packageName
+     *            the package of the generated class, or an empty string for the default package.
+     * @param className
+     *            the simple name of the generated class.
+     * @return the Java source of the class.
+     * @throws UncompilableEvaldException
+     *             if the expression uses a user function, or an operation with no Java equivalent.
+     * @throws UninitialisedEvaldException
+     *             if no expression has been parsed.
      */
-    public double evaluate() {
+    public String generateJava(String packageName, String className) {
         if (expressions.isEmpty()) {
             throw new UninitialisedEvaldException("Parser not initialised");
         }
-        double result = 0;
+        parseDeferred();
+        JavaGenerator generator = new JavaGenerator(listAllVariables());
         for (SubExpression expression : expressions) {
             if (!expression.enabled) {
                 continue;
             }
-            result = expression.expressionRoot.get();
-            valueArray[expression.outputVariableIndex] = result;
+            generator.generate(expression.expressionRoot, expression.outputVariableIndex);
         }
-        return result;
+        return generator.build(packageName, className);
     }
 
     public int getVariableIndex(String token) {
-        Integer result = keyIndexMap.get(token);
-        if (result == null) {
+        int result = keyIndexMap.get(token);
+        if (result == TokenIndexMap.MISSING && unparsedStatements) {
+            parseDeferred();
+            result = keyIndexMap.get(token);
+        }
+        if (result == TokenIndexMap.MISSING) {
             throw new UndeclaredVariableEvaldException(token);
         }
         return result;
@@ -228,6 +1330,120 @@ public class Evald {
         return valueArray[getVariableIndex(token)];
     }
 
+    /**
+     * Set the variables read from the inputs array by {@link #evaluate(double[], double[])}. Bound variables are kept
+     * as if added with {@link #addVariable(String)}.
+     * 
+     * @param variableIndex
+     *            the index of the variable set from each element of the inputs array.
+     * @throws IndexOutOfBoundsException
+     *             if an index was not obtained from this instance
+     */
+    public void bindInputs(int... variableIndex) {
+        boundInputs = bindVariables(variableIndex);
+    }
+
+    /**
+     * Set the variables written to the outputs array by {@link #evaluate(double[], double[])}. Bound variables are kept
+     * as if added with {@link #addVariable(String)}, so their values are available even when
+     * {@link #setReuseIntermediateSlots(boolean)} is enabled.
+     * 
+     * @param variableIndex
+     *            the index of the variable copied to each element of the outputs array.
+     * @throws IndexOutOfBoundsException
+     *             if an index was not obtained from this instance
+     */
+    public void bindOutputs(int... variableIndex) {
+        boundOutputs = bindVariables(variableIndex);
+    }
+
+    private int[] bindVariables(int[] variableIndex) {
+        boolean reallocate = false;
+        for (int index : variableIndex) {
+            if (index < 0 || index >= valueArraySize)
+                throw new IndexOutOfBoundsException("No variable has index " + index);
+        }
+        for (int index : variableIndex) {
+            reallocate |= declare(index);
+        }
+        if (reallocate)
+            allocateSlots();
+        return variableIndex.clone();
+    }
+
+    /**
+     * Read inputs in place from an array owned by the caller, rather than setting each with
+     * {@link #setVariable(int, double)}. Changes to the array are seen by the next evaluation, with no copying. Bound
+     * variables are kept as if added with {@link #addVariable(String)}, but {@link #getVariableValue(int)} doesn't
+     * return their values. A bound variable which is also set by a statement is not read from the array.
+     * 
+     * Replaces any inputs previously bound to an array or buffer. Compiled statements (see
+     * {@link #setCompileThreshold(int)}) read a copy of the inputs, taken as each evaluation starts. While a recorder is
+     * set (see {@link #setRecorder(Recorder)}), the inputs are also copied, and recorded, as each evaluation starts.
+     * 
+     * @param source
+     *            the array holding the inputs.
+     * @param variableIndex
+     *            the index of the variable read from each element of the array, or -1 for an element which is not
+     *            an input.
+     * @throws IndexOutOfBoundsException
+     *             if an index was not obtained from this instance, or there are more indices than elements
+     */
+    public void bindInputs(double[] source, int... variableIndex) {
+        bindExternalInputs(source, null, 0, source.length, variableIndex);
+    }
+
+    /**
+     * Read inputs in place from a buffer owned by the caller, as for {@link #bindInputs(double[], int...)}. Elements
+     * are found by absolute position, so the buffer's position is ignored. A buffer without an accessible array, such
+     * as a direct buffer, can't be read in place, so the inputs are copied from it as each evaluation starts.
+     * 
+     * @param source
+     *            the buffer holding the inputs.
+     * @param variableIndex
+     *            the index of the variable read from each element of the buffer, or -1 for an element which is not
+     *            an input.
+     * @throws IndexOutOfBoundsException
+     *             if an index was not obtained from this instance, or there are more indices than elements
+     */
+    public void bindInputs(DoubleBuffer source, int... variableIndex) {
+        if (source.hasArray())
+            bindExternalInputs(source.array(), null, source.arrayOffset(), source.limit(), variableIndex);
+        else
+            bindExternalInputs(null, source, 0, source.limit(), variableIndex);
+    }
+
+    /**
+     * Stop reading inputs from the array or buffer bound by {@link #bindInputs(double[], int...)}. Inputs are then read
+     * from the instance, and must be set again.
+     */
+    public void unbindInputs() {
+        if (externalVariables == null)
+            return;
+        externalArray = null;
+        externalBuffer = null;
+        externalVariables = null;
+        allocateSlots();
+    }
+
+    private void bindExternalInputs(double[] array, DoubleBuffer buffer, int offset, int length, int[] variableIndex) {
+        if (variableIndex.length > length)
+            throw new IndexOutOfBoundsException("Only " + length + " elements are available for " + variableIndex.length + " inputs");
+        for (int index : variableIndex) {
+            if (index < -1 || index >= valueArraySize)
+                throw new IndexOutOfBoundsException("No variable has index " + index);
+        }
+        for (int index : variableIndex) {
+            if (index >= 0)
+                declare(index);
+        }
+        externalArray = array;
+        externalBuffer = buffer;
+        externalOffset = offset;
+        externalVariables = variableIndex.clone();
+        allocateSlots();
+    }
+
     /**
      * Declare a variable to be used by the expression parser. The returned integer can be used as an index in calls to {@link #setVariable()} for faster updates.
      * 
@@ -286,39 +1502,316 @@ public class Evald {
      * Add a variable. If the variable has an index, add it to valueArray AND valueList, otherwise add it only to valueList.
      */
     private int addVariableToList(String token, Double value) {
+        int result = addParsedVariable(token, value);
+        if (declare(result) && slots != null)
+            allocateSlots();
+        return result;
+    }
+
+    /**
+     * Keep a variable required by the caller, as if added with {@link #addVariable(String)}.
+     * 
+     * @return true if the variable must no longer share a slot
+     */
+    private boolean declare(int index) {
+        if (declaredIndices.get(index))
+            return false;
+        declaredIndices.set(index);
+        return slots != null && index < slots.length;
+    }
+
+    /**
+     * Add a variable read or set by a statement, which {@link #compactVariables()} removes once no statement uses it,
+     * unless the caller also adds it.
+     */
+    int addParsedVariable(String token) {
+        return addParsedVariable(token, 0.0);
+    }
+
+    private int addParsedVariable(String token, double value) {
         if (!validToken(token))
             throw new InvalidTokenEvaldException(token);
 
-        Integer result = keyIndexMap.get(token);
-        if (result == null) {
+        int result = keyIndexMap.get(token);
+        if (result == TokenIndexMap.MISSING) {
             result = valueArraySize++;
             keyIndexMap.put(token, result);
             validateValueArrayIndex(result);
             variableToken[result] = token;
         }
         valueArray[result] = value;
+        if (recorder != null)
+            recorder.set(this, result, value);
         return result;
     }
 
+    /**
+     * Remove the variables which are no longer needed, so that an instance used to parse many different expressions
+     * doesn't keep every variable it has ever seen. A variable is kept if it is used by the current expression, was
+     * added with {@link #addVariable(String)} or bound with {@link #bindInputs(int...)}, or is an output enabled with
+     * {@link #enableOutputs(int...)}. Kept variables keep their values and their order, but may move to lower indices.
+     * 
+     * Any indices held by the caller must be updated with the returned table. Compact programs and generated code
+     * created earlier are unaffected, as they hold their own variable indices.
+     * 
+     * @return a table from each previous variable index to its new index, or -1 if the variable was removed.
+     */
+    public int[] compactVariables() {
+        BitSet keep = (BitSet) declaredIndices.clone();
+        for (SubExpression expression : expressions) {
+            keep.set(expression.outputVariableIndex);
+            for (int index : expression.usedVariables) {
+                keep.set(index);
+            }
+        }
+        if (requestedOutputs != null) {
+            for (int index : requestedOutputs) {
+                keep.set(index);
+            }
+        }
+
+        int[] remap = new int[valueArraySize];
+        int size = 0;
+        for (int index = 0; index < valueArraySize; index++) {
+            if (!keep.get(index)) {
+                remap[index] = -1;
+                undeclaredKeyMap.remove(variableToken[index]);
+                continue;
+            }
+            remap[index] = size;
+            valueArray[size] = valueArray[index];
+            variableToken[size] = variableToken[index];
+            size++;
+        }
+        int length = Math.max(INITIAL_VALUE_ARRAY_SIZE, size);
+        valueArray = Arrays.copyOf(valueArray, length);
+        variableToken = Arrays.copyOf(variableToken, length);
+        valueArraySize = size;
+        keyIndexMap.clear();
+        for (int index = 0; index < size; index++) {
+            keyIndexMap.put(variableToken[index], index);
+        }
+
+        remap(declaredIndices, remap);
+        remap(usedIndices, remap);
+        remap(inputSet, remap);
+        remap(plannedOutputs, remap);
+        slots = null;
+        externalElements = null;
+        for (SubExpression expression : expressions) {
+            expression.outputVariableIndex = remap[expression.outputVariableIndex];
+            //The remapping preserves order, so the indices remain sorted
+            for (int i = 0; i < expression.usedVariables.length; i++) {
+                expression.usedVariables[i] = remap[expression.usedVariables[i]];
+            }
+            bindStatement(expression, remap);
+            if (expression.program != null)
+                compileStatement(expression);
+        }
+        if (requestedOutputs != null) {
+            for (int i = 0; i < requestedOutputs.length; i++) {
+                requestedOutputs[i] = remap[requestedOutputs[i]];
+            }
+        }
+        //Bound variables are declared, so are always kept
+        for (int i = 0; i < boundInputs.length; i++) {
+            boundInputs[i] = remap[boundInputs[i]];
+        }
+        for (int i = 0; i < boundOutputs.length; i++) {
+            boundOutputs[i] = remap[boundOutputs[i]];
+        }
+        if (externalVariables != null) {
+            for (int i = 0; i < externalVariables.length; i++) {
+                if (externalVariables[i] >= 0)
+                    externalVariables[i] = remap[externalVariables[i]];
+            }
+        }
+        invalidateTier();
+        //Plans are compiled with the previous indices
+        expressionVersion++;
+        if (reuseIntermediateSlots || externalVariables != null)
+            allocateSlots();
+        if (recorder != null)
+            recorder.compacted(this);
+        return remap;
+    }
+
+    private static void remap(BitSet indices, int[] remap) {
+        BitSet remapped = new BitSet();
+        for (int index = indices.nextSetBit(0); index >= 0; index = indices.nextSetBit(index + 1)) {
+            if (remap[index] >= 0)
+                remapped.set(remap[index]);
+        }
+        indices.clear();
+        indices.or(remapped);
+    }
+
     private void validateValueArrayIndex(int index) {
         if (valueArray != null && index < valueArray.length) {
             return;
         }
         if (valueArray == null) {
-            valueArray = new double[ARRAY_RESIZE_BUFFER];
-            variableToken = new String[ARRAY_RESIZE_BUFFER];
-        } else if (valueArray.length <= index) {
-            double[] oldValues = valueArray;
-            String[] oldTokens = variableToken;
-            int newSize = index + ARRAY_RESIZE_BUFFER;
-            valueArray = new double[newSize];
-            variableToken = new String[newSize];
-            System.arraycopy(oldValues, 0, valueArray, 0, oldValues.length);
-            System.arraycopy(oldTokens, 0, variableToken, 0, oldTokens.length);
+            int size = Math.max(INITIAL_VALUE_ARRAY_SIZE, index + 1);
+            valueArray = new double[size];
+            variableToken = new String[size];
+        } else {
+            //Grow geometrically, so that declaring n variables copies the arrays, and binds the statements, O(log n) times
+            int newSize = Math.max(valueArray.length * 2, index + 1);
+            valueArray = Arrays.copyOf(valueArray, newSize);
+            variableToken = Arrays.copyOf(variableToken, newSize);
+        }
+        for (SubExpression expression : expressions) {
+            bindStatement(expression, null);
+        }
+    }
+
+    /**
+     * Bind a statement's variables, and its result, to their slots in the value array.
+     * 
+     * @param remap
+     *            a table from each variable's current index to a new index, or null to keep the current indices.
+     */
+    private void bindStatement(SubExpression statement, int[] remap) {
+        if (statement.expressionRoot != null)
+            Variable.bindAll(statement.expressionRoot, valueArray, remap, slots, externalArray, externalElements);
+        int output = statement.outputVariableIndex;
+        statement.outputSlot = slots != null && output < slots.length ? slots[output] : output;
+    }
+
+    /**
+     * Choose the slot each variable is evaluated from, and bind every statement to them. Slots are only shared once
+     * every statement has been parsed, as the variables a deferred statement reads aren't known exactly.
+     */
+    private void allocateSlots() {
+        invalidateTier();
+        slots = reuseIntermediateSlots && !unparsedStatements ? shareIntermediateSlots() : null;
+        mapExternalInputs();
+        for (SubExpression expression : expressions) {
+            bindStatement(expression, null);
+            if (expression.program != null)
+                compileStatement(expression);
+        }
+    }
+
+    /**
+     * Find the element of the external array or buffer each bound input is read from. A bound variable which is set by
+     * a statement is read from the value array, as the statement stores its result there.
+     */
+    private void mapExternalInputs() {
+        externalElements = null;
+        copiedVariables = copiedElements = IndexList.EMPTY;
+        if (externalVariables == null)
+            return;
+        BitSet outputs = new BitSet();
+        for (SubExpression expression : expressions) {
+            outputs.set(expression.outputVariableIndex);
+        }
+        int count = 0;
+        for (int index : externalVariables) {
+            if (index >= 0 && !outputs.get(index))
+                count++;
+        }
+        int[] elements = new int[valueArraySize];
+        Arrays.fill(elements, -1);
+        copiedVariables = new int[count];
+        copiedElements = new int[count];
+        for (int i = 0, j = 0; i < externalVariables.length; i++) {
+            int index = externalVariables[i];
+            if (index < 0 || outputs.get(index))
+                continue;
+            elements[index] = externalOffset + i;
+            copiedVariables[j] = index;
+            copiedElements[j++] = externalOffset + i;
+        }
+        if (externalArray != null)
+            externalElements = elements;
+    }
+
+    /** Copy the bound inputs into the value array, for statements which don't read them in place */
+    private void copyExternalInputs() {
+        double[] values = valueArray;
+        int[] variables = copiedVariables;
+        int[] elements = copiedElements;
+        if (externalArray != null) {
+            double[] external = externalArray;
+            for (int i = 0; i < variables.length; i++) {
+                values[variables[i]] = external[elements[i]];
+            }
+        } else {
+            DoubleBuffer external = externalBuffer;
+            for (int i = 0; i < variables.length; i++) {
+                values[variables[i]] = external.get(elements[i]);
+            }
+        }
+    }
+
+    /** Record the bound inputs copied into the value array, as if each had been set */
+    private void recordExternalInputs() {
+        for (int index : copiedVariables) {
+            recorder.set(this, index, valueArray[index]);
+        }
+    }
+
+    /**
+     * Share slots between intermediate variables: those set by a single statement, not read before that statement
+     * sets them, and not added by the caller or requested as an output. Statements are scanned in order. The slot of an intermediate is released
+     * by the last statement to read it, as that statement reads all of its variables before storing its result, so may
+     * store its result in the same slot.
+     * 
+     * @return a table from each variable index to the slot it is evaluated from.
+     */
+    private int[] shareIntermediateSlots() {
+        int size = valueArraySize;
+        int[] result = new int[size];
+        int[] definitions = new int[size];
+        int[] lastUse = new int[size];
+        BitSet readFirst = new BitSet();
+        for (int index = 0; index < size; index++) {
+            result[index] = index;
+            lastUse[index] = -1;
+        }
+        for (int i = 0; i < expressions.size(); i++) {
+            SubExpression expression = expressions.get(i);
+            for (int index : expression.usedVariables) {
+                if (definitions[index] == 0)
+                    readFirst.set(index);
+                lastUse[index] = i;
+            }
+            definitions[expression.outputVariableIndex]++;
         }
-        for (SetValueArrayCallback callback : valueArrayCallbacks) {
-            callback.setValueArray(valueArray);
+        //Variables the caller may read after evaluation keep their own slot
+        BitSet pinned = (BitSet) declaredIndices.clone();
+        pinned.or(plannedOutputs);
+        if (requestedOutputs != null) {
+            for (int index : requestedOutputs) {
+                pinned.set(index);
+            }
+        }
+        BitSet shared = new BitSet();
+        for (SubExpression expression : expressions) {
+            int output = expression.outputVariableIndex;
+            if (definitions[output] == 1 && !readFirst.get(output) && !pinned.get(output))
+                shared.set(output);
+        }
+
+        //The released slots, reused most recently released first
+        int[] free = new int[size];
+        int freeCount = 0;
+        for (int i = 0; i < expressions.size(); i++) {
+            SubExpression expression = expressions.get(i);
+            for (int index : expression.usedVariables) {
+                if (shared.get(index) && lastUse[index] == i)
+                    free[freeCount++] = result[index];
+            }
+            int output = expression.outputVariableIndex;
+            if (!shared.get(output))
+                continue;
+            //An intermediate without a free slot takes its own, which it then shares with later intermediates
+            result[output] = freeCount > 0 ? free[--freeCount] : output;
+            if (lastUse[output] < i)
+                free[freeCount++] = result[output];
         }
+        return result;
     }
 
     /**
@@ -335,6 +1828,8 @@ public class Evald {
      */
     public void setVariable(int index, double value) {
         valueArray[index] = value;
+        if (recorder != null)
+            recorder.set(this, index, value);
     }
 
     /**
@@ -353,6 +1848,8 @@ public class Evald {
      */
     public void setVariable(int index, float value) {
         valueArray[index] = (double) value;
+        if (recorder != null)
+            recorder.set(this, index, value);
     }
 
     /**
@@ -371,6 +1868,8 @@ public class Evald {
      */
     public void setVariable(int index, int value) {
         valueArray[index] = (double) value;
+        if (recorder != null)
+            recorder.set(this, index, value);
     }
 
     /**
@@ -405,6 +1904,7 @@ public class Evald {
      * @return an array of undeclared variable names found in the string
      */
     public String[] listUndeclared() {
+        parseDeferred();
         return undeclaredKeyMap.toArray(new String[] {});
     }
 
@@ -412,23 +1912,40 @@ public class Evald {
      * List all variables currently defined in this Evald instance
      */
     public String[] listAllVariables() {
+        //No arrays are allocated until the first variable is added
+        if (valueArraySize == 0)
+            return new String[0];
         String[] result = new String[valueArraySize];
         System.arraycopy(variableToken, 0, result, 0, valueArraySize);
         return result;
     }
 
-    private String[] tokensFromIndices(Collection<Integer> indices) {
-        List<String> tokens = new ArrayList<>(indices.size());
-        for (Integer index : indices) {
-            tokens.add(variableToken[index]);
+    private String[] tokensFromIndices(BitSet indices) {
+        String[] tokens = new String[indices.cardinality()];
+        int i = 0;
+        for (int index = indices.nextSetBit(0); index >= 0; index = indices.nextSetBit(index + 1)) {
+            tokens[i++] = variableToken[index];
+        }
+        return tokens;
+    }
+
+    /**
+     * Add the variables used by a statement to the used variables, and those not set by an earlier statement to the
+     * inputs.
+     */
+    private void addInputs(int[] usedVariables, BitSet earlier) {
+        for (int index : usedVariables) {
+            if (!earlier.get(index))
+                inputSet.set(index);
+            usedIndices.set(index);
         }
-        return tokens.toArray(new String[] {});
     }
 
     /**
      * List all variables used by this expression which are not defined by the expression itself
      */
     public String[] listAllInputs() {
+        parseDeferred();
         return tokensFromIndices(inputSet);
     }
 
@@ -436,8 +1953,9 @@ public class Evald {
      * List all variables set by this expression, which are not also a required input
      */
     public String[] listAllOutputOrIntermediateVariables() {
-        Set<Integer> indices = new HashSet<>(usedIndices);
-        indices.removeAll(inputSet);
+        parseDeferred();
+        BitSet indices = (BitSet) usedIndices.clone();
+        indices.andNot(inputSet);
         return tokensFromIndices(indices);
     }
 
@@ -449,15 +1967,19 @@ public class Evald {
      *            an array of variable tokens specifying the outputs to enable. The array must not be empty.
      */
     public void enableOutputs(String... outputToken) {
+        enableOutputs(outputIndices(outputToken));
+    }
+
+    private int[] outputIndices(String[] outputToken) {
         int[] outputIndex = new int[outputToken.length];
         for (int i = 0; i < outputToken.length; i++) {
-            Integer index = keyIndexMap.get(outputToken[i]);
-            if (index == null) {
+            int index = keyIndexMap.get(outputToken[i]);
+            if (index == TokenIndexMap.MISSING) {
                 throw new UndeclaredVariableEvaldException(outputToken[i]);
             }
             outputIndex[i] = index;
         }
-        enableOutputs(outputIndex);
+        return outputIndex;
     }
 
     /**
@@ -468,30 +1990,116 @@ public class Evald {
      *            an array of variable indices specifying the outputs to enable. The array must not be empty.
      */
     public void enableOutputs(int... outputIndex) {
-        int len = expressions.size() - 1;
-        Set<Integer> required = new HashSet<>();
+        invalidateTier();
+        requestedOutputs = outputIndex.clone();
+        BitSet statements = requiredStatements;
+        findRequiredStatements(outputIndex, requiredIndices, statements);
+        for (int i = 0; i < expressions.size(); i++) {
+            expressions.get(i).enabled = statements.get(i);
+        }
+        if (reuseIntermediateSlots)
+            allocateSlots();
+        if (recorder != null)
+            recorder.outputsEnabled(outputIndex);
+    }
+
+    /**
+     * Find the statements needed to compute the outputs, walking back from the last statement.
+     * 
+     * @param required
+     *            set to the variables read by the statements found
+     * @param statements
+     *            set to the positions of the statements found
+     */
+    private void findRequiredStatements(int[] outputIndex, BitSet required, BitSet statements) {
+        required.clear();
+        statements.clear();
         for (int index : outputIndex) {
-            required.add(index);
+            required.set(index);
         }
-        for(int i = len; i >= 0; i--) {
+        for (int i = expressions.size() - 1; i >= 0; i--) {
             SubExpression expression = expressions.get(i);
-            expression.enabled = required.contains(expression.outputVariableIndex);
-            if (expression.enabled) {
-                required.addAll(expression.usedVariables);
+            if (required.get(expression.outputVariableIndex)) {
+                statements.set(i);
+                for (int index : expression.usedVariables) {
+                    required.set(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the statements needed to compute a set of outputs, for {@link #evaluate(OutputPlan)}, and compile them for
+     * evaluation on other threads with {@link OutputPlan#evaluate(double[])}.
+     * 
+     * @param outputToken
+     *            the tokens of the outputs to compute. The array must not be empty.
+     * @return a plan which is valid until the instance is next parsed, or its variables compacted.
+     */
+    public OutputPlan createOutputPlan(String... outputToken) {
+        return createOutputPlan(outputIndices(outputToken));
+    }
+
+    /**
+     * Find the statements needed to compute a set of outputs, for {@link #evaluate(OutputPlan)}, and compile them for
+     * evaluation on other threads with {@link OutputPlan#evaluate(double[])}.
+     * 
+     * @param outputIndex
+     *            the indices of the outputs to compute. The array must not be empty.
+     * @return a plan which is valid until the instance is next parsed, or its variables compacted.
+     */
+    public OutputPlan createOutputPlan(int... outputIndex) {
+        if (expressions.isEmpty()) {
+            throw new UninitialisedEvaldException("Parser not initialised");
+        }
+        BitSet statements = new BitSet();
+        findRequiredStatements(outputIndex, new BitSet(), statements);
+        parseDeferred(statements);
+        boolean reallocate = false;
+        for (int index : outputIndex) {
+            if (!plannedOutputs.get(index)) {
+                plannedOutputs.set(index);
+                reallocate |= slots != null && index < slots.length;
+            }
+        }
+        if (reallocate)
+            allocateSlots();
+        int[] positions = new int[statements.cardinality()];
+        for (int i = statements.nextSetBit(0), j = 0; i >= 0; i = statements.nextSetBit(i + 1)) {
+            positions[j++] = i;
+        }
+        CompactProgram program;
+        try {
+            CompactProgram.Compiler compiler = new CompactProgram.Compiler();
+            for (int position : positions) {
+                SubExpression expression = expressions.get(position);
+                compiler.compile(expression.expressionRoot, expression.outputVariableIndex);
             }
+            program = compiler.build(listAllVariables());
+        } catch (UncompilableEvaldException e) {
+            //evaluate the tree
+            program = null;
         }
+        return new OutputPlan(this, expressionVersion, positions, program, valueArray);
     }
 
     public void enableAllOutputs() {
+        invalidateTier();
+        requestedOutputs = null;
         for (SubExpression expression : expressions) {
             expression.enabled = true;
         }
+        if (reuseIntermediateSlots)
+            allocateSlots();
+        if (recorder != null)
+            recorder.allOutputsEnabled();
     }
 
     /**
      * List all functions currently in use by this instance's expression.
      */
     public String[] listActiveFunctions() {
+        parseDeferred();
         return usedFunctions.toArray(new String[] {});
     }
 
@@ -499,6 +2107,7 @@ public class Evald {
      * List all variables currently in use by this instance's expression (including undefined variables, if permitted by {@link #setAllowUndeclared(boolean)}).
      */
     public String[] listActiveVariables() {
+        parseDeferred();
         if (expressions.isEmpty() || usedIndices.isEmpty())
             return new String[] {};
         
@@ -552,6 +2161,46 @@ public class Evald {
         allowMultiplePostfixOperators = allow;
     }
 
+    /**
+     * Determine whether constant parts of an expression are simplified when parsing.
+     * 
+     * @return the value set by {@link #setOptimisation(boolean)}, or the default (true)
+     */
+    public boolean getOptimisation() {
+        return optimisation;
+    }
+
+    /**
+     * Enable or disable simplification of constant parts of an expression when parsing. Disabling
+     * optimisation is only useful for testing, to compare the optimised and unoptimised results.
+     * 
+     * @param enabled
+     *            true to optimise parsed expressions (the default), false to evaluate them exactly as written.
+     */
+    public void setOptimisation(boolean enabled) {
+        optimisation = enabled;
+    }
+
+    /**
+     * Record subsequent parsing, variable updates and evaluation to the specified recorder, for later
+     * replay with {@link Replayer}. The current value of every declared variable is recorded immediately.
+     * 
+     * @param recorder
+     *            the recorder to use, or null to stop recording. The recorder is not closed by this instance.
+     */
+    public void setRecorder(Recorder recorder) {
+        this.recorder = recorder;
+        if (recorder != null)
+            recorder.attached(this);
+    }
+
+    /**
+     * @return the recorder set by {@link #setRecorder(Recorder)}, or null if not recording.
+     */
+    public Recorder getRecorder() {
+        return recorder;
+    }
+
     /**
      * Remove a loaded function that uses the specified token. This will
      * only affect new parsing - existing evaluation will still use the
@@ -646,6 +2295,7 @@ public class Evald {
      * @return a multiline string containing the final optimised expression tree.
      */
     public String toTree() {
+        parseDeferred();
         StringBuilder result = new StringBuilder();
         for(SubExpression expression : expressions) {
             if (!expression.enabled) {
@@ -680,16 +2330,12 @@ public class Evald {
         return validTokenPattern.matcher(token).find();
     }
 
-    void addValueArrayCallback(SetValueArrayCallback valueArrayCallback) {
-        valueArrayCallbacks.add(valueArrayCallback);
-    }
-
     void addUsedIndex(int variableIndex) {
-        if (usedIndices.contains(variableIndex)) {
+        if (usedIndices.get(variableIndex)) {
             return;
         }
-        inputSet.add(variableIndex);
-        usedIndices.add(variableIndex);
+        inputSet.set(variableIndex);
+        usedIndices.set(variableIndex);
     }
 
     void addUsedFunction(String functionName) {
@@ -1,35 +1,95 @@
 package net.benmann.evald;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.benmann.evald.AbstractEvaldException.BudgetExceededEvaldException;
+import net.benmann.evald.AbstractEvaldException.BudgetExceededEvaldException.Budget;
 import net.benmann.evald.AbstractEvaldException.EmptyExpressionEvaldException;
 import net.benmann.evald.AbstractEvaldException.EvaldException;
 import net.benmann.evald.AbstractEvaldException.OperatorExpectedEvaldException;
 import net.benmann.evald.AbstractEvaldException.UnknownMethodEvaldException;
 
 class ExpressionParser {
+    /**
+     * Trees deeper than this are not collapsed or evaluated recursively, as they may exhaust the stack. They are
+     * instead evaluated in postfix order; see {@link Evald}.
+     */
+    static final int MAX_RECURSIVE_DEPTH = 256;
+
     private ExpressionString expression;
     final Evald evald;
-    final Set<Integer> usedIndices = new HashSet<>();
+    /** The indices of the variables read, shared by the parsers of nested expressions */
+    final IndexList usedIndices;
+    final Set<String> usedFunctions;
+    /**
+     * The variables read by a symbolic parse, in the order they were read, or null if variables are declared in the
+     * Evald instance as they are read. A symbolic parse doesn't modify the instance, so may run on any thread.
+     */
+    final List<Variable> symbols;
+
+    /** The number of nodes created while parsing a statement, shared by the parsers of its nested expressions */
+    static final class NodeCount {
+        int nodes;
+    }
+
+    final NodeCount count;
+    /** The number of enclosing braces or function calls */
+    private final int nesting;
+    /** The result of the most recent nested parse, which was counted by the nested parser */
+    private Node nested;
+    /** The depth and estimated cost of evaluating the parsed statement, once a top level expression has been parsed */
+    int depth;
+    double cost;
 
     ExpressionParser(Evald evald, ExpressionString expression) {
+        this(evald, expression, null, new IndexList(), new HashSet<String>(), new NodeCount(), 0);
+    }
+
+    private ExpressionParser(Evald evald, ExpressionString expression, List<Variable> symbols, IndexList usedIndices, Set<String> usedFunctions, NodeCount count,
+            int nesting) {
         this.expression = expression;
         this.evald = evald;
+        this.symbols = symbols;
+        this.usedIndices = usedIndices;
+        this.usedFunctions = usedFunctions;
+        this.count = count;
+        this.nesting = nesting;
+    }
+
+    static ExpressionParser symbolic(Evald evald, ExpressionString expression) {
+        return new ExpressionParser(evald, expression, new ArrayList<Variable>(), new IndexList(), new HashSet<String>(), new NodeCount(), 0);
     }
 
     void addUsedIndex(int index) {
         usedIndices.add(index);
     }
 
+    void addUsedFunction(String token) {
+        usedFunctions.add(token);
+        if (symbols == null)
+            evald.addUsedFunction(token);
+    }
+
     Node parse(String expression) {
-        ExpressionParser parser = new ExpressionParser(evald, new ExpressionString(expression));
+        //Nested expressions are parsed recursively, so are limited before they can exhaust the stack
+        if (evald.getMaxDepth() >= 0 && nesting >= evald.getMaxDepth())
+            throw new BudgetExceededEvaldException(Budget.DEPTH, evald.getMaxDepth());
+        ExpressionParser parser = new ExpressionParser(evald, new ExpressionString(expression), symbols, usedIndices, usedFunctions, count, nesting + 1);
         Node node = parser.parse();
-        usedIndices.addAll(parser.usedIndices);
+        nested = node;
         return node;
     }
+
+    private void addNode() {
+        count.nodes++;
+        if (evald.getMaxNodes() >= 0 && count.nodes > evald.getMaxNodes())
+            throw new BudgetExceededEvaldException(Budget.NODES, evald.getMaxNodes());
+    }
     
     Node root;		//root node of the tree.
     Node lastValue;	//The last value we parsed.
@@ -38,7 +98,7 @@ class ExpressionParser {
     boolean readPrefix() {
     	PrefixOperatorNode node = null;
     	
-        for (PrefixOperatorParser parser : evald.prefixOperatorParsers) {
+        for (PrefixOperatorParser parser : evald.prefixOperatorParsers.candidates(expression.expression, 0, expression.expression.length())) {
         	node = parser.parse(expression);
         	if (node != null)
         		break;
@@ -46,6 +106,7 @@ class ExpressionParser {
         
         if (node == null)
         	return false;
+        addNode();
         
         if (lastOperator != null) {
             assert (lastOperator.b == null);
@@ -64,7 +125,7 @@ class ExpressionParser {
         Node node = null;
         String preParse = expression.expression;
 
-        for (ValueParser parser : evald.valueParsers) {
+        for (ValueParser parser : evald.valueParsers.candidates(expression.expression, 0, expression.expression.length())) {
             node = parser.parse(this, expression);
             if (node != null)
                 break;
@@ -78,6 +139,8 @@ class ExpressionParser {
             if (!expression.expression.isEmpty() && !evald.getImplicitMultiplication() && expression.expression.charAt(0) == '(')
                 throw new UnknownMethodEvaldException(preParse);
         }
+        if (node != nested)
+            addNode();
 
         if (lastOperator != null) {
             assert (lastOperator.b == null);
@@ -95,7 +158,7 @@ class ExpressionParser {
     boolean readPostfix() {
         PostfixOperatorNode node = null;
         PostfixOperatorParser parser = null;
-		for(PostfixOperatorParser postfixParser : evald.postfixOperatorParsers) {
+		for(PostfixOperatorParser postfixParser : evald.postfixOperatorParsers.candidates(expression.expression, 0, expression.expression.length())) {
 			parser = postfixParser;
             node = postfixParser.parse(expression);
             if (node != null)
@@ -104,6 +167,7 @@ class ExpressionParser {
 
         if (node == null)
             return false;
+        addNode();
 
         Node b;
         
@@ -140,7 +204,7 @@ class ExpressionParser {
     	BinaryOperatorNode node = null;
     	BinaryOperatorParser parser = null;
     	
-        for (BinaryOperatorParser operatorParser : evald.binaryOperatorParsers) {
+        for (BinaryOperatorParser operatorParser : evald.binaryOperatorParsers.candidates(expression.expression, 0, expression.expression.length())) {
             node = operatorParser.parse(expression);
             if (node != null) {
             	parser = operatorParser;
@@ -161,6 +225,7 @@ class ExpressionParser {
 
         if (node == null)
             throw new OperatorExpectedEvaldException(expression);
+        addNode();
         
         if (lastValue == null)
         	throw new EvaldException("The operator "+parser.token+" at " + msg + " requires an lvalue");
@@ -226,7 +291,21 @@ class ExpressionParser {
             throw new EvaldException("Expected a value after " + lastOperator.token);
 
         assert (root != null);
-        root = collapse(root);
+        if (evald.getOptimisation())
+            root = FoldNode.flatten(root);
+        int maxDepth = evald.getMaxDepth();
+        //Only measure far enough to check the budget, and whether the tree is too deep to evaluate recursively
+        int depth = TreeSize.depth(root, Math.max(maxDepth, MAX_RECURSIVE_DEPTH));
+        if (maxDepth >= 0 && depth > maxDepth)
+            throw new BudgetExceededEvaldException(Budget.DEPTH, maxDepth);
+        if (depth <= MAX_RECURSIVE_DEPTH)
+            root = collapse(root);
+        //A collapsed subtree may return a node which still links to its discarded parent.
+        root.parent = null;
+        if (nesting == 0) {
+            this.depth = depth;
+            cost = TreeSize.cost(root);
+        }
         return root;
     }
 
@@ -234,6 +313,8 @@ class ExpressionParser {
      * Return this node, with constant expressions collapsed to constant values.
      */
     Node collapse(Node node) {
+        if (!evald.getOptimisation())
+            return node;
         return node.collapse();
     }
 
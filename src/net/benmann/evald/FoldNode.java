@@ -0,0 +1,289 @@
+package net.benmann.evald;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates a long chain of the same kind of operation, such as a + b - c + ..., or max(max(a, b), c), as a loop over
+ * its operands rather than as a deep tree of nodes. Operands are evaluated and combined from left to right, exactly
+ * as the nodes they replace would combine them, so results are identical.
+ *
+ * Chains are replaced by {@link #flatten(Node)} once an expression has been parsed.
+ */
+abstract class FoldNode extends ValueNode {
+    /** Chains with fewer operands than this are left as they were parsed */
+    static final int MINIMUM_OPERANDS = 4;
+
+    Node[] operands;
+    /** The operation combining the result so far with each operand. The first element is unused. */
+    Opcode[] opcodes;
+
+    FoldNode(Node[] operands, Opcode[] opcodes) {
+        super(false);
+        this.operands = operands;
+        this.opcodes = opcodes;
+    }
+
+    /** Additions and subtractions */
+    static final class Sum extends FoldNode {
+        Sum(Node[] operands, Opcode[] opcodes) {
+            super(operands, opcodes);
+        }
+
+        @Override protected double get() {
+            final Node[] operands = this.operands;
+            final Opcode[] opcodes = this.opcodes;
+            double result = operands[0].get();
+            for (int i = 1; i < operands.length; i++) {
+                double value = operands[i].get();
+                result = opcodes[i] == Opcode.ADD ? result + value : result - value;
+            }
+            return result;
+        }
+    }
+
+    /** Multiplications and divisions */
+    static final class Product extends FoldNode {
+        Product(Node[] operands, Opcode[] opcodes) {
+            super(operands, opcodes);
+        }
+
+        @Override protected double get() {
+            final Node[] operands = this.operands;
+            final Opcode[] opcodes = this.opcodes;
+            double result = operands[0].get();
+            for (int i = 1; i < operands.length; i++) {
+                double value = operands[i].get();
+                result = opcodes[i] == Opcode.MULTIPLY ? result * value : result / value;
+            }
+            return result;
+        }
+    }
+
+    static final class Max extends FoldNode {
+        Max(Node[] operands, Opcode[] opcodes) {
+            super(operands, opcodes);
+        }
+
+        @Override protected double get() {
+            final Node[] operands = this.operands;
+            double result = operands[0].get();
+            for (int i = 1; i < operands.length; i++) {
+                result = Math.max(result, operands[i].get());
+            }
+            return result;
+        }
+    }
+
+    static final class Min extends FoldNode {
+        Min(Node[] operands, Opcode[] opcodes) {
+            super(operands, opcodes);
+        }
+
+        @Override protected double get() {
+            final Node[] operands = this.operands;
+            double result = operands[0].get();
+            for (int i = 1; i < operands.length; i++) {
+                result = Math.min(result, operands[i].get());
+            }
+            return result;
+        }
+    }
+
+    private static double combine(Opcode opcode, double result, double value) {
+        switch (opcode) {
+        case ADD:
+            return result + value;
+        case SUBTRACT:
+            return result - value;
+        case MULTIPLY:
+            return result * value;
+        case DIVIDE:
+            return result / value;
+        case MAX:
+            return Math.max(result, value);
+        case MIN:
+            return Math.min(result, value);
+        default:
+            throw new IllegalStateException("Unexpected fold " + opcode);
+        }
+    }
+
+    /**
+     * Collapse each operand. As the operands are combined from left to right, any leading constant operands are
+     * combined into a single constant.
+     */
+    @Override Node collapse() {
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = operands[i].collapse();
+        }
+        int leading = 0;
+        while (leading < operands.length && operands[leading].isConstant) {
+            leading++;
+        }
+        if (leading == operands.length)
+            return new Constant(get());
+        if (leading > 1) {
+            double value = operands[0].get();
+            for (int i = 1; i < leading; i++) {
+                value = combine(opcodes[i], value, operands[i].get());
+            }
+            Node[] newOperands = new Node[operands.length - leading + 1];
+            Opcode[] newOpcodes = new Opcode[newOperands.length];
+            newOperands[0] = new Constant(value);
+            System.arraycopy(operands, leading, newOperands, 1, newOperands.length - 1);
+            System.arraycopy(opcodes, leading, newOpcodes, 1, newOpcodes.length - 1);
+            operands = newOperands;
+            opcodes = newOpcodes;
+        }
+        return this;
+    }
+
+    @Override String toTree(String prefix) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(prefix).append("Fold\n");
+        sb.append(operands[0].toTree(prefix + "    "));
+        for (int i = 1; i < operands.length; i++) {
+            sb.append(prefix).append("  ").append(opcodes[i].name().toLowerCase()).append("\n");
+            sb.append(operands[i].toTree(prefix + "    "));
+        }
+        return sb.toString();
+    }
+
+    @Override int arity() {
+        return operands.length;
+    }
+
+    @Override Node arg(int index) {
+        return operands[index];
+    }
+
+    @Override void setArg(int index, Node node) {
+        operands[index] = node;
+    }
+
+    @Override Opcode opcode() {
+        return opcodes[1];
+    }
+
+    @Override Opcode foldOpcode(int index) {
+        return index > 0 ? opcodes[index] : null;
+    }
+
+    /**
+     * Replace each long chain of additions and subtractions, multiplications and divisions, max() or min() in a tree
+     * with a fold. The tree is walked with an explicit stack, so that very deep trees can be flattened.
+     *
+     * @return the root of the tree, which is replaced if it is itself a chain.
+     */
+    static Node flatten(Node root) {
+        root = fold(root);
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            for (int i = 0; i < node.arity(); i++) {
+                Node child = node.arg(i);
+                Node folded = fold(child);
+                if (folded != child)
+                    node.setArg(i, folded);
+                stack.add(folded);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * @return a fold replacing the chain starting at node, or node if it doesn't start a long enough chain.
+     */
+    private static Node fold(Node node) {
+        if (node instanceof FoldNode)
+            return node;
+        Opcode opcode = node.opcode();
+        if (opcode == null)
+            return node;
+        switch (opcode) {
+        case ADD:
+        case SUBTRACT:
+            return foldLeft(node, Opcode.ADD, Opcode.SUBTRACT);
+        case MULTIPLY:
+        case DIVIDE:
+            return foldLeft(node, Opcode.MULTIPLY, Opcode.DIVIDE);
+        case MAX:
+        case MIN:
+            return foldAll(node, opcode);
+        default:
+            return node;
+        }
+    }
+
+    /**
+     * Fold a left associative chain, such as ((a + b) - c) + d, following the left operand of each operation. Only the
+     * left operands are followed, as a right operand is evaluated before it is combined.
+     */
+    private static Node foldLeft(Node node, Opcode first, Opcode second) {
+        List<Node> operands = new ArrayList<Node>();
+        List<Opcode> opcodes = new ArrayList<Opcode>();
+        Node left = node;
+        while (left instanceof BinaryOperatorNode && (left.opcode() == first || left.opcode() == second)) {
+            BinaryOperatorNode binary = (BinaryOperatorNode) left;
+            operands.add(binary.b);
+            opcodes.add(binary.opcode());
+            left = binary.a;
+        }
+        //A chain in braces has already been folded
+        if (left instanceof FoldNode && (left.opcode() == first || left.opcode() == second)) {
+            FoldNode fold = (FoldNode) left;
+            for (int i = fold.operands.length - 1; i > 0; i--) {
+                operands.add(fold.operands[i]);
+                opcodes.add(fold.opcodes[i]);
+            }
+            left = fold.operands[0];
+        }
+        if (operands.size() + 1 < MINIMUM_OPERANDS)
+            return node;
+
+        int count = operands.size() + 1;
+        Node[] foldOperands = new Node[count];
+        Opcode[] foldOpcodes = new Opcode[count];
+        foldOperands[0] = left;
+        for (int i = 1; i < count; i++) {
+            foldOperands[i] = operands.get(count - 1 - i);
+            foldOpcodes[i] = opcodes.get(count - 1 - i);
+        }
+        if (first == Opcode.ADD)
+            return new Sum(foldOperands, foldOpcodes);
+        return new Product(foldOperands, foldOpcodes);
+    }
+
+    /**
+     * Fold nested max() or min() calls. As these operations are associative, both arguments are followed, and the
+     * operands are kept in the order they were evaluated.
+     */
+    private static Node foldAll(Node node, Opcode opcode) {
+        List<Node> operands = new ArrayList<Node>();
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            Node next = stack.remove(stack.size() - 1);
+            if (next.opcode() == opcode && (next instanceof TwoArgValueNode || next instanceof FoldNode)) {
+                for (int i = next.arity() - 1; i >= 0; i--) {
+                    stack.add(next.arg(i));
+                }
+            } else {
+                operands.add(next);
+            }
+        }
+        if (operands.size() < MINIMUM_OPERANDS)
+            return node;
+
+        Node[] foldOperands = operands.toArray(new Node[] {});
+        Opcode[] foldOpcodes = new Opcode[foldOperands.length];
+        for (int i = 1; i < foldOpcodes.length; i++) {
+            foldOpcodes[i] = opcode;
+        }
+        if (opcode == Opcode.MAX)
+            return new Max(foldOperands, foldOpcodes);
+        return new Min(foldOperands, foldOpcodes);
+    }
+}
@@ -0,0 +1,35 @@
+package net.benmann.evald;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of variable indices, without boxing. Used to collect the variables read by a statement, which are
+ * then held as a sorted array: a statement usually reads a few variables from a large range of indices, so a
+ * {@link java.util.BitSet} per statement would be mostly empty.
+ */
+final class IndexList {
+    static final int[] EMPTY = new int[0];
+
+    private int[] indices = new int[8];
+    private int size;
+
+    void add(int index) {
+        if (size == indices.length)
+            indices = Arrays.copyOf(indices, size * 2);
+        indices[size++] = index;
+    }
+
+    /** @return the distinct indices added, in ascending order */
+    int[] toSortedSet() {
+        if (size == 0)
+            return EMPTY;
+        int[] sorted = Arrays.copyOf(indices, size);
+        Arrays.sort(sorted);
+        int distinct = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[distinct - 1])
+                sorted[distinct++] = sorted[i];
+        }
+        return distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct);
+    }
+}
@@ -0,0 +1,158 @@
+package net.benmann.evald;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sets the inputs of an expression from the members of an object, such as a record or a plain Java object. Each input
+ * (see {@link Evald#listAllInputs()}) is matched by name, once, to a numeric member of the class: a method with
+ * no arguments and the input's name, such as a record component's accessor; a getter ("getPrice" for "price"); or a
+ * field. Only members accessible to the lookup used are matched. Setting the inputs then invokes a method handle for
+ * each, with no lookups or reflection.
+ *
+ * Inputs with no matching member are left unchanged, and can be set as usual. Create a new binder after parsing a
+ * different expression or calling {@link Evald#compactVariables()}, as the inputs or their indices may change.
+ *
+ * @param <T>
+ *            the class the inputs are read from
+ */
+public final class InputBinder<T> {
+    private static final MethodType ACCESSOR_TYPE = MethodType.methodType(double.class, Object.class);
+
+    private final Evald evald;
+    private final int[] indices;
+    private final MethodHandle[] accessors;
+    private final String[] unbound;
+
+    /**
+     * Bind the inputs of the expression most recently parsed by an instance to the public members of a class.
+     */
+    public InputBinder(Evald evald, Class<T> type) {
+        this(evald, type, MethodHandles.publicLookup());
+    }
+
+    /**
+     * Bind the inputs of the expression most recently parsed by an instance to the members of a class accessible to
+     * a lookup, such as a class which isn't public, using the caller's own {@link MethodHandles#lookup()}.
+     */
+    public InputBinder(Evald evald, Class<T> type, MethodHandles.Lookup lookup) {
+        this.evald = evald;
+        String[] inputs = evald.listAllInputs();
+        int[] indices = new int[inputs.length];
+        MethodHandle[] accessors = new MethodHandle[inputs.length];
+        List<String> unbound = new ArrayList<String>();
+        int count = 0;
+        for (String input : inputs) {
+            MethodHandle accessor = accessor(type, lookup, input);
+            if (accessor == null) {
+                unbound.add(input);
+                continue;
+            }
+            indices[count] = evald.getVariableIndex(input);
+            accessors[count++] = accessor;
+        }
+        this.indices = Arrays.copyOf(indices, count);
+        this.accessors = Arrays.copyOf(accessors, count);
+        this.unbound = unbound.toArray(new String[unbound.size()]);
+    }
+
+    /**
+     * @return a handle reading the member matching the token as a double, or null if there is none.
+     */
+    private static MethodHandle accessor(Class<?> type, MethodHandles.Lookup lookup, String token) {
+        String getter = "get" + Character.toUpperCase(token.charAt(0)) + token.substring(1);
+        for (String name : new String[] { token, getter }) {
+            Method method = method(type, name);
+            if (method == null || Modifier.isStatic(method.getModifiers()) || !isNumeric(method.getReturnType()))
+                continue;
+            try {
+                return lookup.unreflect(method).asType(ACCESSOR_TYPE);
+            } catch (IllegalAccessException e) {
+                //not accessible to the lookup
+            }
+        }
+        Field field = field(type, token);
+        if (field == null || Modifier.isStatic(field.getModifiers()) || !isNumeric(field.getType()))
+            return null;
+        try {
+            return lookup.unreflectGetter(field).asType(ACCESSOR_TYPE);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /** @return a public method, which may be inherited, or a method declared by the class, or null */
+    private static Method method(Class<?> type, String name) {
+        try {
+            return type.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            try {
+                return type.getDeclaredMethod(name);
+            } catch (NoSuchMethodException e2) {
+                return null;
+            }
+        }
+    }
+
+    /** @return a public field, which may be inherited, or a field declared by the class, or null */
+    private static Field field(Class<?> type, String name) {
+        try {
+            return type.getField(name);
+        } catch (NoSuchFieldException e) {
+            try {
+                return type.getDeclaredField(name);
+            } catch (NoSuchFieldException e2) {
+                return null;
+            }
+        }
+    }
+
+    /** @return true for the primitive types which widen to double */
+    private static boolean isNumeric(Class<?> type) {
+        return type == double.class || type == float.class || type == long.class || type == int.class
+                || type == short.class || type == byte.class || type == char.class;
+    }
+
+    /**
+     * @return the inputs which have no matching member, and so are not set by the binder.
+     */
+    public String[] getUnboundInputs() {
+        return unbound.clone();
+    }
+
+    /**
+     * Set each bound input from the matching member of an object.
+     */
+    public void set(T source) {
+        Object object = source;
+        for (int i = 0; i < indices.length; i++) {
+            double value;
+            try {
+                value = (double) accessors[i].invokeExact(object);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                //An accessor method declaring a checked exception
+                throw new RuntimeException(t);
+            }
+            evald.setVariable(indices[i], value);
+        }
+    }
+
+    /**
+     * Set each bound input from the matching member of an object, and evaluate the expression.
+     *
+     * @return the result of {@link Evald#evaluate()}.
+     */
+    public double evaluate(T source) {
+        set(source);
+        return evald.evaluate();
+    }
+}
@@ -0,0 +1,86 @@
+package net.benmann.evald;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inputs written by one or more threads and evaluated by another, which always sees a consistent set: the inputs as of
+ * one call to {@link #publish()}, never a mix of two. Writers stage changes with {@link #set(int, double)}, then publish
+ * them together; an {@link Evald} instance reads the most recently published inputs with
+ * {@link Evald#evaluate(InputFrame)}.
+ *
+ * The inputs are triple buffered: writers update a private copy, publishing exchanges it with a shared copy, and the
+ * evaluating thread exchanges the shared copy with its own when a newer one has been published. The exchanges are
+ * single atomic operations, so evaluation never waits for a writer or takes a lock, and nothing is allocated. Writers
+ * synchronize with each other, but not with the evaluating thread. Only one thread may evaluate from a frame at a
+ * time.
+ */
+public final class InputFrame {
+    /** Set in {@link #shared} when it holds inputs published since the evaluating thread last acquired them */
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+
+    private final double[][] buffers;
+    /** The buffer written by writers, guarded by this */
+    private int back = 0;
+    /** The buffer read by the evaluating thread */
+    private int front = 1;
+    /** The buffer exchanged between them, and the {@link #FRESH} flag */
+    private final AtomicInteger shared = new AtomicInteger(2);
+
+    /**
+     * @param size
+     *            the number of inputs, each of which is initially 0.
+     */
+    public InputFrame(int size) {
+        buffers = new double[3][size];
+    }
+
+    /**
+     * @return the number of inputs.
+     */
+    public int size() {
+        return buffers[0].length;
+    }
+
+    /**
+     * Stage a change to an input, which is not seen by evaluation until {@link #publish()} is called.
+     */
+    public synchronized void set(int element, double value) {
+        buffers[back][element] = value;
+    }
+
+    /**
+     * Stage changes to several inputs, and publish them with any other staged changes.
+     *
+     * @param elements
+     *            the inputs to set.
+     * @param values
+     *            the value of each input.
+     */
+    public synchronized void publish(int[] elements, double[] values) {
+        double[] buffer = buffers[back];
+        for (int i = 0; i < elements.length; i++) {
+            buffer[elements[i]] = values[i];
+        }
+        publish();
+    }
+
+    /**
+     * Publish the staged changes, so that they are seen by the next evaluation.
+     */
+    public synchronized void publish() {
+        double[] published = buffers[back];
+        back = shared.getAndSet(back | FRESH) & INDEX;
+        //The next changes are staged on top of the inputs just published
+        System.arraycopy(published, 0, buffers[back], 0, published.length);
+    }
+
+    /**
+     * @return the most recently published inputs, which remain unchanged until the next call by the evaluating thread.
+     */
+    double[] acquire() {
+        if ((shared.get() & FRESH) != 0)
+            front = shared.getAndSet(front) & INDEX;
+        return buffers[front];
+    }
+}
@@ -0,0 +1,276 @@
+package net.benmann.evald;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.benmann.evald.AbstractEvaldException.UncompilableEvaldException;
+
+/**
+ * Generates the source of a Java class equivalent to a parsed and optimised expression, so that formulas known at
+ * build time can be compiled with the application, with no parsing at run time. Create the source with
+ * {@link Evald#generateJava(String, String)}, or from formula files with {@link #main(String[])}.
+ *
+ * The generated class has a static {@code double evaluate(double[] frame)} method, with variable values held in the
+ * frame at the indices given by its {@code SLOT_} constants, and {@code FRAME_SIZE}. The generated code depends only on
+ * the Java runtime. User functions, and operators added with a custom parser, are not supported.
+ */
+public final class JavaGenerator {
+    /** Subexpressions nested deeper than this are assigned to a local variable, to keep the generated source readable */
+    private static final int MAX_NESTING = 12;
+    /** Statements are split into methods of about this many lines, to stay well within the JVM's method size limit */
+    private static final int MAX_METHOD_LINES = 800;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String[] variableTokens;
+    private final List<List<String>> methods = new ArrayList<List<String>>();
+    private List<String> lines = new ArrayList<String>();
+    private int locals;
+
+    /** Generation state for a single node */
+    private static class Frame {
+        final Node node;
+        final Opcode opcode;
+        final String[] args;
+        final int[] nesting;
+        int nextArg;
+
+        Frame(Node node) {
+            this.node = node;
+            this.opcode = node.opcode();
+            if (opcode == null || opcode == Opcode.CALL)
+                throw new UncompilableEvaldException("The expression contains an operation which cannot be generated:\n" + node.toTree("  "));
+            args = new String[node.arity()];
+            nesting = new int[node.arity()];
+        }
+    }
+
+    JavaGenerator(String[] variableTokens) {
+        this.variableTokens = variableTokens;
+    }
+
+    static String slot(String token) {
+        return "SLOT_" + token;
+    }
+
+    static String literal(double value) {
+        if (Double.isNaN(value))
+            return "Double.NaN";
+        if (Double.isInfinite(value))
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        String literal = Double.toString(value);
+        return literal.startsWith("-") ? "(" + literal + ")" : literal;
+    }
+
+    /**
+     * Assign an expression to a new local variable.
+     * 
+     * @return the name of the local variable.
+     */
+    private String assignLocal(String expression) {
+        String local = "t" + locals++;
+        lines.add("final double " + local + " = " + expression + ";");
+        return local;
+    }
+
+    /**
+     * Generate a statement, evaluating root and storing the result in the variable at outputIndex.
+     */
+    void generate(Node root, int outputIndex) {
+        if (lines.size() > MAX_METHOD_LINES) {
+            methods.add(lines);
+            lines = new ArrayList<String>();
+        }
+        //As with the compiler, the tree is walked with an explicit stack so deep trees are safe
+        List<Frame> stack = new ArrayList<Frame>();
+        stack.add(new Frame(root));
+        String expression = null;
+        int nesting = 0;
+        while (true) {
+            Frame frame = stack.get(stack.size() - 1);
+            if (frame.nextArg < frame.args.length) {
+                stack.add(new Frame(frame.node.arg(frame.nextArg)));
+                continue;
+            }
+            stack.remove(stack.size() - 1);
+            switch (frame.opcode) {
+            case CONST:
+                expression = literal(((Constant) frame.node).value);
+                nesting = 0;
+                break;
+            case LOAD:
+                expression = "frame[" + slot(variableTokens[((Variable) frame.node).index]) + "]";
+                nesting = 0;
+                break;
+            default:
+                if (frame.node.foldOpcode(1) != null) {
+                    //Combine the arguments from left to right, as the fold does
+                    expression = frame.args[0];
+                    nesting = frame.nesting[0];
+                    for (int i = 1; i < frame.args.length; i++) {
+                        expression = String.format(frame.node.foldOpcode(i).java, expression, frame.args[i]);
+                        nesting = Math.max(nesting, frame.nesting[i]) + 1;
+                        if (nesting > MAX_NESTING) {
+                            expression = assignLocal(expression);
+                            nesting = 0;
+                        }
+                    }
+                    break;
+                }
+                expression = String.format(frame.opcode.java, (Object[]) frame.args);
+                nesting = 0;
+                for (int n : frame.nesting) {
+                    nesting = Math.max(nesting, n + 1);
+                }
+                if (nesting > MAX_NESTING) {
+                    expression = assignLocal(expression);
+                    nesting = 0;
+                }
+                break;
+            }
+            if (stack.isEmpty())
+                break;
+            Frame parent = stack.get(stack.size() - 1);
+            parent.nesting[parent.nextArg] = nesting;
+            parent.args[parent.nextArg++] = expression;
+        }
+        lines.add("result = frame[" + slot(variableTokens[outputIndex]) + "] = " + expression + ";");
+    }
+
+    String build(String packageName, String className) {
+        methods.add(lines);
+        StringBuilder sb = new StringBuilder();
+        if (packageName != null && !packageName.isEmpty())
+            sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import java.util.concurrent.ThreadLocalRandom;\n\n");
+        sb.append("/**\n * Generated by evald. Do not edit.\n */\n");
+        sb.append("@SuppressWarnings(\"unused\")\n");
+        sb.append("public final class ").append(className).append(" {\n");
+        for (int i = 0; i < variableTokens.length; i++) {
+            sb.append("    public static final int ").append(slot(variableTokens[i])).append(" = ").append(i).append(";\n");
+        }
+        sb.append("    /** The length of the frame passed to {@link #evaluate(double[])} */\n");
+        sb.append("    public static final int FRAME_SIZE = ").append(variableTokens.length).append(";\n");
+        sb.append("    private static final double LOG_2 = Math.log(2);\n\n");
+        sb.append("    private ").append(className).append("() {\n    }\n\n");
+        sb.append("    /** @return the name of every variable, in frame order */\n");
+        sb.append("    public static String[] listAllVariables() {\n        return new String[] {");
+        for (int i = 0; i < variableTokens.length; i++) {
+            sb.append(i == 0 ? " " : ", ").append('"').append(variableTokens[i]).append('"');
+        }
+        sb.append(" };\n    }\n\n");
+
+        sb.append("    /**\n     * Evaluate every statement, storing each result in the frame.\n     *\n");
+        sb.append("     * @return the result of the last statement.\n     */\n");
+        sb.append("    public static double evaluate(double[] frame) {\n");
+        if (methods.size() == 1) {
+            appendBody(sb, methods.get(0));
+        } else {
+            sb.append("        double result = 0;\n");
+            for (int i = 0; i < methods.size(); i++) {
+                sb.append("        result = evaluate").append(i).append("(frame);\n");
+            }
+            sb.append("        return result;\n    }\n");
+            for (int i = 0; i < methods.size(); i++) {
+                sb.append("\n    private static double evaluate").append(i).append("(double[] frame) {\n");
+                appendBody(sb, methods.get(i));
+            }
+        }
+
+        sb.append("\n    private static boolean isTrue(double value) {\n        return value > 0 || value < 0;\n    }\n");
+        sb.append("\n    private static double sign(double value) {\n        return Double.isNaN(value) ? value : value < 0 ? -1 : (value > 0 ? 1 : 0);\n    }\n");
+        sb.append("\n    private static double asinh(double value) {\n        return Math.log(value + Math.sqrt(value * value + 1.0));\n    }\n");
+        sb.append("\n    private static double acosh(double value) {\n        return Math.log(value + Math.sqrt(value * value - 1.0));\n    }\n");
+        sb.append("\n    private static double atanh(double value) {\n        return 0.5 * Math.log((1.0 + value) / (1.0 - value));\n    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void appendBody(StringBuilder sb, List<String> body) {
+        sb.append("        double result = 0;\n");
+        for (String line : body) {
+            sb.append("        ").append(line).append("\n");
+        }
+        sb.append("        return result;\n    }\n");
+    }
+
+    /**
+     * Derive a Java class name from a file name, eg. "interest-rate.evald" becomes "InterestRate".
+     */
+    static String className(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot > 0)
+            fileName = fileName.substring(0, dot);
+        StringBuilder sb = new StringBuilder();
+        boolean upper = true;
+        for (char c : fileName.toCharArray()) {
+            if (!Character.isJavaIdentifierPart(c)) {
+                upper = true;
+                continue;
+            }
+            if (sb.length() == 0 && !Character.isJavaIdentifierStart(c))
+                sb.append('_');
+            sb.append(upper ? Character.toUpperCase(c) : c);
+            upper = false;
+        }
+        return sb.length() == 0 ? "_" : sb.toString();
+    }
+
+    /**
+     * Read a formula file. Lines starting with # are comments; statements may span lines.
+     */
+    static String readFormula(Path file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : Files.readAllLines(file, UTF8)) {
+            if (line.trim().startsWith("#"))
+                continue;
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generate a Java class for each formula file, using all standard libraries.
+     *
+     * Usage: JavaGenerator [-d outputDirectory] [-package name] formula...
+     */
+    public static void main(String[] args) throws IOException {
+        Path outputDirectory = Paths.get(".");
+        String packageName = "";
+        List<Path> formulas = new ArrayList<Path>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-d") && i + 1 < args.length) {
+                outputDirectory = Paths.get(args[++i]);
+            } else if (args[i].equals("-package") && i + 1 < args.length) {
+                packageName = args[++i];
+            } else {
+                formulas.add(Paths.get(args[i]));
+            }
+        }
+        if (formulas.isEmpty()) {
+            System.err.println("Usage: JavaGenerator [-d outputDirectory] [-package name] formula...");
+            System.exit(1);
+        }
+
+        Path packageDirectory = outputDirectory.resolve(packageName.replace('.', '/'));
+        Files.createDirectories(packageDirectory);
+        for (Path formula : formulas) {
+            String className = className(formula.getFileName().toString());
+            String source = readFormula(formula);
+            Evald evald = new Evald(Library.ALL);
+            try {
+                evald.parse(source.replace('\n', ' '));
+            } catch (AbstractEvaldException e) {
+                System.err.println(formula + ": " + e.getMessage());
+                System.exit(1);
+            }
+            Path output = packageDirectory.resolve(className + ".java");
+            Files.write(output, evald.generateJava(packageName, className).getBytes(UTF8));
+            System.out.println(formula + " -> " + output);
+        }
+    }
+}
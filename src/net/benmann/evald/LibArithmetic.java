@@ -4,6 +4,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.benmann.evald.AbstractEvaldException.EvaldException;
+import net.benmann.evald.Diagnostics.Kind;
 
 /**
  * Arithmetic library.
@@ -45,12 +46,16 @@ public final class LibArithmetic extends Library {
                     Node variableNode = a.isConstant ? b : a;
 
                     double value = constantNode.get();
-                    if (value == 0)
+                    //x + 0 is 0 (not x) when x is -0, but x + -0 is always x
+                    if (value == 0 && 1 / value < 0)
                         return variableNode;
 
                     return this;
                 }
 
+                @Override Opcode opcode() {
+                    return Opcode.ADD;
+                }
             };
         }
     };
@@ -79,6 +84,9 @@ public final class LibArithmetic extends Library {
                     return this;
                 }
 
+                @Override Opcode opcode() {
+                    return Opcode.MOD;
+                }
             };
         }
     };
@@ -112,6 +120,9 @@ public final class LibArithmetic extends Library {
                     return this;
                 }
 
+                @Override Opcode opcode() {
+                    return Opcode.POW;
+                }
             };
         }
     };
@@ -143,6 +154,9 @@ public final class LibArithmetic extends Library {
                     return this;
                 }
 
+                @Override Opcode opcode() {
+                    return Opcode.SUBTRACT;
+                }
             };
         }
     };
@@ -175,6 +189,10 @@ public final class LibArithmetic extends Library {
 
                     return this;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.MULTIPLY;
+                }
             };
         }
     };
@@ -207,6 +225,9 @@ public final class LibArithmetic extends Library {
                     return this;
                 }
 
+                @Override Opcode opcode() {
+                    return Opcode.DIVIDE;
+                }
             };
         }
     };
@@ -221,6 +242,10 @@ public final class LibArithmetic extends Library {
                 @Override Node collapse() {
                     return b;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.POSITIVE;
+                }
             };
         }
     };
@@ -231,6 +256,10 @@ public final class LibArithmetic extends Library {
                 @Override protected double get() {
                     return -b.get();
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.NEGATIVE;
+                }
             };
         }
     };
@@ -274,8 +303,55 @@ public final class LibArithmetic extends Library {
             str.update(content.length() + 2);
             return operationParser.parse(content);
         }
+
+        @Override int validate(Validator validator, int start, int end) {
+            String expression = validator.expression;
+            if (expression.charAt(start) != '(')
+                return Validator.NO_MATCH;
+
+            int brace = 0;
+            int closingBraceIndex = start + 1;
+            while (closingBraceIndex < end) {
+                char bch = expression.charAt(closingBraceIndex);
+                if (bch == '(') {
+                    brace++;
+                } else if (bch == ')') {
+                    brace--;
+                }
+                if (brace == -1)
+                    break;
+                closingBraceIndex++;
+            }
+
+            if (brace != -1)
+                return validator.fail(Kind.MISMATCHED_BRACES, start, end);
+            if (closingBraceIndex == start + 1)
+                return validator.fail(Kind.EMPTY_BRACES, start, closingBraceIndex + 1);
+            if (validator.expression(start + 1, closingBraceIndex) == Validator.FAILED)
+                return Validator.FAILED;
+            return closingBraceIndex + 1;
+        }
     };
 
+    /** @return the index of the exponent marker in a number in scientific notation */
+    private static int exponent(String number, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = number.charAt(i);
+            if (c == 'e' || c == 'E')
+                return i;
+        }
+        return end;
+    }
+
+    /** Validate a constant matching the pattern at the start of a region */
+    private static int validateConstant(Pattern pattern, Validator validator, int start, int end) {
+        char ch = validator.expression.charAt(start);
+        if (!Character.isDigit(ch) && ch != '.')
+            return Validator.NO_MATCH;
+        Matcher matcher = pattern.matcher(validator.expression).region(start, end);
+        return matcher.lookingAt() ? matcher.end() : Validator.NO_MATCH;
+    }
+
     private static final Pattern constantPattern = Pattern.compile("^[0-9]*\\.?[0-9]+");
     public static final ValueParser CONSTANT = new ValueParser(constantPattern.toString()) {
         @Override Node parse(ExpressionParser operationParser, ExpressionString str) {
@@ -293,6 +369,10 @@ public final class LibArithmetic extends Library {
             str.update(content.length());
             return new Constant(Double.parseDouble(content));
         }
+
+        @Override int validate(Validator validator, int start, int end) {
+            return validateConstant(constantPattern, validator, start, end);
+        }
     };
 
     //Scientific Notation Version
@@ -309,8 +389,18 @@ public final class LibArithmetic extends Library {
                 return null;
 
             final String content = matcher.group();
+            //The pattern allows a fractional exponent, which isn't a valid number
+            if (content.indexOf('.', exponent(content, 0, content.length())) >= 0)
+                throw new EvaldException("Invalid number " + content);
             str.update(content.length());
             return new Constant(Double.valueOf(content));
         }
+
+        @Override int validate(Validator validator, int start, int end) {
+            int next = validateConstant(constantSNPattern, validator, start, end);
+            if (next >= 0 && validator.expression.lastIndexOf('.', next - 1) > exponent(validator.expression, start, next))
+                return validator.fail(Kind.INVALID_NUMBER, start, next);
+            return next;
+        }
     };
 }
\ No newline at end of file
@@ -23,6 +23,10 @@ public final class LibBinary extends Library {
                 @Override protected double get() {
                     return toDouble(longValue(a) ^ longValue(b));
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.XOR;
+                }
             };
         }
     };
@@ -33,6 +37,10 @@ public final class LibBinary extends Library {
                 @Override protected double get() {
                     return toDouble(~longValue(b));
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.COMPLEMENT;
+                }
             };
         }
     };
@@ -43,6 +51,10 @@ public final class LibBinary extends Library {
                 @Override protected double get() {
                     return toDouble(longValue(a) | longValue(b));
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.BITWISE_OR;
+                }
             };
         }
     };
@@ -53,6 +65,10 @@ public final class LibBinary extends Library {
                 @Override protected double get() {
                     return toDouble(longValue(a) & longValue(b));
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.BITWISE_AND;
+                }
             };
         }
     };
@@ -40,6 +40,10 @@ public final class LibConditional extends Library {
 
                     return arg3.get();
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.IF;
+                }
             };
         }
     });
@@ -50,6 +54,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return Double.isNaN(arg1.get()) ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ISNAN;
+                }
             };
         }
     });
@@ -60,6 +68,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return Double.isInfinite(arg1.get()) ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ISINF;
+                }
             };
         }
     });
@@ -70,6 +82,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return (evaluate(a)) && (evaluate(b)) ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.AND;
+                }
             };
         }
     };
@@ -80,6 +96,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return (evaluate(a)) || (evaluate(b)) ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.OR;
+                }
             };
         }
     };
@@ -93,6 +113,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return a.get() == b.get() ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.EQUALS;
+                }
             };
         }
     };
@@ -102,6 +126,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return a.get() < b.get() ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.LT;
+                }
             };
         }
     };
@@ -111,6 +139,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return a.get() <= b.get() ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.LTE;
+                }
             };
         }
     };
@@ -121,6 +153,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return a.get() > b.get() ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.GT;
+                }
             };
         }
     };
@@ -130,6 +166,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return a.get() >= b.get() ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.GTE;
+                }
             };
         }
     };
@@ -139,6 +179,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return a.get() != b.get() ? 1.0 : 0.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.NOTEQUALS;
+                }
             };
         }
     };
@@ -149,6 +193,10 @@ public final class LibConditional extends Library {
                 @Override protected double get() {
                     return evaluate(b) ? 0.0 : 1.0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.NOT;
+                }
             };
         }
     };
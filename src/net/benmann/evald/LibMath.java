@@ -21,6 +21,10 @@ public final class LibMath extends Library {
                         return 1;
                     return 0;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.SIGN;
+                }
             };
         }
     });
@@ -32,6 +36,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.log(arg1.get()) / log2value;
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.LOG2;
+                }
             };
         }
     });
@@ -42,6 +50,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.rint(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.RINT;
+                }
             };
         }
     });
@@ -52,6 +64,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.tan(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.TAN;
+                }
             };
         }
     });
@@ -61,6 +77,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.tanh(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.TANH;
+                }
             };
         }
     });
@@ -70,6 +90,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.toDegrees(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.TODEGREES;
+                }
             };
         }
     });
@@ -79,6 +103,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.toRadians(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.TORADIANS;
+                }
             };
         }
     });
@@ -89,6 +117,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return (double) Math.round(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ROUND;
+                }
             };
         }
     });
@@ -99,6 +131,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.sqrt(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.SQRT;
+                }
             };
         }
     });
@@ -109,6 +145,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.hypot(arg1.get(), arg2.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.HYPOT;
+                }
             };
         }
     });
@@ -119,6 +159,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return arg1.get() % arg2.get();
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.MOD;
+                }
             };
         }
     });
@@ -129,6 +173,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.max(arg1.get(), arg2.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.MAX;
+                }
             };
         }
     });
@@ -138,6 +186,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.min(arg1.get(), arg2.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.MIN;
+                }
             };
         }
     });
@@ -159,6 +211,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return ThreadLocalRandom.current().nextDouble();
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.RANDOM;
+                }
             };
         }
     });
@@ -169,6 +225,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.sinh(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.SINH;
+                }
             };
         }
     });
@@ -179,6 +239,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.log(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.LOG;
+                }
             };
         }
     });
@@ -189,6 +253,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.log10(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.LOG10;
+                }
             };
         }
     });
@@ -199,6 +267,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.exp(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.EXP;
+                }
             };
         }
     });
@@ -209,6 +281,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.floor(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.FLOOR;
+                }
             };
         }
     });
@@ -219,6 +295,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.cbrt(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.CBRT;
+                }
             };
         }
     });
@@ -229,6 +309,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.ceil(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.CEIL;
+                }
             };
         }
     });
@@ -239,6 +323,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.cos(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.COS;
+                }
             };
         }
     });
@@ -249,6 +337,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.cosh(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.COSH;
+                }
             };
         }
     });
@@ -259,6 +351,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.abs(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ABS;
+                }
             };
         }
     });
@@ -269,6 +365,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.asin(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ASIN;
+                }
             };
         }
     });
@@ -279,6 +379,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.acos(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ACOS;
+                }
             };
         }
     });
@@ -289,6 +393,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.atan(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ATAN;
+                }
             };
         }
     });
@@ -299,6 +407,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.atan2(arg1.get(), arg2.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ATAN2;
+                }
             };
         }
     });
@@ -309,6 +421,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.sin(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.SIN;
+                }
             };
         }
     });
@@ -319,6 +435,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return Math.pow(arg1.get(), arg2.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.POW;
+                }
             };
         }
     });
@@ -329,6 +449,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return 1 / Math.cos(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.SECANT;
+                }
             };
         }
     });
@@ -338,6 +462,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return 1 / Math.sin(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.COSECANT;
+                }
             };
         }
     });
@@ -347,6 +475,10 @@ public final class LibMath extends Library {
                 @Override protected double get() {
                     return 1 / Math.tan(arg1.get());
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.COTAN;
+                }
             };
         }
     });
@@ -358,6 +490,10 @@ public final class LibMath extends Library {
 
                     return Math.log(x + Math.sqrt(x * x + 1.0));
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ASINH;
+                }
             };
         }
     });
@@ -369,6 +505,10 @@ public final class LibMath extends Library {
 
                     return Math.log(x + Math.sqrt(x * x - 1.0));
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ACOSH;
+                }
             };
         }
     });
@@ -380,6 +520,10 @@ public final class LibMath extends Library {
 
                     return 0.5 * Math.log((1.0 + x) / (1.0 - x));
                 }
+
+                @Override Opcode opcode() {
+                    return Opcode.ATANH;
+                }
             };
         }
     });
@@ -2,13 +2,11 @@ package net.benmann.evald;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.benmann.evald.AbstractEvaldException.EvaldException;
+import net.benmann.evald.Diagnostics.Kind;
 
 class NArgParser extends ValueParser {
-	final Pattern pattern;
 	final int minArguments;
 	final int maxArguments;
 	final CreateNArgFunctionFn createFn;
@@ -20,20 +18,33 @@ class NArgParser extends ValueParser {
     NArgParser(int minArguments, int maxArguments, CreateNArgFunctionFn createFn) {
         super(createFn.token);
         assert (maxArguments == NO_MAX || minArguments <= maxArguments);
-        pattern = Pattern.compile("^(\\s*" + Pattern.quote(token) + "\\s*\\()");
 		this.minArguments = minArguments;
 		this.maxArguments = maxArguments;
 		this.createFn = createFn;
 	}
 
+    @Override boolean startsWithToken() {
+        return true;
+    }
+
+    /**
+     * @return the end of the function name and opening brace at the start of the region, or -1.
+     */
+    private int matchOpening(String expression, int start, int end) {
+        int position = matchToken(expression, skipSpace(expression, start, end), end);
+        if (position < 0)
+            return -1;
+        position = skipSpace(expression, position, end);
+        if (position == end || expression.charAt(position) != '(')
+            return -1;
+        return position + 1;
+    }
+
 	@Override
     Node parse(ExpressionParser operationParser, ExpressionString str) {
-		Matcher matcher = pattern.matcher(str.expression);
-		if (!matcher.find())
+        int skip = matchOpening(str.expression, 0, str.expression.length());
+        if (skip < 0)
             return null;
-		
-		String tokenFound = matcher.group(1);
-		int skip = tokenFound.length();
 		str.update(skip);
 		
 		//find matching ) and count , at the base level.
@@ -79,7 +90,53 @@ class NArgParser extends ValueParser {
 			throw new EvaldException("Missing closing brace for function " + token); //FIXME for function where?
 		}
 
-		operationParser.evald.addUsedFunction(token);
+		operationParser.addUsedFunction(token);
         return createFn.fn(args);
 	}
+
+    @Override int validate(Validator validator, int start, int end) {
+        String expression = validator.expression;
+        int argumentStart = matchOpening(expression, start, end);
+        if (argumentStart < 0)
+            return Validator.NO_MATCH;
+
+        //As for parse, find the matching ) and validate each argument at the base level.
+        int tokenStart = skipSpace(expression, start, end);
+        int tokenEnd = tokenStart + token.length();
+        int level = 0;
+        int index = argumentStart;
+        int args = 0;
+        while (index < end) {
+            char bch = expression.charAt(index);
+            if (bch == '(') {
+                level++;
+            } else if (bch == ')') {
+                if (level == 0 && (args != 0 || index != argumentStart)) {
+                    if (validator.expression(argumentStart, index) == Validator.FAILED)
+                        return Validator.FAILED;
+                    args++;
+                }
+                level--;
+            } else if (bch == ',' && level == 0) {
+                if (validator.expression(argumentStart, index) == Validator.FAILED)
+                    return Validator.FAILED;
+                args++;
+                argumentStart = ++index;
+                continue;
+            }
+
+            if (level == -1)
+                break;
+
+            index++;
+        }
+
+        if (args < minArguments)
+            return validator.fail(Kind.TOO_FEW_ARGUMENTS, tokenStart, tokenEnd);
+        if (maxArguments >= 0 && args > maxArguments)
+            return validator.fail(Kind.TOO_MANY_ARGUMENTS, tokenStart, tokenEnd);
+        if (level != -1)
+            return validator.fail(Kind.MISSING_CLOSING_BRACE, tokenStart, tokenEnd);
+        return index + 1;
+    }
 }
\ No newline at end of file
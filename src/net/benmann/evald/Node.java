@@ -25,4 +25,39 @@ abstract class Node {
     abstract Node collapse();
 
     abstract String toTree(String prefix);
+
+    /**
+     * @return the number of child nodes evaluated by this node.
+     */
+    abstract int arity();
+
+    /**
+     * @return the child node at the specified position, in evaluation order.
+     */
+    abstract Node arg(int index);
+
+    /**
+     * Replace the child node at the specified position, as returned by {@link #arg(int)}.
+     */
+    abstract void setArg(int index, Node node);
+
+    /**
+     * Identify the operation performed by this node, so that it can be flattened into a {@link CompactProgram}.
+     * 
+     * @return the opcode for this node, or null if this node has no compact equivalent.
+     */
+    Opcode opcode() {
+        return null;
+    }
+
+    /**
+     * For a node which combines its arguments from left to right, such as a {@link FoldNode}, identify the operation
+     * combining the result so far with each argument after the first.
+     * 
+     * @return the opcode applied with the argument at index, or null if this node's {@link #opcode()} is applied once
+     *         to all of its arguments.
+     */
+    Opcode foldOpcode(int index) {
+        return null;
+    }
 }
\ No newline at end of file
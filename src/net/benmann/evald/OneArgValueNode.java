@@ -24,4 +24,20 @@ abstract class OneArgValueNode extends ValueNode {
         sb.append(arg1.toTree(prefix + "  "));
         return sb.toString();
     }
+
+    @Override int arity() {
+        return 1;
+    }
+
+    @Override Node arg(int index) {
+        if (index != 0)
+            throw new IndexOutOfBoundsException();
+        return arg1;
+    }
+
+    @Override void setArg(int index, Node node) {
+        if (index != 0)
+            throw new IndexOutOfBoundsException();
+        arg1 = node;
+    }
 }
\ No newline at end of file
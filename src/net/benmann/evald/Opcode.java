@@ -0,0 +1,109 @@
+package net.benmann.evald;
+
+/**
+ * Instruction set for {@link CompactProgram}.
+ *
+ * Each built-in node reports its opcode through {@link Node#opcode()}; nodes which report null
+ * (for example operators added with {@link Evald#addParser}) cannot be compacted.
+ */
+enum Opcode {
+    /** Push constants[operand] */
+    CONST(0.25),
+    /** Push frame[operand] */
+    LOAD(0.5),
+    /** Pop a value into frame[operand]; ends a statement */
+    STORE(0.5),
+    /** Call a user {@link ArgFunction}; operand indexes the call site tables */
+    CALL(1),
+    /** Jump to operand */
+    JUMP(0),
+    /** Pop the condition of an if(); jump to operand (the else branch) if it is false */
+    IF(1, "(isTrue(%s) ? %s : %s)"),
+    /** Pop a; if it is false push 0 and jump to operand, otherwise fall through to b */
+    AND(1, "(isTrue(%s) && isTrue(%s) ? 1.0 : 0.0)"),
+    /** Pop a; if it is true push 1 and jump to operand, otherwise fall through to b */
+    OR(1, "(isTrue(%s) || isTrue(%s) ? 1.0 : 0.0)"),
+    /** Replace the top of stack with 1 if it is true, otherwise 0 */
+    TRUTHY(0.5),
+
+    ADD(1, "(%s + %s)"),
+    SUBTRACT(1, "(%s - %s)"),
+    MULTIPLY(1, "(%s * %s)"),
+    DIVIDE(4, "(%s / %s)"),
+    MOD(8, "(%s %% %s)"),
+    POW(40, "Math.pow(%s, %s)"),
+    POSITIVE(0, "%s"),
+    NEGATIVE(1, "(-%s)"),
+
+    EQUALS(1, "(%s == %s ? 1.0 : 0.0)"),
+    NOTEQUALS(1, "(%s != %s ? 1.0 : 0.0)"),
+    LT(1, "(%s < %s ? 1.0 : 0.0)"),
+    LTE(1, "(%s <= %s ? 1.0 : 0.0)"),
+    GT(1, "(%s > %s ? 1.0 : 0.0)"),
+    GTE(1, "(%s >= %s ? 1.0 : 0.0)"),
+    NOT(1, "(isTrue(%s) ? 0.0 : 1.0)"),
+    ISNAN(1, "(Double.isNaN(%s) ? 1.0 : 0.0)"),
+    ISINF(1, "(Double.isInfinite(%s) ? 1.0 : 0.0)"),
+
+    XOR(2, "((double) ((long) %s ^ (long) %s))"),
+    BITWISE_OR(2, "((double) ((long) %s | (long) %s))"),
+    BITWISE_AND(2, "((double) ((long) %s & (long) %s))"),
+    COMPLEMENT(2, "((double) ~(long) %s)"),
+
+    SIGN(2, "sign(%s)"),
+    LOG2(24, "(Math.log(%s) / LOG_2)"),
+    RINT(4, "Math.rint(%s)"),
+    TAN(40, "Math.tan(%s)"),
+    TANH(40, "Math.tanh(%s)"),
+    TODEGREES(2, "Math.toDegrees(%s)"),
+    TORADIANS(2, "Math.toRadians(%s)"),
+    ROUND(4, "((double) Math.round(%s))"),
+    SQRT(4, "Math.sqrt(%s)"),
+    HYPOT(40, "Math.hypot(%s, %s)"),
+    MAX(2, "Math.max(%s, %s)"),
+    MIN(2, "Math.min(%s, %s)"),
+    RANDOM(10, "ThreadLocalRandom.current().nextDouble()"),
+    SINH(40, "Math.sinh(%s)"),
+    LOG(20, "Math.log(%s)"),
+    LOG10(20, "Math.log10(%s)"),
+    EXP(20, "Math.exp(%s)"),
+    FLOOR(4, "Math.floor(%s)"),
+    CBRT(20, "Math.cbrt(%s)"),
+    CEIL(4, "Math.ceil(%s)"),
+    COS(20, "Math.cos(%s)"),
+    COSH(40, "Math.cosh(%s)"),
+    ABS(1, "Math.abs(%s)"),
+    ASIN(30, "Math.asin(%s)"),
+    ACOS(30, "Math.acos(%s)"),
+    ATAN(30, "Math.atan(%s)"),
+    ATAN2(40, "Math.atan2(%s, %s)"),
+    SIN(20, "Math.sin(%s)"),
+    SECANT(24, "(1 / Math.cos(%s))"),
+    COSECANT(24, "(1 / Math.sin(%s))"),
+    COTAN(44, "(1 / Math.tan(%s))"),
+    ASINH(60, "asinh(%s)"),
+    ACOSH(60, "acosh(%s)"),
+    ATANH(60, "atanh(%s)");
+
+    static final Opcode[] VALUES = values();
+
+    /**
+     * A Java expression equivalent to this operation, used by {@link JavaGenerator}, with a %s for each
+     * argument; or null if the operation has no expression form.
+     */
+    final String java;
+    /**
+     * The relative cost of the operation, where an addition costs 1, used by {@link Evald#estimateCost()}. Costs
+     * reflect the typical latency of the equivalent Java operation once compiled, so are only a rough guide.
+     */
+    final double cost;
+
+    Opcode(double cost) {
+        this(cost, null);
+    }
+
+    Opcode(double cost, String java) {
+        this.cost = cost;
+        this.java = java;
+    }
+}
@@ -4,4 +4,16 @@ abstract class OperatorParser extends Parser {
     OperatorParser(String token) {
         super(token);
     }
+
+    /**
+     * Match the operator, with any surrounding whitespace, at the start of a region.
+     * 
+     * @return the number of characters matched, or -1 if the operator is not at the start of the region.
+     */
+    int match(String expression, int start, int end) {
+        int position = matchToken(expression, skipSpace(expression, start, end), end);
+        if (position < 0)
+            return -1;
+        return skipSpace(expression, position, end) - start;
+    }
 }
\ No newline at end of file
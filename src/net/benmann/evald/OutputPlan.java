@@ -0,0 +1,90 @@
+package net.benmann.evald;
+
+import net.benmann.evald.AbstractEvaldException.UncompilableEvaldException;
+
+/**
+ * The statements needed to compute a set of outputs, found once by {@link Evald#createOutputPlan(String...)}. Passing
+ * the plan to {@link Evald#evaluate(OutputPlan)} runs only those statements, without repeating the dependency analysis
+ * of {@link Evald#enableOutputs(String...)} or changing the outputs it enabled, so an instance can switch between
+ * several output sets cheaply.
+ *
+ * A plan is tied to the expression it was created from: parsing, reparsing or compacting the variables of the instance
+ * invalidates it.
+ *
+ * The statements are also compiled to a {@link CompactProgram} as the plan is created, which lets several threads
+ * compute different output sets of one instance at the same time. Each thread evaluates with its own frame, from
+ * {@link #newFrame()}, using {@link #evaluate(double[])}; the instance itself is not read or written. Only the
+ * {@link Evald#evaluate(OutputPlan)} form evaluates the instance's own variables, and as for
+ * {@link Evald#evaluate()}, only one thread may do so at a time.
+ */
+public final class OutputPlan {
+    final Evald evald;
+    /** The expression version the plan was created from */
+    final int version;
+    /** The positions of the statements to run, in execution order */
+    final int[] statements;
+    /** The statements compiled to read and write variables by index, or null if they can't be compiled */
+    final CompactProgram program;
+    /** The values of the instance's variables when the plan was created, followed by working space */
+    private final double[] initialFrame;
+
+    /**
+     * The statements compiled to read and write the instance's slots, for the generation they were compiled for; see
+     * {@link Evald#setReuseIntermediateSlots(boolean)}. Only used by the instance's evaluating thread.
+     */
+    CompactProgram slotProgram;
+    int slotGeneration = -1;
+    double[] stack;
+    /** The number of times the plan has been evaluated as a tree, towards {@link Evald#setCompileThreshold(int)} */
+    int evaluations;
+
+    OutputPlan(Evald evald, int version, int[] statements, CompactProgram program, double[] values) {
+        this.evald = evald;
+        this.version = version;
+        this.statements = statements;
+        this.program = program;
+        if (program == null) {
+            initialFrame = null;
+        } else {
+            initialFrame = program.newFrame();
+            System.arraycopy(values, 0, initialFrame, 0, program.variableTokens.length);
+            stack = new double[program.maxStackDepth];
+        }
+    }
+
+    /**
+     * @return the number of statements run by the plan.
+     */
+    public int getStatementCount() {
+        return statements.length;
+    }
+
+    /**
+     * Create a frame to evaluate the plan with {@link #evaluate(double[])}. Variables are found at the same indices as
+     * in the instance ({@link Evald#getVariableIndex(String)}), and initially hold the values the instance's variables
+     * had when the plan was created.
+     *
+     * @throws UncompilableEvaldException
+     *             if the statements use an operation with no compact equivalent, such as one added by a custom parser.
+     */
+    public double[] newFrame() {
+        if (program == null)
+            throw new UncompilableEvaldException("The output plan contains an operation which cannot be compacted");
+        return initialFrame.clone();
+    }
+
+    /**
+     * Evaluate the plan's statements against a frame, storing each result in the frame. The instance the plan was
+     * created from is not used, so any number of threads may evaluate plans of the same instance at once, each with its
+     * own frame.
+     *
+     * @param frame
+     *            a frame created with {@link #newFrame()}, holding the current input values.
+     * @return the result of the last statement in the plan.
+     */
+    public double evaluate(double[] frame) {
+        if (program == null)
+            throw new UncompilableEvaldException("The output plan contains an operation which cannot be compacted");
+        return program.evaluate(frame);
+    }
+}
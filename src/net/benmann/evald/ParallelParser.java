@@ -0,0 +1,126 @@
+package net.benmann.evald;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.benmann.evald.AbstractEvaldException.EmptyExpressionEvaldException;
+import net.benmann.evald.AbstractEvaldException.EvaldException;
+
+/**
+ * Parses the statements of a multi-statement expression on several threads. Each statement is parsed symbolically,
+ * with variables referenced by name, so the Evald instance isn't modified. The caller then declares and binds the
+ * variables of each statement in order, so indices are assigned exactly as a sequential parse would assign them.
+ */
+final class ParallelParser {
+    /** Statements are claimed by workers in batches of this size, to balance the load without contention */
+    private static final int BATCH_SIZE = 32;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "evald-parser-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** The outcome of parsing a single statement */
+    static final class Statement {
+        final String text;
+        /** The output variable, or null if the statement is not an assignment */
+        String variable;
+        Node root;
+        List<Variable> symbols;
+        Set<String> functions;
+        int nodes;
+        int depth;
+        double cost;
+        /** The exception thrown while parsing, to be thrown when the statement is merged */
+        RuntimeException error;
+
+        Statement(String text) {
+            this.text = text;
+        }
+    }
+
+    private ParallelParser() {
+    }
+
+    private static void parse(Evald evald, Statement statement) {
+        try {
+            String[] assignment = evald.splitAssignment(statement.text);
+            if (assignment == null)
+                throw new EvaldException("Expected an assignment expression.");
+            ExpressionString string = new ExpressionString(assignment[1]);
+            if (string.expression.isEmpty())
+                throw new EmptyExpressionEvaldException(string);
+            statement.variable = assignment[0];
+            ExpressionParser parser = ExpressionParser.symbolic(evald, string);
+            statement.symbols = parser.symbols;
+            statement.functions = parser.usedFunctions;
+            statement.root = parser.parse();
+            statement.nodes = parser.count.nodes;
+            statement.depth = parser.depth;
+            statement.cost = parser.cost;
+        } catch (RuntimeException e) {
+            statement.error = e;
+        }
+    }
+
+    /**
+     * Parse each statement, using the calling thread and up to threads - 1 others.
+     */
+    static Statement[] parse(final Evald evald, List<String> texts, int threads) {
+        final Statement[] statements = new Statement[texts.size()];
+        for (int i = 0; i < statements.length; i++) {
+            statements[i] = new Statement(texts.get(i));
+        }
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override public void run() {
+                while (true) {
+                    int first = next.getAndAdd(BATCH_SIZE);
+                    if (first >= statements.length)
+                        return;
+                    for (int i = first; i < Math.min(first + BATCH_SIZE, statements.length); i++) {
+                        parse(evald, statements[i]);
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(threads, (statements.length + BATCH_SIZE - 1) / BATCH_SIZE) - 1;
+        List<Future<?>> futures = new ArrayList<Future<?>>(helpers);
+        for (int i = 0; i < helpers; i++) {
+            futures.add(EXECUTOR.submit(worker));
+        }
+        worker.run();
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    //Errors such as a stack overflow aren't recorded against the statement
+                    if (e.getCause() instanceof Error)
+                        throw (Error) e.getCause();
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return statements;
+    }
+}
@@ -8,4 +8,34 @@ public abstract class Parser {
     Parser(String token) {
         this.token = token;
     }
+
+    /** @return true for the whitespace characters matched by \s in a regular expression */
+    static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    /** @return the index of the first non-whitespace character at or after position, or end */
+    static int skipSpace(String expression, int position, int end) {
+        while (position < end && isSpace(expression.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @return true if this parser only matches its token, after any whitespace. Parsers which may match other text
+     *         return false.
+     */
+    boolean startsWithToken() {
+        return true;
+    }
+
+    /**
+     * @return the index after the token if it occurs at position, or -1.
+     */
+    int matchToken(String expression, int position, int end) {
+        if (position + token.length() > end || !expression.startsWith(token, position))
+            return -1;
+        return position + token.length();
+    }
 }
\ No newline at end of file
@@ -12,7 +12,13 @@ import java.util.List;
  * which ensures that we don't match against a short operator when a longer operator shares the same initial characters.
  */
 class ParserList<P extends Parser> implements Iterable<P> {
+    private static final int INDEXED_CHARS = 128;
     List<P> parsers = new ArrayList<P>();
+    /**
+     * The parsers which may match each start of a region, built when first needed after the list changes. Entry
+     * i holds the parsers for ASCII character i, and the last entry the parsers for a region of only whitespace.
+     */
+    private volatile List<List<P>> index;
 
     @SafeVarargs final void add(P... ps) {
         parsers.addAll(Arrays.asList(ps));
@@ -30,10 +36,12 @@ class ParserList<P extends Parser> implements Iterable<P> {
                 return Integer.compare(o2.token.length(), o1.token.length());
             }
         });
+        index = null;
     }
 
     final void remove(P parser) {
         parsers.remove(parser);
+        index = null;
     }
 
     final void remove(String key) {
@@ -46,6 +54,44 @@ class ParserList<P extends Parser> implements Iterable<P> {
                 toRemove.add(p);
         }
         parsers.removeAll(toRemove);
+        index = null;
+    }
+
+    private List<List<P>> buildIndex() {
+        List<List<P>> index = new ArrayList<List<P>>(INDEXED_CHARS + 1);
+        for (int c = 0; c <= INDEXED_CHARS; c++) {
+            index.add(new ArrayList<P>());
+        }
+        for (P p : parsers) {
+            if (!keyed(p)) {
+                for (List<P> candidates : index) {
+                    candidates.add(p);
+                }
+            } else if (p.token.charAt(0) < INDEXED_CHARS) {
+                index.get(p.token.charAt(0)).add(p);
+            }
+        }
+        this.index = index;
+        return index;
+    }
+
+    private static boolean keyed(Parser p) {
+        return p.startsWithToken() && p.token != null && !p.token.isEmpty();
+    }
+
+    /**
+     * @return the parsers which may match at the start of a region, in order. Parsers which only match their token,
+     *         after any whitespace, are omitted if the region starts with a different character.
+     */
+    final List<P> candidates(String expression, int start, int end) {
+        List<List<P>> index = this.index;
+        if (index == null)
+            index = buildIndex();
+        int position = Parser.skipSpace(expression, start, end);
+        if (position == end)
+            return index.get(INDEXED_CHARS);
+        char c = expression.charAt(position);
+        return c < INDEXED_CHARS ? index.get(c) : parsers;
     }
 
     @Override public Iterator<P> iterator() {
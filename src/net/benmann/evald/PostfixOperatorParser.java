@@ -1,7 +1,5 @@
 package net.benmann.evald;
 
-import java.util.regex.Matcher;
-
 abstract class PostfixOperatorParser extends UnaryOperatorParser {
     PostfixOperatorParser(String token) {
         super(token);
@@ -10,15 +8,10 @@ abstract class PostfixOperatorParser extends UnaryOperatorParser {
     abstract PostfixOperatorNode create();
 
     PostfixOperatorNode parse(ExpressionString str) {
-    	Matcher matches = tokenPattern.matcher(str.expression);
-    	
-    	if (!matches.find())
-    		return null;
-    	
-    	String tokenFound = matches.group(1);
-    	
-    	int skip = tokenFound.length();
-    	
+        int skip = match(str.expression, 0, str.expression.length());
+        if (skip < 0)
+            return null;
+
     	str.update(skip);
     	
         return create();
@@ -0,0 +1,205 @@
+package net.benmann.evald;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Holds the current version of a program which may be replaced while it is being evaluated, such as formulas updated
+ * from a configuration store. Each update parses a new {@link Evald} instance, off to the side, then publishes it with
+ * a single volatile write; the published instance is never parsed again. A thread evaluating the previous instance
+ * finishes with it undisturbed, and sees the new one the next time it calls {@link #current()}.
+ *
+ * Each version is published as a {@link Snapshot}, pairing the instance with its version number, so the two are always
+ * read together. Variable indices may differ between versions, so a caller caching indices should keep the snapshot
+ * they were looked up from, and look them up again when {@link #current()} returns a different one.
+ *
+ * Carrying over variable values is best effort. The values of variables which exist in both versions are copied from
+ * the previous instance as the new one is published, without synchronizing with threads which may still be setting
+ * or evaluating the previous instance. A value set on the previous instance while it is being copied may or may not be
+ * carried over, and one set after the new version is published is lost. Callers which must not lose inputs should set
+ * them again on each new version.
+ *
+ * Updates are serialized with each other. As for any {@link Evald} instance, only one thread may evaluate the current
+ * instance at a time.
+ */
+public final class ProgramHolder {
+    /**
+     * Creates each version's instance, configured with the libraries, functions and settings required.
+     */
+    public interface Factory {
+        Evald create();
+    }
+
+    /**
+     * A version of the program: an instance, and the number of times the program had been replaced when it was
+     * published.
+     */
+    public static final class Snapshot {
+        private final Evald evald;
+        private final int version;
+
+        Snapshot(Evald evald, int version) {
+            this.evald = evald;
+            this.version = version;
+        }
+
+        /**
+         * @return the instance holding this version of the program.
+         */
+        public Evald get() {
+            return evald;
+        }
+
+        /**
+         * @return the version number, starting from 1 for the initial program.
+         */
+        public int getVersion() {
+            return version;
+        }
+    }
+
+    private final Factory factory;
+    private volatile Snapshot current;
+    private volatile Exception lastError;
+
+    /**
+     * @param factory
+     *            creates the instance for each version of the program.
+     * @param expression
+     *            the initial program.
+     * @throws AbstractEvaldException
+     *             on any syntax error, as for {@link Evald#parse(String)}.
+     */
+    public ProgramHolder(Factory factory, String expression) {
+        this.factory = factory;
+        update(expression);
+    }
+
+    /**
+     * @return the current version of the program, with its version number.
+     */
+    public Snapshot current() {
+        return current;
+    }
+
+    /**
+     * @return the current version of the program. Use {@link #current()} to read the instance and its version number
+     *         together.
+     */
+    public Evald get() {
+        return current.get();
+    }
+
+    /**
+     * @return the number of times the program has been replaced, starting from 1 for the initial program. Use
+     *         {@link #current()} to read the instance and its version number together.
+     */
+    public int getVersion() {
+        return current.getVersion();
+    }
+
+    /**
+     * Replace the program. If the expression has a syntax error, the exception is thrown and the current program
+     * remains in use.
+     *
+     * @throws AbstractEvaldException
+     *             on any syntax error, as for {@link Evald#parse(String)}.
+     */
+    public synchronized void update(String expression) {
+        Evald evald = factory.create();
+        evald.parse(expression);
+        publish(evald);
+    }
+
+    /**
+     * Replace the program with one read from a UTF-8 encoded file, as for {@link #update(String)}.
+     *
+     * @throws IOException
+     *             if the file can't be read.
+     */
+    public synchronized void update(Path file) throws IOException {
+        Evald evald = factory.create();
+        evald.parse(file);
+        publish(evald);
+    }
+
+    private void publish(Evald evald) {
+        Snapshot previous = current;
+        if (previous == null) {
+            current = new Snapshot(evald, 1);
+            return;
+        }
+        //Best effort: the previous instance may still be in use on other threads
+        String[] tokens = previous.evald.listAllVariables();
+        for (int index = 0; index < tokens.length; index++) {
+            int newIndex = evald.keyIndexMap.get(tokens[index]);
+            if (newIndex != TokenIndexMap.MISSING)
+                evald.setVariable(newIndex, previous.evald.getVariableValue(index));
+        }
+        current = new Snapshot(evald, previous.version + 1);
+    }
+
+    /**
+     * Reload the program whenever a file is created or modified, on a daemon thread. A file which can't be read or
+     * parsed leaves the current program in use; the failure is available from {@link #getLastError()}.
+     *
+     * @param file
+     *            the file to watch. Its directory must exist.
+     * @return a handle which stops watching the file when closed.
+     * @throws IOException
+     *             if the file's directory can't be watched.
+     */
+    public Closeable watch(final Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        final Path name = file.getFileName();
+        final WatchService service = directory.getFileSystem().newWatchService();
+        directory.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = service.take();
+                        boolean changed = false;
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= event.kind() == OVERFLOW || name.equals(event.context());
+                        }
+                        key.reset();
+                        if (changed)
+                            reload(file);
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    //stopped watching
+                }
+            }
+        }, "evald-watch-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return service;
+    }
+
+    private void reload(Path file) {
+        try {
+            update(file);
+            lastError = null;
+        } catch (IOException | RuntimeException e) {
+            lastError = e;
+        }
+    }
+
+    /**
+     * @return the reason the most recent reload of a watched file failed, or null if it succeeded. See
+     *         {@link #watch(Path)}.
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+}
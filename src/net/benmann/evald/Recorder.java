@@ -0,0 +1,176 @@
+package net.benmann.evald;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the expressions parsed by an {@link Evald} instance, and the stream of variable values set and
+ * evaluations made, to a compact binary file which can be replayed with {@link Replayer}.
+ *
+ * Recording is opt-in: attach a recorder with {@link Evald#setRecorder(Recorder)}. Records are buffered and
+ * written sequentially. An I/O error stops recording rather than interrupting evaluation; the error is
+ * reported by {@link #close()}.
+ *
+ * A recorder is not thread safe, and should be attached to a single Evald instance.
+ */
+public final class Recorder implements Closeable {
+    static final int MAGIC = 0x45564c44; //EVLD
+    static final short VERSION = 1;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Declare variable tokens: int first index, int count, count * string */
+    static final byte VARIABLES = 1;
+    /** Parse an expression: string source */
+    static final byte PARSE = 2;
+    /** Set a variable: int index, double value */
+    static final byte SET = 3;
+    /** Evaluate: double result */
+    static final byte EVALUATE = 4;
+    /** Enable outputs: int count, count * int index */
+    static final byte ENABLE_OUTPUTS = 5;
+    /** Enable all outputs */
+    static final byte ENABLE_ALL_OUTPUTS = 6;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer standardBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /** The standard buffer, or a larger one holding a single record too large for it */
+    private ByteBuffer buffer = standardBuffer;
+    private int recordedVariables;
+    private IOException error;
+    private boolean closed;
+
+    /**
+     * Create a recorder writing to the specified file, which is replaced if it exists.
+     */
+    public Recorder(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(MAGIC).putShort(VERSION);
+    }
+
+    private boolean reserve(int bytes) {
+        if (error != null || closed)
+            return false;
+        if (buffer.remaining() >= bytes)
+            return true;
+        flush();
+        if (error != null)
+            return false;
+        //A record larger than the buffer, such as a long script, is written from a buffer of its own
+        if (buffer.remaining() < bytes)
+            buffer = ByteBuffer.allocate(bytes);
+        return true;
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        buffer = standardBuffer;
+        buffer.clear();
+    }
+
+    private void putString(byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    /** Record the tokens for any variables not yet recorded */
+    private void recordVariables(Evald evald) {
+        String[] variables = evald.listAllVariables();
+        int count = variables.length - recordedVariables;
+        if (count <= 0)
+            return;
+        byte[][] tokens = new byte[count][];
+        int size = 9;
+        for (int i = 0; i < count; i++) {
+            tokens[i] = variables[recordedVariables + i].getBytes(UTF8);
+            size += 4 + tokens[i].length;
+        }
+        if (!reserve(size))
+            return;
+        buffer.put(VARIABLES).putInt(recordedVariables).putInt(count);
+        for (byte[] token : tokens) {
+            putString(token);
+        }
+        recordedVariables += count;
+    }
+
+    void attached(Evald evald) {
+        recordVariables(evald);
+        for (int i = 0; i < recordedVariables; i++) {
+            set(evald, i, evald.getVariableValue(i));
+        }
+    }
+
+    /** Record every variable again after their indices change, as a replay maps recorded indices by token */
+    void compacted(Evald evald) {
+        recordedVariables = 0;
+        recordVariables(evald);
+    }
+
+    void parsed(Evald evald, String source) {
+        byte[] bytes = source.getBytes(UTF8);
+        if (!reserve(5 + bytes.length))
+            return;
+        buffer.put(PARSE);
+        putString(bytes);
+        recordVariables(evald);
+    }
+
+    void set(Evald evald, int index, double value) {
+        if (index >= recordedVariables)
+            recordVariables(evald);
+        if (!reserve(13))
+            return;
+        buffer.put(SET).putInt(index).putDouble(value);
+    }
+
+    void evaluated(double result) {
+        if (!reserve(9))
+            return;
+        buffer.put(EVALUATE).putDouble(result);
+    }
+
+    void outputsEnabled(int[] indices) {
+        if (!reserve(5 + 4 * indices.length))
+            return;
+        buffer.put(ENABLE_OUTPUTS).putInt(indices.length);
+        for (int index : indices) {
+            buffer.putInt(index);
+        }
+    }
+
+    void allOutputsEnabled() {
+        if (!reserve(1))
+            return;
+        buffer.put(ENABLE_ALL_OUTPUTS);
+    }
+
+    /**
+     * Flush any buffered records and close the file.
+     *
+     * @throws IOException
+     *             if any error occurred while recording or closing.
+     */
+    @Override public void close() throws IOException {
+        if (closed)
+            return;
+        if (error == null)
+            flush();
+        closed = true;
+        channel.close();
+        if (error != null)
+            throw error;
+    }
+}
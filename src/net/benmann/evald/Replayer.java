@@ -0,0 +1,261 @@
+package net.benmann.evald;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Replays a file written by {@link Recorder} against an {@link Evald} instance, which may be configured
+ * differently to the recorded instance (for example with different libraries or optimisation). Variables are
+ * matched by name, so indices need not agree.
+ *
+ * The replay reports evaluation throughput, latency percentiles and a checksum of the results. Only calls to
+ * {@link Evald#evaluate()} are timed. Results are also compared with those recorded.
+ */
+public final class Replayer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The outcome of a replay.
+     */
+    public static final class Report {
+        private final int parses;
+        private final long[] latencies;
+        private final long totalNanos;
+        private final long checksum;
+        private final int mismatches;
+
+        Report(int parses, long[] latencies, long totalNanos, long checksum, int mismatches) {
+            this.parses = parses;
+            this.latencies = latencies;
+            this.totalNanos = totalNanos;
+            this.checksum = checksum;
+            this.mismatches = mismatches;
+        }
+
+        /** @return the number of expressions parsed */
+        public int getParses() {
+            return parses;
+        }
+
+        /** @return the number of evaluations replayed */
+        public int getEvaluations() {
+            return latencies.length;
+        }
+
+        /** @return the total time spent evaluating, in nanoseconds */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /** @return evaluations per second, excluding time spent reading the recording */
+        public double getThroughput() {
+            return totalNanos == 0 ? 0 : latencies.length * 1e9 / totalNanos;
+        }
+
+        /**
+         * @param percentile
+         *            a percentile between 0 and 100.
+         * @return the evaluation latency at the specified percentile, in nanoseconds, or 0 if nothing was evaluated.
+         */
+        public long getLatencyPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            if (latencies.length == 0)
+                return 0;
+            int rank = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, rank)];
+        }
+
+        /** @return the highest evaluation latency, in nanoseconds */
+        public long getMaxLatency() {
+            return latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+        }
+
+        /** @return a checksum of the bits of every evaluation result, in order */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /** @return the number of results which differed from the recorded result */
+        public int getMismatches() {
+            return mismatches;
+        }
+
+        @Override public String toString() {
+            return String.format("parses=%d evaluations=%d throughput=%.0f/s p50=%dns p90=%dns p99=%dns p99.9=%dns max=%dns checksum=%016x mismatches=%d",
+                    parses, getEvaluations(), getThroughput(), getLatencyPercentile(50), getLatencyPercentile(90),
+                    getLatencyPercentile(99), getLatencyPercentile(99.9), getMaxLatency(), checksum, mismatches);
+        }
+    }
+
+    private final FileChannel channel;
+    /** Grown to hold any record larger than the initial size */
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private Replayer(FileChannel channel) {
+        this.channel = channel;
+        buffer.flip();
+    }
+
+    /** Ensure at least the specified number of bytes are buffered */
+    private void require(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes)
+            return;
+        if (bytes > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(bytes);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Truncated recording");
+        }
+        buffer.flip();
+    }
+
+    /** @return false at the end of the recording */
+    private boolean hasMore() throws IOException {
+        if (buffer.hasRemaining())
+            return true;
+        buffer.clear();
+        int read = channel.read(buffer);
+        buffer.flip();
+        return read > 0;
+    }
+
+    private String getString() throws IOException {
+        require(4);
+        int length = buffer.getInt();
+        require(length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Recorder.UTF8);
+    }
+
+    private Report replay(Evald evald) throws IOException {
+        require(6);
+        if (buffer.getInt() != Recorder.MAGIC)
+            throw new IOException("Not an evald recording");
+        short version = buffer.getShort();
+        if (version != Recorder.VERSION)
+            throw new IOException("Unsupported recording version " + version);
+
+        int[] indexMap = new int[16];
+        long[] latencies = new long[1024];
+        int evaluations = 0;
+        int parses = 0;
+        long totalNanos = 0;
+        long checksum = FNV_OFFSET;
+        int mismatches = 0;
+
+        while (hasMore()) {
+            byte type = buffer.get();
+            switch (type) {
+            case Recorder.VARIABLES: {
+                require(8);
+                int first = buffer.getInt();
+                int count = buffer.getInt();
+                if (first + count > indexMap.length)
+                    indexMap = Arrays.copyOf(indexMap, Math.max(first + count, indexMap.length * 2));
+                for (int i = first; i < first + count; i++) {
+                    String token = getString();
+                    int index = evald.keyIndexMap.get(token);
+                    indexMap[i] = index == TokenIndexMap.MISSING ? evald.addVariable(token) : index;
+                }
+                break;
+            }
+            case Recorder.PARSE:
+                evald.parse(getString());
+                parses++;
+                break;
+            case Recorder.SET: {
+                require(12);
+                int index = buffer.getInt();
+                evald.setVariable(indexMap[index], buffer.getDouble());
+                break;
+            }
+            case Recorder.EVALUATE: {
+                require(8);
+                long expected = Double.doubleToLongBits(buffer.getDouble());
+                long start = System.nanoTime();
+                double result = evald.evaluate();
+                long elapsed = System.nanoTime() - start;
+                long bits = Double.doubleToLongBits(result);
+                checksum = (checksum ^ bits) * FNV_PRIME;
+                if (bits != expected)
+                    mismatches++;
+                if (evaluations == latencies.length)
+                    latencies = Arrays.copyOf(latencies, evaluations * 2);
+                latencies[evaluations++] = elapsed;
+                totalNanos += elapsed;
+                break;
+            }
+            case Recorder.ENABLE_OUTPUTS: {
+                require(4);
+                int count = buffer.getInt();
+                require(4 * count);
+                int[] outputs = new int[count];
+                for (int i = 0; i < count; i++) {
+                    outputs[i] = indexMap[buffer.getInt()];
+                }
+                evald.enableOutputs(outputs);
+                break;
+            }
+            case Recorder.ENABLE_ALL_OUTPUTS:
+                evald.enableAllOutputs();
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+            }
+        }
+
+        latencies = Arrays.copyOf(latencies, evaluations);
+        Arrays.sort(latencies);
+        return new Report(parses, latencies, totalNanos, checksum, mismatches);
+    }
+
+    /**
+     * Replay a recording.
+     *
+     * @param file
+     *            a file written by {@link Recorder}
+     * @param evald
+     *            the instance to replay against. Libraries, user functions and options should be configured
+     *            before replaying.
+     * @return a report of the replay.
+     * @throws IOException
+     *             if the file can't be read, or is not a valid recording.
+     */
+    public static Report replay(Path file, Evald evald) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new Replayer(channel).replay(evald);
+        }
+    }
+
+    /**
+     * Replay a recording against an instance using all standard libraries, and print the report.
+     *
+     * Usage: Replayer recording [repeats]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Replayer recording [repeats]");
+            System.exit(1);
+        }
+        Path file = Paths.get(args[0]);
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        for (int i = 0; i < repeats; i++) {
+            System.out.println(replay(file, new Evald(Library.ALL)));
+        }
+    }
+}
@@ -1,5 +0,0 @@
-package net.benmann.evald;
-
-abstract class SetValueArrayCallback {
-    abstract void setValueArray(double[] valueArray);
-}
\ No newline at end of file
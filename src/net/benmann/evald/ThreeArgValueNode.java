@@ -30,4 +30,37 @@ abstract class ThreeArgValueNode extends ValueNode {
         sb.append(arg3.toTree(prefix + "  "));
         return sb.toString();
     }
+
+    @Override int arity() {
+        return 3;
+    }
+
+    @Override Node arg(int index) {
+        switch (index) {
+        case 0:
+            return arg1;
+        case 1:
+            return arg2;
+        case 2:
+            return arg3;
+        default:
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    @Override void setArg(int index, Node node) {
+        switch (index) {
+        case 0:
+            arg1 = node;
+            break;
+        case 1:
+            arg2 = node;
+            break;
+        case 2:
+            arg3 = node;
+            break;
+        default:
+            throw new IndexOutOfBoundsException();
+        }
+    }
 }
\ No newline at end of file
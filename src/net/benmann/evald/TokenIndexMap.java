@@ -0,0 +1,90 @@
+package net.benmann.evald;
+
+/**
+ * Maps variable tokens to their indices without boxing, using open addressing with linear probing. Individual tokens
+ * can't be removed; the map is cleared and rebuilt when variables are compacted.
+ */
+final class TokenIndexMap {
+    /** Returned by {@link #get(String)} for a token which has not been added */
+    static final int MISSING = -1;
+    private static final int INITIAL_CAPACITY = 32;
+
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /** Spread the bits of the (cached) string hash, so that similar tokens don't probe the same slots */
+    private static int slot(String token, int mask) {
+        int hash = token.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * @return the index of the token, or {@link #MISSING}
+     */
+    int get(String token) {
+        String[] keys = this.keys;
+        int mask = keys.length - 1;
+        for (int i = slot(token, mask);; i = (i + 1) & mask) {
+            String key = keys[i];
+            if (key == null)
+                return MISSING;
+            if (key.equals(token))
+                return values[i];
+        }
+    }
+
+    boolean containsKey(String token) {
+        return get(token) != MISSING;
+    }
+
+    /** Add a token, or replace the index of a token already added */
+    void put(String token, int index) {
+        //Keep at least half of the slots empty, so that probe sequences stay short
+        if (2 * (size + 1) > keys.length)
+            resize(keys.length * 2);
+        int mask = keys.length - 1;
+        for (int i = slot(token, mask);; i = (i + 1) & mask) {
+            String key = keys[i];
+            if (key == null) {
+                keys[i] = token;
+                values[i] = index;
+                size++;
+                return;
+            }
+            if (key.equals(token)) {
+                values[i] = index;
+                return;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Remove every token, releasing the space they used */
+    void clear() {
+        keys = new String[INITIAL_CAPACITY];
+        values = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[capacity];
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null)
+                continue;
+            int j = slot(oldKeys[i], mask);
+            while (keys[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.benmann.evald;
+
+/**
+ * Measures expression trees without recursion, so that a tree too deep to evaluate or collapse recursively can be
+ * measured, and rejected, safely.
+ */
+final class TreeSize {
+    private static final int INITIAL_STACK_SIZE = 16;
+
+    private TreeSize() {
+    }
+
+    /**
+     * @param limit
+     *            stop measuring once the depth exceeds this, or -1 to measure the whole tree.
+     * @return the depth of the tree, where a single node has depth 1, or a depth greater than limit.
+     */
+    static int depth(Node root, int limit) {
+        Node[] nodes = new Node[INITIAL_STACK_SIZE];
+        int[] depths = new int[INITIAL_STACK_SIZE];
+        int size = 0;
+        int result = 0;
+        nodes[size] = root;
+        depths[size++] = 1;
+        while (size > 0) {
+            Node node = nodes[--size];
+            int depth = depths[size];
+            nodes[size] = null;
+            if (depth > result) {
+                result = depth;
+                if (limit >= 0 && result > limit)
+                    return result;
+            }
+            int arity = node.arity();
+            if (size + arity > nodes.length) {
+                int length = Math.max(nodes.length * 2, size + arity);
+                Node[] grownNodes = new Node[length];
+                int[] grownDepths = new int[length];
+                System.arraycopy(nodes, 0, grownNodes, 0, size);
+                System.arraycopy(depths, 0, grownDepths, 0, size);
+                nodes = grownNodes;
+                depths = grownDepths;
+            }
+            for (int i = 0; i < arity; i++) {
+                nodes[size] = node.arg(i);
+                depths[size++] = depth + 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the cost of evaluating a tree, as the sum of the {@link Opcode#cost} of each node. Nodes which are only
+     * evaluated on some paths, such as the branches of an if(), are weighted by the probability of evaluating them,
+     * assuming each condition is equally likely to be true or false. Nodes with no opcode, such as those created by
+     * an operator added with a custom parser, cost {@link ArgFunction#DEFAULT_COST}.
+     */
+    static double cost(Node root) {
+        Node[] nodes = new Node[INITIAL_STACK_SIZE];
+        double[] weights = new double[INITIAL_STACK_SIZE];
+        int size = 0;
+        double result = 0;
+        nodes[size] = root;
+        weights[size++] = 1;
+        while (size > 0) {
+            Node node = nodes[--size];
+            double weight = weights[size];
+            nodes[size] = null;
+            Opcode opcode = node.opcode();
+            if (opcode == null) {
+                result += weight * ArgFunction.DEFAULT_COST;
+            } else if (node.foldOpcode(1) != null) {
+                for (int i = 1; i < node.arity(); i++) {
+                    result += weight * node.foldOpcode(i).cost;
+                }
+            } else {
+                result += weight * opcode.cost;
+                if (node instanceof ArgFunction.PureFunctionValueNode)
+                    result += weight * ((ArgFunction.PureFunctionValueNode) node).function().getCost();
+            }
+            int arity = node.arity();
+            if (size + arity > nodes.length) {
+                int length = Math.max(nodes.length * 2, size + arity);
+                Node[] grownNodes = new Node[length];
+                double[] grownWeights = new double[length];
+                System.arraycopy(nodes, 0, grownNodes, 0, size);
+                System.arraycopy(weights, 0, grownWeights, 0, size);
+                nodes = grownNodes;
+                weights = grownWeights;
+            }
+            for (int i = 0; i < arity; i++) {
+                nodes[size] = node.arg(i);
+                weights[size++] = conditional(opcode, i) ? weight / 2 : weight;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the argument is only evaluated on some paths: either branch of an if(), or the second operand of
+     *         a short circuit operator.
+     */
+    private static boolean conditional(Opcode opcode, int index) {
+        if (opcode == Opcode.IF)
+            return index > 0;
+        if (opcode == Opcode.AND || opcode == Opcode.OR)
+            return index == 1;
+        return false;
+    }
+}
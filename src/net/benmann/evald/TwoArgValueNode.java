@@ -27,4 +27,32 @@ abstract class TwoArgValueNode extends ValueNode {
         sb.append(arg2.toTree(prefix + "  "));
         return sb.toString();
     }
+
+    @Override int arity() {
+        return 2;
+    }
+
+    @Override Node arg(int index) {
+        switch (index) {
+        case 0:
+            return arg1;
+        case 1:
+            return arg2;
+        default:
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    @Override void setArg(int index, Node node) {
+        switch (index) {
+        case 0:
+            arg1 = node;
+            break;
+        case 1:
+            arg2 = node;
+            break;
+        default:
+            throw new IndexOutOfBoundsException();
+        }
+    }
 }
\ No newline at end of file
@@ -4,4 +4,20 @@ abstract class UnaryOperatorNode extends OperatorNode {
     UnaryOperatorNode(String token, boolean isConstant) {
         super(token, isConstant);
     }
+
+    @Override int arity() {
+        return 1;
+    }
+
+    @Override Node arg(int index) {
+        if (index != 0)
+            throw new IndexOutOfBoundsException();
+        return b;
+    }
+
+    @Override void setArg(int index, Node node) {
+        if (index != 0)
+            throw new IndexOutOfBoundsException();
+        b = node;
+    }
 }
\ No newline at end of file
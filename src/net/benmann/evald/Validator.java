@@ -0,0 +1,240 @@
+package net.benmann.evald;
+
+import java.util.regex.Matcher;
+
+import net.benmann.evald.Diagnostics.Kind;
+
+/**
+ * Checks the syntax of an expression, following the same rules as {@link ExpressionParser}, but without creating
+ * nodes, declaring variables or throwing exceptions. Regions of the expression are addressed by offset, so no
+ * substrings are created. The first error is recorded in a {@link Diagnostics}.
+ */
+final class Validator {
+    /** Returned by a value parser when the region doesn't start with its value */
+    static final int NO_MATCH = -1;
+    /** Returned once an error has been recorded */
+    static final int FAILED = -2;
+
+    final Evald evald;
+    final String expression;
+    private final Diagnostics diagnostics;
+    private int undeclaredStart = -1;
+    private int undeclaredEnd;
+
+    Validator(Evald evald, String expression, Diagnostics diagnostics) {
+        this.evald = evald;
+        this.expression = expression;
+        this.diagnostics = diagnostics;
+    }
+
+    /** Record an error, and return {@link #FAILED} */
+    int fail(Kind kind, int start, int end) {
+        diagnostics.set(kind, start, end);
+        return FAILED;
+    }
+
+    /**
+     * Validate every statement, splitting statements as {@link Evald#parse(String)} does.
+     *
+     * @return true if the expression is valid.
+     */
+    boolean validate() {
+        diagnostics.reset(expression);
+        int length = expression.length();
+        int semicolon = expression.indexOf(';');
+        //As for String.split, the expression is a single statement unless a non-empty statement follows a semicolon
+        boolean single = true;
+        for (int i = semicolon + 1; semicolon >= 0 && i < length; i++) {
+            if (expression.charAt(i) != ';') {
+                single = false;
+                break;
+            }
+        }
+        if (single && semicolon != 0) {
+            int end = semicolon < 0 ? length : semicolon;
+            if (!Evald.subExpressionPattern.matcher(expression).region(0, end).find()) {
+                implicitStatement(end);
+                return finish();
+            }
+        }
+
+        int start = 0;
+        while (start <= length && diagnostics.isValid()) {
+            int end = expression.indexOf(';', start);
+            if (end < 0)
+                end = length;
+            int first = trimStart(start, end);
+            int last = trimEnd(first, end);
+            if (first < last)
+                statement(first, last);
+            start = end + 1;
+        }
+        return finish();
+    }
+
+    private boolean finish() {
+        if (diagnostics.isValid() && undeclaredStart >= 0)
+            fail(Kind.UNDECLARED_VARIABLE, undeclaredStart, undeclaredEnd);
+        return diagnostics.isValid();
+    }
+
+    /** As for {@link String#trim()} */
+    private int trimStart(int start, int end) {
+        while (start < end && expression.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && expression.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private void statement(int start, int end) {
+        Matcher matcher = Evald.subExpressionPattern.matcher(expression).region(start, end);
+        if (!matcher.find() || matcher.groupCount() != 2) {
+            fail(Kind.EXPECTED_ASSIGNMENT, start, end);
+            return;
+        }
+        int first = trimStart(matcher.start(2), matcher.end(2));
+        int last = trimEnd(first, matcher.end(2));
+        if (first == last) {
+            fail(Kind.EMPTY_EXPRESSION, start, end);
+            return;
+        }
+        declare(expression.substring(matcher.start(1), matcher.end(1)));
+        expression(first, last);
+    }
+
+    /**
+     * Validate a single statement without an assignment, which is parsed as an assignment to the result variable.
+     * The assignment pattern ends the expression at the first line break after an =, so the same is done here.
+     */
+    private void implicitStatement(int end) {
+        int equals = expression.indexOf('=');
+        if (equals >= 0 && equals < end) {
+            for (int i = equals; i < end; i++) {
+                char c = expression.charAt(i);
+                if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                    end = i;
+                    break;
+                }
+            }
+        }
+        int first = trimStart(0, end);
+        int last = trimEnd(first, end);
+        if (first == last) {
+            fail(Kind.EMPTY_EXPRESSION, 0, end);
+            return;
+        }
+        declare(evald.getDefaultResultToken());
+        expression(first, last);
+    }
+
+    private void declare(String output) {
+        if (!evald.getAllowUndeclared())
+            diagnostics.outputs.add(output);
+    }
+
+    /**
+     * Note a variable read by the expression, which must be declared if undeclared variables are not allowed. As for
+     * parsing, an undeclared variable is only reported if the expression has no syntax errors.
+     */
+    void variable(int start, int end) {
+        if (evald.getAllowUndeclared() || undeclaredStart >= 0)
+            return;
+        String token = expression.substring(start, end);
+        if (evald.keyIndexMap.containsKey(token) || diagnostics.outputs.contains(token))
+            return;
+        undeclaredStart = start;
+        undeclaredEnd = end;
+    }
+
+    private enum State {
+        PREFIX,
+        VALUE,
+        POSTFIX,
+        OPERATOR
+    }
+
+    /**
+     * Validate an expression, as {@link ExpressionParser#parse()} parses it.
+     *
+     * @return end, or {@link #FAILED}
+     */
+    int expression(int start, int end) {
+        int position = trimStart(start, end);
+        end = trimEnd(position, end);
+        //The start of the last operator read, until a value follows it
+        int operatorStart = -1;
+        int operatorEnd = -1;
+        State state = State.PREFIX;
+        while (position < end) {
+            if (state == State.PREFIX) {
+                int length = matchOperator(evald.prefixOperatorParsers, position, end);
+                if (length >= 0) {
+                    operatorStart = Parser.skipSpace(expression, position, position + length);
+                    operatorEnd = trimEnd(operatorStart, position + length);
+                    position += length;
+                    continue;
+                }
+                state = State.VALUE;
+            } else if (state == State.VALUE) {
+                int next = value(position, end);
+                if (next == FAILED)
+                    return FAILED;
+                if (next == NO_MATCH)
+                    return fail(Kind.EXPECTED_VALUE, position, end);
+                position = next;
+                operatorStart = -1;
+                state = State.POSTFIX;
+            } else if (state == State.POSTFIX) {
+                int length = matchOperator(evald.postfixOperatorParsers, position, end);
+                if (length >= 0) {
+                    position += length;
+                    operatorStart = -1;
+                    if (evald.getAllowMultiplePostfixOperators())
+                        continue;
+                }
+                state = State.OPERATOR;
+            } else if (state == State.OPERATOR) {
+                int length = matchOperator(evald.binaryOperatorParsers, position, end);
+                if (length < 0 && evald.getImplicitMultiplication())
+                    length = Parser.skipSpace(expression, position, end) - position;
+                if (length < 0)
+                    return fail(Kind.EXPECTED_OPERATOR, position, end);
+                operatorStart = Parser.skipSpace(expression, position, position + length);
+                operatorEnd = trimEnd(operatorStart, position + length);
+                position += length;
+                state = State.PREFIX;
+            }
+        }
+        if (operatorStart >= 0)
+            return fail(Kind.MISSING_VALUE, operatorStart, operatorEnd);
+        return end;
+    }
+
+    private int matchOperator(ParserList<? extends OperatorParser> parsers, int start, int end) {
+        for (OperatorParser parser : parsers.candidates(expression, start, end)) {
+            int length = parser.match(expression, start, end);
+            if (length >= 0)
+                return length;
+        }
+        return -1;
+    }
+
+    private int value(int start, int end) {
+        for (ValueParser parser : evald.valueParsers.candidates(expression, start, end)) {
+            int next = parser.validate(this, start, end);
+            if (next != NO_MATCH)
+                return next;
+        }
+        int next = Variable.parser.validate(this, start, end);
+        if (next >= 0 && next < end && !evald.getImplicitMultiplication() && expression.charAt(next) == '(')
+            return fail(Kind.UNKNOWN_METHOD, start, next);
+        return next;
+    }
+}
@@ -6,4 +6,17 @@ abstract class ValueParser extends Parser {
     }
 
     abstract Node parse(ExpressionParser operationParser, ExpressionString str);
+
+    @Override boolean startsWithToken() {
+        return false;
+    }
+
+    /**
+     * Check the syntax of a value at the start of a region of the validator's expression, as
+     * {@link #parse(ExpressionParser, ExpressionString)} would, but without creating nodes.
+     * 
+     * @return the end of the value, {@link Validator#NO_MATCH} if the region doesn't start with this parser's value, or
+     *         {@link Validator#FAILED} if an error was recorded.
+     */
+    abstract int validate(Validator validator, int start, int end);
 }
\ No newline at end of file
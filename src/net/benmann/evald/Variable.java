@@ -1,30 +1,117 @@
 package net.benmann.evald;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 class Variable extends ValueNode {
-    /** Pattern for valid variable names */
-    public static Pattern pattern = Pattern.compile("^[a-zA-Z_][a-z_A-Z0-9]*");
 
-    final int index;
+    int index;
+    /**
+     * The element of the value array read during evaluation. This is the index, unless the variable is an intermediate
+     * sharing a slot with others; see {@link Evald#setReuseIntermediateSlots(boolean)}.
+     */
+    int slot;
+    /**
+     * The array read during evaluation, and the element read. This is the instance's value array and the slot, unless
+     * the variable is read in place from the caller's array; see {@link Evald#bindInputs(double[], int...)}. Set by
+     * {@link #bindAll(Node, double[], int[], int[], double[], int[])} once the statement has been parsed.
+     */
     double[] values;
+    int element;
+    /** The variable's name, until a symbolic parse binds it to an index */
+    String token;
 
     //how about: when we do parse(), we allocate the evald valuelist, because we know which variables
     //are used in THIS expression, and can pre-allocate them. Then, after the allocation
     Variable(ExpressionParser parser, int index) {
         super(false);
-        parser.evald.addValueArrayCallback(new SetValueArrayCallback() {
-            @Override void setValueArray(double[] valueArray) {
-                values = valueArray;
-            }
-        });
+        this.index = index;
+        this.slot = index;
+        this.element = index;
         parser.addUsedIndex(index);
+    }
+
+    /**
+     * Create a variable which is not yet bound to an index, for a parse which can't modify the Evald instance.
+     */
+    Variable(String token) {
+        super(false);
+        this.index = -1;
+        this.slot = -1;
+        this.element = -1;
+        this.token = token;
+    }
+
+    void bind(int index) {
         this.index = index;
+        this.slot = index;
+        this.element = index;
+        token = null;
+    }
+
+    static boolean isNameStart(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+    }
+
+    static boolean isNameChar(char c) {
+        return isNameStart(c) || c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return the end of the variable name at the start of the region, or -1.
+     */
+    static int matchName(String expression, int start, int end) {
+        if (start >= end || !isNameStart(expression.charAt(start)))
+            return -1;
+        int position = start + 1;
+        while (position < end && isNameChar(expression.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Point every variable in a tree at a value array. The tree is walked with an explicit stack, so that very deep
+     * trees can be bound.
+     * 
+     * @param remap
+     *            a table from each current index to a new index, or null to keep the current indices.
+     * @param slots
+     *            a table from each index to the slot the variable is read from, or null to read each variable from
+     *            its index. Variables with indices beyond the table are read from their index.
+     * @param external
+     *            the caller's array read in place, or null.
+     * @param elements
+     *            a table from each index to the element of the external array the variable is read from, or -1 to
+     *            read the variable from the value array, or null if no variable is read from the external array.
+     *            Variables with indices beyond the table are read from the value array.
+     */
+    static void bindAll(Node root, double[] values, int[] remap, int[] slots, double[] external, int[] elements) {
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            if (node instanceof Variable) {
+                Variable variable = (Variable) node;
+                variable.values = values;
+                if (remap != null)
+                    variable.index = remap[variable.index];
+                variable.slot = slots != null && variable.index < slots.length ? slots[variable.index] : variable.index;
+                variable.element = variable.slot;
+                if (elements != null && variable.index < elements.length && elements[variable.index] >= 0) {
+                    variable.values = external;
+                    variable.element = elements[variable.index];
+                }
+                continue;
+            }
+            for (int i = 0; i < node.arity(); i++) {
+                stack.add(node.arg(i));
+            }
+        }
     }
 
     @Override protected double get() {
-        return values[index];
+        return values[element];
     }
 
     @Override protected Node collapse() {
@@ -34,30 +121,60 @@ class Variable extends ValueNode {
     @Override String toTree(String prefix) {
         StringBuilder sb = new StringBuilder();
         String value = "undefined";
-        if (values != null && values.length > index) {
+        if (values != null && values.length > element) {
             value = Double.toString(get());
         }
         sb.append(prefix).append("Variable[").append(index).append("] (").append(value).append(")\n");
         return sb.toString();
     }
 
+    @Override int arity() {
+        return 0;
+    }
+
+    @Override Node arg(int index) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override void setArg(int index, Node node) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override Opcode opcode() {
+        return Opcode.LOAD;
+    }
+
     static ValueParser parser = new ValueParser(null) {
         @Override ValueNode parse(ExpressionParser operationParser, ExpressionString str) {
             //Find a value
-            Matcher matcher = Variable.pattern.matcher(str.expression);
-            if (!matcher.find())
+            int length = matchName(str.expression, 0, str.expression.length());
+            if (length < 0)
                 return null;
 
-            String content = matcher.group();
+            String content = str.expression.substring(0, length);
+            if (operationParser.symbols != null) {
+                str.update(content.length());
+                Variable variable = new Variable(content);
+                operationParser.symbols.add(variable);
+                return variable;
+            }
 
-            Integer index = operationParser.evald.keyIndexMap.get(content);
-            if (index == null) {
+            int index = operationParser.evald.keyIndexMap.get(content);
+            if (index == TokenIndexMap.MISSING) {
                 operationParser.evald.undeclaredKeyMap.add(content);
-                index = operationParser.evald.addVariable(content, 0.0);
+                index = operationParser.evald.addParsedVariable(content);
             }
 
             str.update(content.length());
             return new Variable(operationParser, index);
         }
+
+        @Override int validate(Validator validator, int start, int end) {
+            int position = matchName(validator.expression, start, end);
+            if (position < 0)
+                return Validator.NO_MATCH;
+            validator.variable(start, position);
+            return position;
+        }
     };
 }
\ No newline at end of file
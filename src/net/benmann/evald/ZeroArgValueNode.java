@@ -17,4 +17,16 @@ abstract class ZeroArgValueNode extends ValueNode {
     @Override protected Node collapse() {
         return this;
     }
+
+    @Override int arity() {
+        return 0;
+    }
+
+    @Override Node arg(int index) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override void setArg(int index, Node node) {
+        throw new IndexOutOfBoundsException();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,355 @@
+package net.benmann.evald;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import net.benmann.evald.DifferentialFuzzTests.Generator;
+import net.benmann.evald.DifferentialFuzzTests.Program;
+
+/**
+ * Evaluates the same programs from several threads at once with every registered {@link Engine}, and fails
+ * on any result that differs at the bit level from a single threaded evaluation with the reference engine.
+ * Each thread evaluates a different program and input vector from its neighbours at any moment, so that any
+ * state shared between threads is likely to be corrupted.
+ *
+ * Each thread counts its evaluations in a shared array, either in adjacent slots or padded onto separate
+ * cache lines, which exposes the cost of false sharing.
+ *
+ * For scaling curves: java net.benmann.evald.ConcurrencyStressTests [maxThreads] [millis] [unsafe]
+ * The unsafe option adds an engine which shares a single Evald instance between threads, and is expected to fail;
+ * {@link #testSharedInstanceFails()} checks that it does, so that the harness is known to detect shared state.
+ */
+public class ConcurrencyStressTests {
+    /** Counter slots per thread when padding; 128 bytes covers adjacent cache line prefetch */
+    static final int PADDED = 16;
+    static final int PACKED = 1;
+
+    /** Programs, input vectors, and the expected results of each */
+    static class Workload {
+        final List<String> sources = new ArrayList<String>();
+        final List<String[]> outputs = new ArrayList<String[]>();
+        final List<double[]> results = new ArrayList<double[]>();
+        final List<double[][]> values = new ArrayList<double[][]>();
+        final double[][] inputs;
+
+        Workload(long seed, int programs, int vectors) {
+            Generator generator = new Generator(seed);
+            inputs = new double[vectors][];
+            for (int v = 0; v < vectors; v++) {
+                inputs[v] = generator.inputs();
+            }
+            //A user function with a shared scratch array, and one with scalar arguments
+            add("x = sum(a, b * c, d); y = scale(x, a) + sum(x, x); z = sum(y, x, a, b, c)", new String[] { "x", "y", "z" });
+            while (sources.size() < programs) {
+                add(generator.program());
+            }
+        }
+
+        private void add(Program program) {
+            try {
+                add(program.toString(), program.outputs());
+            } catch (RuntimeException e) {
+                //not a valid program
+            }
+        }
+
+        private void add(String source, String[] outputTokens) {
+            Engine.Prepared reference = Engine.REFERENCE.prepare(source, DifferentialFuzzTests.INPUTS, outputTokens);
+            double[] expectedResults = new double[inputs.length];
+            double[][] expectedValues = new double[inputs.length][outputTokens.length];
+            for (int v = 0; v < inputs.length; v++) {
+                expectedResults[v] = reference.evaluate(inputs[v], expectedValues[v]);
+            }
+            sources.add(source);
+            outputs.add(outputTokens);
+            results.add(expectedResults);
+            values.add(expectedValues);
+        }
+
+        int size() {
+            return sources.size();
+        }
+    }
+
+    /** The outcome of a stress run */
+    static class Run {
+        final int threads;
+        final long evaluations;
+        final long nanos;
+        final long failures;
+        final String firstFailure;
+
+        Run(int threads, long evaluations, long nanos, long failures, String firstFailure) {
+            this.threads = threads;
+            this.evaluations = evaluations;
+            this.nanos = nanos;
+            this.failures = failures;
+            this.firstFailure = firstFailure;
+        }
+
+        double throughput() {
+            return evaluations * 1e9 / nanos;
+        }
+    }
+
+    /**
+     * Evaluate the workload from the specified number of threads for a period of time.
+     *
+     * @param stride
+     *            the distance between each thread's evaluation counter; {@link #PACKED} or {@link #PADDED}.
+     */
+    static Run run(Engine engine, final Workload workload, final int threads, long millis, final int stride) {
+        final Engine.Prepared[][] prepared = new Engine.Prepared[workload.size()][];
+        for (int p = 0; p < workload.size(); p++) {
+            prepared[p] = engine.prepareConcurrent(workload.sources.get(p), DifferentialFuzzTests.INPUTS, workload.outputs.get(p), threads);
+        }
+        final long[] counters = new long[threads * stride];
+        final AtomicLong failures = new AtomicLong();
+        final AtomicReference<String> firstFailure = new AtomicReference<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long duration = millis * 1000000L;
+        final long[] deadline = new long[1];
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread("stress-" + t) {
+                @Override public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    double[][] values = new double[workload.size()][];
+                    for (int p = 0; p < values.length; p++) {
+                        values[p] = new double[workload.outputs.get(p).length];
+                    }
+                    int vectors = workload.inputs.length;
+                    for (int i = 0;; i++) {
+                        if ((i & 63) == 0 && System.nanoTime() - deadline[0] > 0)
+                            return;
+                        int p = (i + thread) % prepared.length;
+                        int v = (i * 31 + thread * 7) % vectors;
+                        double result = prepared[p][thread].evaluate(workload.inputs[v], values[p]);
+                        String failure = check(workload, p, v, result, values[p]);
+                        if (failure != null) {
+                            failures.incrementAndGet();
+                            firstFailure.compareAndSet(null, "thread " + thread + ": " + failure);
+                        }
+                        counters[thread * stride]++;
+                    }
+                }
+            };
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + duration;
+        start.countDown();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        long nanos = System.nanoTime() - begin;
+        long evaluations = 0;
+        for (int t = 0; t < threads; t++) {
+            evaluations += counters[t * stride];
+        }
+        return new Run(threads, evaluations, nanos, failures.get(), firstFailure.get());
+    }
+
+    /** @return a description of the first difference from the expected result, or null if none */
+    static String check(Workload workload, int program, int vector, double result, double[] values) {
+        String[] outputs = workload.outputs.get(program);
+        double[] expected = workload.values.get(program)[vector];
+        for (int i = 0; i < outputs.length; i++) {
+            if (!DifferentialFuzzTests.same(expected[i], values[i]))
+                return outputs[i] + " = " + DifferentialFuzzTests.describe(values[i]) + ", expected " + DifferentialFuzzTests.describe(expected[i])
+                        + " in\n" + workload.sources.get(program);
+        }
+        double expectedResult = workload.results.get(program)[vector];
+        if (!DifferentialFuzzTests.same(expectedResult, result))
+            return "result = " + DifferentialFuzzTests.describe(result) + ", expected " + DifferentialFuzzTests.describe(expectedResult) + " in\n"
+                    + workload.sources.get(program);
+        return null;
+    }
+
+    /** Shares one tree evaluator between every thread, which is not thread safe */
+    static final Engine UNSAFE = new Engine.TreeEngine("tree-shared-unsafe", true) {
+        @Override Prepared[] prepareConcurrent(String source, String[] inputs, String[] outputs, int threads) {
+            Prepared shared = prepare(source, inputs, outputs);
+            Prepared[] prepared = new Prepared[threads];
+            for (int i = 0; i < threads; i++) {
+                prepared[i] = shared;
+            }
+            return prepared;
+        }
+    };
+
+    @Test public void testConcurrentEvaluation() {
+        Workload workload = new Workload(1, 40, 32);
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        for (Engine engine : Engine.ALL) {
+            Run run = run(engine, workload, threads, 200, PADDED);
+            assertTrue(engine + " made no progress", run.evaluations > 0);
+            assertEquals(engine + " " + run.firstFailure, 0, run.failures);
+        }
+    }
+
+    /**
+     * The shared instance engine must fail, or the harness can't detect the races it is intended to find: threads
+     * overwriting each other's inputs in the shared value array, and each other's arguments in the scratch array of a
+     * user function. The yielding function widens the window for both.
+     */
+    @Test public void testSharedInstanceFails() {
+        Workload workload = new Workload(1, 0, 32);
+        workload.add("x = sum(yielding(a, b), yielding(c, d), a * c); y = sum(x, yielding(b, x), d)", new String[] { "x", "y" });
+        Run run = run(UNSAFE, workload, 2, 200, PADDED);
+        assertTrue(UNSAFE + " made no progress", run.evaluations > 0);
+        assertTrue(UNSAFE + " gave no incorrect results in " + run.evaluations + " evaluations", run.failures > 0);
+    }
+
+    /**
+     * Two threads evaluate plans for different outputs of one instance at once, each with its own frame and inputs. The
+     * plans share their statements, and a user function, so any state shared through the instance would be corrupted.
+     */
+    @Test public void testConcurrentOutputPlans() throws InterruptedException {
+        Evald evald = Engine.newEvald();
+        evald.parse("x = sum(a, b, 1); y = x * 2; p = y + c; q = sum(x, c, c) - a");
+        final int a = evald.getVariableIndex("a");
+        final int b = evald.getVariableIndex("b");
+        final int c = evald.getVariableIndex("c");
+        final OutputPlan[] plans = { evald.createOutputPlan("p"), evald.createOutputPlan("q") };
+        final AtomicLong evaluations = new AtomicLong();
+        final AtomicReference<String> firstFailure = new AtomicReference<String>();
+        final long deadline = System.nanoTime() + 200 * 1000000L;
+        Thread[] workers = new Thread[plans.length];
+        for (int t = 0; t < workers.length; t++) {
+            final int thread = t;
+            workers[t] = new Thread("plan-" + t) {
+                @Override public void run() {
+                    OutputPlan plan = plans[thread];
+                    double[] frame = plan.newFrame();
+                    for (int i = 0; System.nanoTime() < deadline; i++) {
+                        double va = i % 97;
+                        double vb = thread * 1000 + i % 89;
+                        double vc = -(i % 83);
+                        frame[a] = va;
+                        frame[b] = vb;
+                        frame[c] = vc;
+                        double x = va + vb + 1;
+                        double expected = thread == 0 ? x * 2 + vc : x + 2 * vc - va;
+                        double result = plan.evaluate(frame);
+                        if (result != expected)
+                            firstFailure.compareAndSet(null, "thread " + thread + ": " + result + ", expected " + expected);
+                        evaluations.incrementAndGet();
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(firstFailure.get());
+        assertTrue(evaluations.get() > 0);
+    }
+
+    /**
+     * Writers publish batches setting every input to the same value, which increases with each batch, while another
+     * thread evaluates from the frame. A torn set of inputs gives a non-zero spread, and a stale one a smaller value.
+     */
+    @Test public void testInputFrameSnapshots() throws InterruptedException {
+        final Evald evald = new Evald(Library.ALL);
+        evald.parse("spread = abs(a - b) + abs(b - c) + abs(c - d); value = a");
+        evald.bindInputs(evald.getVariableIndex("a"), evald.getVariableIndex("b"), evald.getVariableIndex("c"),
+                evald.getVariableIndex("d"));
+        final int spread = evald.getVariableIndex("spread");
+        final InputFrame frame = new InputFrame(4);
+        final AtomicLong batch = new AtomicLong();
+        final long deadline = System.nanoTime() + 200 * 1000000L;
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            Thread writer = new Thread() {
+                @Override public void run() {
+                    int[] elements = { 0, 1, 2, 3 };
+                    double[] values = new double[4];
+                    while (System.nanoTime() < deadline) {
+                        //The batch number is taken inside the frame's lock, so batches are published in order
+                        synchronized (frame) {
+                            Arrays.fill(values, batch.incrementAndGet());
+                            frame.publish(elements, values);
+                        }
+                    }
+                }
+            };
+            writers.add(writer);
+            writer.start();
+        }
+        long evaluations = 0;
+        double previous = 0;
+        while (System.nanoTime() < deadline) {
+            double value = evald.evaluate(frame);
+            assertEquals(0, evald.getVariableValue(spread), 0);
+            assertTrue(value >= previous);
+            previous = value;
+            evaluations++;
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(batch.get(), evald.evaluate(frame), 0);
+        assertTrue(evaluations > 0);
+    }
+
+    public static void main(String[] args) {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        List<Engine> engines = new ArrayList<Engine>(Engine.ALL);
+        if (args.length > 2 && args[2].equals("unsafe"))
+            engines.add(UNSAFE);
+
+        Workload workload = new Workload(1, 200, 256);
+        System.out.println(workload.size() + " programs, " + workload.inputs.length + " input vectors, up to " + maxThreads + " threads");
+        boolean failed = false;
+        for (Engine engine : engines) {
+            run(engine, workload, 1, millis, PADDED); //warm up
+            System.out.println();
+            System.out.println(engine);
+            System.out.println("threads\tevals/s\tspeedup\tefficiency\tfailures");
+            double single = 0;
+            for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads && threads * 2 > maxThreads ? maxThreads : threads * 2) {
+                Run run = run(engine, workload, threads, millis, PADDED);
+                if (threads == 1)
+                    single = run.throughput();
+                double speedup = run.throughput() / single;
+                System.out.printf("%d\t%.0f\t%.2f\t%.0f%%\t%d%n", threads, run.throughput(), speedup, 100 * speedup / threads, run.failures);
+                if (run.failures > 0) {
+                    System.out.println("FAILED " + run.firstFailure);
+                    failed = true;
+                }
+            }
+            Run packed = run(engine, workload, maxThreads, millis, PACKED);
+            Run padded = run(engine, workload, maxThreads, millis, PADDED);
+            System.out.printf("false sharing at %d threads: packed counters %.0f/s, padded %.0f/s (%.2fx)%n", maxThreads, packed.throughput(),
+                    padded.throughput(), padded.throughput() / packed.throughput());
+            failed |= packed.failures > 0 || padded.failures > 0;
+        }
+        if (failed) {
+            System.out.println("FAILED: incorrect results under concurrency");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package net.benmann.evald;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Generates random programs and input vectors from a seed, evaluates them with every registered {@link Engine},
+ * and reports any results that differ at the bit level from the unoptimised reference engine, along with a
+ * minimised reproducer. All NaN values are considered equal.
+ *
+ * For longer runs: java net.benmann.evald.DifferentialFuzzTests [seed] [programs]
+ */
+public class DifferentialFuzzTests {
+    static final String[] INPUTS = { "a", "b", "c", "d" };
+    static final double[] SPECIAL_VALUES = { Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, -0.0, 1.0, -1.0, 0.5, 2.0,
+            Double.MAX_VALUE, -Double.MAX_VALUE, Double.MIN_VALUE, 1e300, -1e-300, 9007199254740993.0 };
+    static final String[] LITERALS = { "0", "1", "2", "0.5", "3.25", "1.5e+300", "2.5e-310", "pi", "e", "nan", "true", "false" };
+    static final String[] BINARY = { "+", "-", "*", "/", "%", "^", "<", "<=", ">", ">=", "==", "!=", "&&", "||", "xor", "|", "&" };
+    static final String[][] CHAINS = { { "+", "-" }, { "*", "/" }, { "max" }, { "min" } };
+    static final String[] PREFIX = { "-", "+", "!", "~" };
+    static final String[] ONE_ARG = { "sign", "log2", "rint", "tan", "tanh", "toDegrees", "toRadians", "round", "sqrt", "sinh", "log", "log10", "exp", "floor",
+            "cbrt", "ceil", "cos", "cosh", "abs", "asin", "acos", "atan", "sin", "sec", "cosec", "cot", "asinh", "acosh", "atanh", "isnan", "isinf" };
+    static final String[] TWO_ARG = { "hypot", "mod", "max", "min", "atan2", "pow", "scale" };
+
+    /** A generated expression; format contains one %s for each argument */
+    static class Expr {
+        final String format;
+        final Expr[] args;
+
+        Expr(String format, Expr... args) {
+            this.format = format;
+            this.args = args;
+        }
+
+        @Override public String toString() {
+            return String.format(format, (Object[]) args);
+        }
+    }
+
+    /** A generated program of one or more statements */
+    static class Program {
+        final Expr[] statements;
+
+        Program(Expr... statements) {
+            this.statements = statements;
+        }
+
+        String[] outputs() {
+            String[] outputs = new String[statements.length];
+            for (int i = 0; i < statements.length; i++) {
+                outputs[i] = "t" + i;
+            }
+            return outputs;
+        }
+
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < statements.length; i++) {
+                sb.append("t").append(i).append(" = ").append(statements[i]).append(";\n");
+            }
+            return sb.toString();
+        }
+    }
+
+    static class Generator {
+        final Random random;
+
+        Generator(long seed) {
+            random = new Random(seed);
+        }
+
+        <T> T pick(T[] values) {
+            return values[random.nextInt(values.length)];
+        }
+
+        Expr leaf(int statement) {
+            int choice = random.nextInt(10);
+            if (choice < 5)
+                return new Expr(pick(INPUTS));
+            if (choice < 7 && statement > 0)
+                return new Expr("t" + random.nextInt(statement));
+            return new Expr(pick(LITERALS));
+        }
+
+        Expr expression(int depth, int statement) {
+            if (depth == 0 || random.nextInt(4) == 0)
+                return leaf(statement);
+            int choice = random.nextInt(22);
+            if (choice < 9) {
+                String format = "%s " + pick(BINARY).replace("%", "%%") + " %s";
+                if (random.nextBoolean())
+                    format = "(" + format + ")";
+                return new Expr(format, expression(depth - 1, statement), expression(depth - 1, statement));
+            }
+            if (choice < 11)
+                return new Expr(pick(PREFIX) + "%s", expression(depth - 1, statement));
+            if (choice < 13)
+                return new Expr("(%s)", expression(depth - 1, statement));
+            if (choice < 16)
+                return new Expr(pick(ONE_ARG) + "(%s)", expression(depth - 1, statement));
+            if (choice < 18)
+                return new Expr(pick(TWO_ARG) + "(%s, %s)", expression(depth - 1, statement), expression(depth - 1, statement));
+            if (choice < 19)
+                return new Expr("if(%s, %s, %s)", expression(depth - 1, statement), expression(depth - 1, statement), expression(depth - 1, statement));
+            if (choice >= 20)
+                return chain(depth, statement);
+            int count = 1 + random.nextInt(4);
+            Expr[] args = new Expr[count];
+            StringBuilder format = new StringBuilder("sum(");
+            for (int i = 0; i < count; i++) {
+                args[i] = expression(depth - 1, statement);
+                format.append(i == 0 ? "%s" : ", %s");
+            }
+            return new Expr(format.append(")").toString(), args);
+        }
+
+        /** A chain of operations long enough to be folded */
+        Expr chain(int depth, int statement) {
+            String[] operators = pick(CHAINS);
+            int count = FoldNode.MINIMUM_OPERANDS + random.nextInt(4);
+            Expr[] args = new Expr[count];
+            StringBuilder format = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                args[i] = expression(depth - 1, statement);
+                if (operators.length > 1 || i == 0)
+                    format.append(i == 0 ? "" : " " + pick(operators) + " ").append("%s");
+                else
+                    format.insert(0, operators[0] + "(").append(", %s)");
+            }
+            return new Expr(format.toString(), args);
+        }
+
+        Program program() {
+            Expr[] statements = new Expr[1 + random.nextInt(3)];
+            for (int i = 0; i < statements.length; i++) {
+                statements[i] = expression(1 + random.nextInt(5), i);
+            }
+            return new Program(statements);
+        }
+
+        double value() {
+            switch (random.nextInt(4)) {
+            case 0:
+                return random.nextGaussian() * 10;
+            case 1:
+                return random.nextInt(21) - 10;
+            default:
+                return SPECIAL_VALUES[random.nextInt(SPECIAL_VALUES.length)];
+            }
+        }
+
+        double[] inputs() {
+            double[] inputs = new double[INPUTS.length];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = value();
+            }
+            return inputs;
+        }
+    }
+
+    static boolean same(double expected, double actual) {
+        return Double.doubleToLongBits(expected) == Double.doubleToLongBits(actual);
+    }
+
+    static String describe(double value) {
+        return value + " (0x" + Long.toHexString(Double.doubleToRawLongBits(value)) + ")";
+    }
+
+    /** The outcome of evaluating a program with a single engine */
+    static class Outcome {
+        final double result;
+        final double[] outputs;
+        final String error;
+
+        Outcome(double result, double[] outputs, String error) {
+            this.result = result;
+            this.outputs = outputs;
+            this.error = error;
+        }
+
+        static Outcome of(Engine engine, String source, String[] outputs, double[] inputs) {
+            try {
+                double[] values = new double[outputs.length];
+                double result = engine.prepare(source, INPUTS, outputs).evaluate(inputs, values);
+                return new Outcome(result, values, null);
+            } catch (RuntimeException e) {
+                return new Outcome(0, null, e.toString());
+            }
+        }
+
+        /** @return a description of the first difference from another outcome, or null if they match */
+        String compare(Outcome other, String[] outputs) {
+            if (error != null || other.error != null) {
+                if (error != null && other.error != null)
+                    return null;
+                return "error " + error + " vs " + other.error;
+            }
+            for (int i = 0; i < outputs.length; i++) {
+                if (!same(this.outputs[i], other.outputs[i]))
+                    return outputs[i] + " = " + describe(this.outputs[i]) + " vs " + describe(other.outputs[i]);
+            }
+            if (!same(result, other.result))
+                return "result = " + describe(result) + " vs " + describe(other.result);
+            return null;
+        }
+    }
+
+    /** A difference between two engines */
+    static class Mismatch {
+        final Engine expected;
+        final Engine actual;
+        Program program;
+        final double[] inputs;
+        String difference;
+
+        Mismatch(Engine expected, Engine actual, Program program, double[] inputs, String difference) {
+            this.expected = expected;
+            this.actual = actual;
+            this.program = program;
+            this.inputs = inputs;
+            this.difference = difference;
+        }
+
+        String check(Program candidate) {
+            String source = candidate.toString();
+            String[] outputs = candidate.outputs();
+            Outcome reference = Outcome.of(expected, source, outputs, inputs);
+            if (reference.error != null)
+                return null;
+            return reference.compare(Outcome.of(actual, source, outputs, inputs), outputs);
+        }
+
+        /** Repeatedly replace subexpressions with their arguments, or with a constant, while the mismatch persists */
+        void minimise() {
+            boolean reduced = true;
+            while (reduced) {
+                reduced = false;
+                for (int i = 0; i < program.statements.length && !reduced; i++) {
+                    for (Expr candidate : reductions(program.statements[i])) {
+                        Expr[] statements = program.statements.clone();
+                        statements[i] = candidate;
+                        Program smaller = new Program(statements);
+                        String result = check(smaller);
+                        if (result != null) {
+                            program = smaller;
+                            difference = result;
+                            reduced = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        /** All expressions formed by simplifying a single subexpression of expr */
+        static List<Expr> reductions(Expr expr) {
+            List<Expr> result = new ArrayList<Expr>();
+            result.addAll(Arrays.asList(expr.args));
+            if (expr.args.length > 0) {
+                result.add(new Expr("0"));
+                result.add(new Expr("1"));
+                result.add(new Expr("a"));
+            }
+            for (int i = 0; i < expr.args.length; i++) {
+                for (Expr reduced : reductions(expr.args[i])) {
+                    Expr[] args = expr.args.clone();
+                    args[i] = reduced;
+                    result.add(new Expr(expr.format, args));
+                }
+            }
+            return result;
+        }
+
+        @Override public String toString() {
+            return expected + " vs " + actual + ": " + difference + "\ninputs " + Arrays.toString(inputs) + "\n" + program;
+        }
+    }
+
+    /**
+     * Evaluate a program with every engine, and return the first mismatch found.
+     */
+    static Mismatch check(List<Engine> engines, Program program, double[][] inputVectors) {
+        String source = program.toString();
+        String[] outputs = program.outputs();
+        Engine reference = engines.get(0);
+        Engine.Prepared[] prepared = new Engine.Prepared[engines.size()];
+        for (int i = 0; i < prepared.length; i++) {
+            try {
+                prepared[i] = engines.get(i).prepare(source, INPUTS, outputs);
+            } catch (RuntimeException e) {
+                if (i == 0)
+                    return null; //not a valid program
+                return new Mismatch(reference, engines.get(i), program, inputVectors[0], "error " + e);
+            }
+        }
+        for (double[] inputs : inputVectors) {
+            double[][] values = new double[engines.size()][outputs.length];
+            double[] results = new double[engines.size()];
+            for (int i = 0; i < prepared.length; i++) {
+                results[i] = prepared[i].evaluate(inputs, values[i]);
+            }
+            Outcome expected = new Outcome(results[0], values[0], null);
+            for (int i = 1; i < prepared.length; i++) {
+                String difference = expected.compare(new Outcome(results[i], values[i], null), outputs);
+                if (difference != null)
+                    return new Mismatch(reference, engines.get(i), program, inputs, difference);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fuzz the engines with the specified number of programs.
+     *
+     * @return the minimised first mismatch found, or null if all engines agree.
+     */
+    static Mismatch fuzz(List<Engine> engines, long seed, int programs, int inputVectors) {
+        Generator generator = new Generator(seed);
+        for (int p = 0; p < programs; p++) {
+            Program program = generator.program();
+            double[][] inputs = new double[inputVectors][];
+            for (int i = 0; i < inputVectors; i++) {
+                inputs[i] = generator.inputs();
+            }
+            Mismatch mismatch = check(engines, program, inputs);
+            if (mismatch != null) {
+                mismatch.minimise();
+                return mismatch;
+            }
+        }
+        return null;
+    }
+
+    @Test public void testEnginesAgree() {
+        for (long seed = 1; seed <= 4; seed++) {
+            Mismatch mismatch = fuzz(Engine.ALL, seed, 250, 12);
+            if (mismatch != null)
+                fail("Seed " + seed + ": " + mismatch);
+        }
+    }
+
+    @Test public void testMismatchIsMinimised() {
+        Engine broken = new Engine("broken", true) {
+            @Override Prepared prepare(String source, String[] inputs, String[] outputs) {
+                final Prepared prepared = Engine.ALL.get(1).prepare(source, inputs, outputs);
+                final boolean usesSin = source.contains("sin(");
+                return new Prepared() {
+                    @Override double evaluate(double[] values, double[] results) {
+                        double result = prepared.evaluate(values, results);
+                        return usesSin ? result + 1 : result;
+                    }
+                };
+            }
+        };
+        Mismatch mismatch = fuzz(Arrays.asList(Engine.REFERENCE, broken), 1, 500, 4);
+        assertNotNull(mismatch);
+        String source = mismatch.program.toString();
+        assertTrue(source, source.contains("sin("));
+        assertTrue(source, source.length() < 40);
+    }
+
+    /** @return true if the source parses without error */
+    private static boolean parses(String source, boolean allowUndeclared) {
+        Evald evald = Engine.newEvald();
+        evald.setAllowUndeclared(allowUndeclared);
+        for (String input : INPUTS) {
+            evald.addVariable(input);
+        }
+        try {
+            evald.parse(source);
+            return true;
+        } catch (AbstractEvaldException e) {
+            return false;
+        }
+    }
+
+    @Test public void testValidateAgreesWithParse() {
+        Generator generator = new Generator(3);
+        String noise = " ;(),=+-*!xq1.e";
+        Evald validator = Engine.newEvald();
+        Evald strict = Engine.newEvald();
+        strict.setAllowUndeclared(false);
+        for (String input : INPUTS) {
+            validator.addVariable(input);
+            strict.addVariable(input);
+        }
+        Diagnostics diagnostics = new Diagnostics();
+        int invalid = 0;
+        for (int p = 0; p < 1500; p++) {
+            StringBuilder source = new StringBuilder(p % 3 == 0 ? generator.expression(4, 0).toString() : generator.program().toString());
+            //Corrupt most sources, to exercise every error
+            for (int m = generator.random.nextInt(4); m > 0 && source.length() > 0; m--) {
+                int position = generator.random.nextInt(source.length());
+                if (generator.random.nextBoolean()) {
+                    source.deleteCharAt(position);
+                } else {
+                    source.insert(position, noise.charAt(generator.random.nextInt(noise.length())));
+                }
+            }
+            String text = source.toString();
+            boolean valid = validator.validate(text, diagnostics);
+            assertEquals(text + "\n" + diagnostics, parses(text, true), valid);
+            assertEquals(text + "\n" + diagnostics, parses(text, false), strict.validate(text, diagnostics));
+            if (!valid)
+                invalid++;
+        }
+        assertTrue(invalid > 100);
+        //Validation doesn't declare variables
+        assertEquals(INPUTS.length, validator.listAllVariables().length);
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int programs = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        System.out.println("Fuzzing " + Engine.ALL + " with seed " + seed + " for " + programs + " programs");
+        Mismatch mismatch = fuzz(Engine.ALL, seed, programs, 16);
+        if (mismatch != null) {
+            System.out.println("MISMATCH " + mismatch);
+            System.exit(1);
+        }
+        System.out.println("No mismatches");
+    }
+}
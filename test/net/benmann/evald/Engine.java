@@ -0,0 +1,238 @@
+package net.benmann.evald;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.benmann.evald.ArgFunction.NArgFunction;
+import net.benmann.evald.ArgFunction.TwoArgFunction;
+
+/**
+ * An evaluation strategy under test. Each engine prepares a program from source, and can then evaluate
+ * it for any number of input vectors. Engines are registered in {@link #ALL}, and are compared against
+ * one another by the differential fuzzer and benchmarks.
+ */
+abstract class Engine {
+    final String name;
+    /** Whether this engine evaluates the optimised (collapsed) form of a program */
+    final boolean optimised;
+
+    Engine(String name, boolean optimised) {
+        this.name = name;
+        this.optimised = optimised;
+    }
+
+    /**
+     * A program prepared by an engine.
+     */
+    static abstract class Prepared {
+        /**
+         * Evaluate the program.
+         *
+         * @param inputs
+         *            values for each input, in the order supplied to {@link Engine#prepare}
+         * @param outputs
+         *            receives the value of each output, in the order supplied to {@link Engine#prepare}
+         * @return the result of the last statement
+         */
+        abstract double evaluate(double[] inputs, double[] outputs);
+    }
+
+    /**
+     * Parse and prepare a program.
+     */
+    abstract Prepared prepare(String source, String[] inputs, String[] outputs);
+
+    /**
+     * Prepare a program for evaluation by several threads at once. Each thread must use its own
+     * evaluator, but engines may share as much of the program between them as they allow. By default,
+     * nothing is shared.
+     */
+    Prepared[] prepareConcurrent(String source, String[] inputs, String[] outputs, int threads) {
+        Prepared[] prepared = new Prepared[threads];
+        for (int i = 0; i < threads; i++) {
+            prepared[i] = prepare(source, inputs, outputs);
+        }
+        return prepared;
+    }
+
+    @Override public String toString() {
+        return name;
+    }
+
+    /**
+     * Create an Evald instance with every library, and a user function of each common form. The "yielding" function
+     * sums its arguments, yielding the thread after reading each, so that a thread evaluating it is likely to be
+     * interrupted between writes to the scratch array of any function it is an argument of.
+     */
+    static Evald newEvald() {
+        Evald evald = new Evald(Library.ALL);
+        evald.addUserFunction(new TwoArgFunction("scale") {
+            @Override protected double get(double arg1, double arg2) {
+                return arg1 * 3 - arg2;
+            }
+        });
+        evald.addUserFunction(new NArgFunction("sum", 1, Parser.NO_MAX) {
+            @Override protected double get(double... args) {
+                double sum = 0;
+                for (double arg : args) {
+                    sum += arg;
+                }
+                return sum;
+            }
+        });
+        evald.addUserFunction(new NArgFunction("yielding", 1, Parser.NO_MAX) {
+            @Override protected double get(double... args) {
+                double sum = 0;
+                for (double arg : args) {
+                    sum += arg;
+                    Thread.yield();
+                }
+                return sum;
+            }
+        });
+        return evald;
+    }
+
+    static int[] indices(Evald evald, String[] tokens) {
+        int[] result = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            result[i] = evald.addVariable(tokens[i]);
+        }
+        return result;
+    }
+
+    /** Evaluate the parsed tree in place */
+    static class TreeEngine extends Engine {
+        TreeEngine(String name, boolean optimised) {
+            super(name, optimised);
+        }
+
+        void configure(Evald evald) {
+            evald.setOptimisation(optimised);
+        }
+
+        @Override Prepared prepare(String source, String[] inputs, String[] outputs) {
+            final Evald evald = newEvald();
+            configure(evald);
+            evald.parse(source);
+            final int[] inputIndex = indices(evald, inputs);
+            final int[] outputIndex = indices(evald, outputs);
+            return new Prepared() {
+                @Override double evaluate(double[] values, double[] results) {
+                    for (int i = 0; i < inputIndex.length; i++) {
+                        evald.setVariable(inputIndex[i], values[i]);
+                    }
+                    double result = evald.evaluate();
+                    for (int i = 0; i < outputIndex.length; i++) {
+                        results[i] = evald.getVariableValue(outputIndex[i]);
+                    }
+                    return result;
+                }
+            };
+        }
+    }
+
+    /** Evaluate a {@link CompactProgram} */
+    static class CompactEngine extends Engine {
+        CompactEngine() {
+            super("compact", true);
+        }
+
+        @Override Prepared prepare(String source, String[] inputs, String[] outputs) {
+            return prepareConcurrent(source, inputs, outputs, 1)[0];
+        }
+
+        /** Every thread shares a single program, with its own frame */
+        @Override Prepared[] prepareConcurrent(String source, String[] inputs, String[] outputs, int threads) {
+            Evald evald = newEvald();
+            evald.parse(source);
+            final int[] inputIndex = indices(evald, inputs);
+            final int[] outputIndex = indices(evald, outputs);
+            final CompactProgram program = evald.compact();
+            Prepared[] prepared = new Prepared[threads];
+            for (int t = 0; t < threads; t++) {
+                final double[] frame = program.newFrame();
+                prepared[t] = new Prepared() {
+                    @Override double evaluate(double[] values, double[] results) {
+                        for (int i = 0; i < inputIndex.length; i++) {
+                            frame[inputIndex[i]] = values[i];
+                        }
+                        double result = program.evaluate(frame);
+                        for (int i = 0; i < outputIndex.length; i++) {
+                            results[i] = frame[outputIndex[i]];
+                        }
+                        return result;
+                    }
+                };
+            }
+            return prepared;
+        }
+    }
+
+    /** Evaluate the tree, parsing each statement lazily */
+    static class LazyEngine extends TreeEngine {
+        LazyEngine() {
+            super("lazy", true);
+        }
+
+        @Override void configure(Evald evald) {
+            super.configure(evald);
+            evald.setLazyParsing(true);
+        }
+    }
+
+    /** Evaluate through Evald, once tiered evaluation has switched to the compiled form */
+    static class TieredEngine extends TreeEngine {
+        TieredEngine() {
+            super("tiered", true);
+        }
+
+        @Override Prepared prepare(String source, String[] inputs, String[] outputs) {
+            final Evald evald = newEvald();
+            evald.setCompileThreshold(1);
+            evald.parse(source);
+            final int[] inputIndex = indices(evald, inputs);
+            final int[] outputIndex = indices(evald, outputs);
+            evald.evaluate();
+            awaitCompiled(evald);
+            return new Prepared() {
+                @Override double evaluate(double[] values, double[] results) {
+                    for (int i = 0; i < inputIndex.length; i++) {
+                        evald.setVariable(inputIndex[i], values[i]);
+                    }
+                    double result = evald.evaluate();
+                    for (int i = 0; i < outputIndex.length; i++) {
+                        results[i] = evald.getVariableValue(outputIndex[i]);
+                    }
+                    return result;
+                }
+            };
+        }
+    }
+
+    /**
+     * Wait for the background compiler to finish with an Evald instance.
+     *
+     * @return true if evaluation has switched to the compiled form.
+     */
+    static boolean awaitCompiled(Evald evald) {
+        long deadline = System.nanoTime() + 5000000000L;
+        while (!evald.isCompiled() && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        return evald.isCompiled();
+    }
+
+    /** The unoptimised tree, against which all other engines are compared */
+    static final Engine REFERENCE = new TreeEngine("tree-unoptimised", false);
+
+    /** All registered engines, starting with the reference engine */
+    static final List<Engine> ALL = Collections.unmodifiableList(new ArrayList<Engine>(Arrays.asList(
+            REFERENCE,
+            new TreeEngine("tree", true),
+            new CompactEngine(),
+            new TieredEngine(),
+            new LazyEngine())));
+}
@@ -0,0 +1,134 @@
+package net.benmann.evald;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import net.benmann.evald.AbstractEvaldException.UncompilableEvaldException;
+import net.benmann.evald.DifferentialFuzzTests.Generator;
+import net.benmann.evald.DifferentialFuzzTests.Program;
+
+/**
+ * Compiles the Java source generated for random programs, and checks the results match the reference engine
+ * at the bit level. Requires a JDK, as the system Java compiler is used.
+ */
+public class JavaGeneratorTests {
+    private static final String PACKAGE = "generated";
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            for (File child : path.toFile().listFiles()) {
+                delete(child.toPath());
+            }
+        }
+        Files.delete(path);
+    }
+
+    /** Compile the sources, and return a loader for the compiled classes */
+    private static ClassLoader compile(Path directory, List<String> classNames, List<String> sources) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull(compiler);
+        Path packageDirectory = directory.resolve(PACKAGE);
+        Files.createDirectories(packageDirectory);
+        List<String> args = new ArrayList<String>();
+        args.add("-nowarn");
+        args.add("-d");
+        args.add(directory.toString());
+        for (int i = 0; i < classNames.size(); i++) {
+            Path file = packageDirectory.resolve(classNames.get(i) + ".java");
+            Files.write(file, sources.get(i).getBytes(Charset.forName("UTF-8")));
+            args.add(file.toString());
+        }
+        assertEquals("javac failed", 0, compiler.run(null, null, null, args.toArray(new String[] {})));
+        return new URLClassLoader(new URL[] { directory.toUri().toURL() });
+    }
+
+    @Test public void testGeneratedMatchesReference() throws Exception {
+        Generator generator = new Generator(1);
+        List<Program> programs = new ArrayList<Program>();
+        List<String> classNames = new ArrayList<String>();
+        List<String> sources = new ArrayList<String>();
+        while (programs.size() < 150) {
+            Program program = generator.program();
+            Evald evald = Engine.newEvald();
+            try {
+                evald.parse(program.toString());
+                for (String input : DifferentialFuzzTests.INPUTS) {
+                    evald.addVariable(input);
+                }
+                sources.add(evald.generateJava(PACKAGE, "Program" + programs.size()));
+            } catch (UncompilableEvaldException e) {
+                continue; //calls a user function
+            } catch (AbstractEvaldException e) {
+                continue; //not a valid program
+            }
+            classNames.add("Program" + programs.size());
+            programs.add(program);
+        }
+
+        Path directory = Files.createTempDirectory("evald");
+        try {
+            ClassLoader loader = compile(directory, classNames, sources);
+            double[][] inputVectors = new double[12][];
+            for (int i = 0; i < inputVectors.length; i++) {
+                inputVectors[i] = generator.inputs();
+            }
+            for (int p = 0; p < programs.size(); p++) {
+                Program program = programs.get(p);
+                String[] outputs = program.outputs();
+                Class<?> generated = loader.loadClass(PACKAGE + "." + classNames.get(p));
+                Method evaluate = generated.getMethod("evaluate", double[].class);
+                int frameSize = generated.getField("FRAME_SIZE").getInt(null);
+                Engine.Prepared reference = Engine.REFERENCE.prepare(program.toString(), DifferentialFuzzTests.INPUTS, outputs);
+                for (double[] inputs : inputVectors) {
+                    double[] frame = new double[frameSize];
+                    for (int i = 0; i < inputs.length; i++) {
+                        frame[generated.getField("SLOT_" + DifferentialFuzzTests.INPUTS[i]).getInt(null)] = inputs[i];
+                    }
+                    double result = (Double) evaluate.invoke(null, (Object) frame);
+                    double[] expected = new double[outputs.length];
+                    double expectedResult = reference.evaluate(inputs, expected);
+                    for (int i = 0; i < outputs.length; i++) {
+                        double actual = frame[generated.getField("SLOT_" + outputs[i]).getInt(null)];
+                        assertTrue(program + outputs[i] + " = " + actual + ", expected " + expected[i], DifferentialFuzzTests.same(expected[i], actual));
+                    }
+                    assertTrue(program.toString(), DifferentialFuzzTests.same(expectedResult, result));
+                }
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test public void testUserFunctionNotGenerated() {
+        Evald evald = Engine.newEvald();
+        evald.parse("scale(a, b)");
+        try {
+            evald.generateJava("", "Scale");
+            fail();
+        } catch (UncompilableEvaldException e) {
+            //expected
+        }
+    }
+
+    @Test public void testClassName() {
+        assertEquals("InterestRate", JavaGenerator.className("interest-rate.evald"));
+        assertEquals("_2dArea", JavaGenerator.className("2d area.evald"));
+        assertEquals("Tax_2014", JavaGenerator.className("tax_2014"));
+    }
+}
@@ -3,9 +3,18 @@ package net.benmann.evald;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
 import org.junit.Test;
 
 import net.benmann.evald.AbstractEvaldException.EvaldException;
+import net.benmann.evald.AbstractEvaldException.InvalidProgramEvaldException;
+import net.benmann.evald.AbstractEvaldException.UncompilableEvaldException;
+import net.benmann.evald.ArgFunction.NArgFunction;
 import net.benmann.evald.ArgFunction.OneArgFunction;
 
 public class PackageTests {
@@ -48,13 +57,14 @@ public class PackageTests {
         testOptimisation("v / 1", "v", 1);
         testOptimisation("v / 0", "v / 0", 3);
 
-        testOptimisation("v + 0", "v", 1);
+        testOptimisation("v + 0", "v + 0", 3); //-0 + 0 = 0, so we don't optimise this.
+        testOptimisation("v + -0", "v", 1);
         testOptimisation("v + 1", "v + 1", 3);
 
         testOptimisation("v - 0", "v", 1);
         testOptimisation("v - 1", "v - 1", 3);
 
-        testOptimisation("v * (2 - 1) + (1 + 0) + (b + 0)", "v + 1 + b", 5);
+        testOptimisation("v * (2 - 1) + (1 + 0) + (b - 0)", "v + 1 + b", 5);
 
         testOptimisation("+v", "v", 1);
         testOptimisation("2 * +v", "2 * v", 3);
@@ -137,6 +147,27 @@ public class PackageTests {
     }
     
     
+    @Test public void testTokenIndexMap() {
+        TokenIndexMap map = new TokenIndexMap();
+        assertEquals(TokenIndexMap.MISSING, map.get("a"));
+        for (int i = 0; i < 5000; i++) {
+            map.put("v" + i, i);
+        }
+        //Tokens with colliding hashes
+        map.put("Aa", 1);
+        map.put("BB", 2);
+        assertEquals(5002, map.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, map.get("v" + i));
+        }
+        assertEquals(1, map.get("Aa"));
+        assertEquals(2, map.get("BB"));
+        assertFalse(map.containsKey("v5000"));
+        map.put("Aa", 3);
+        assertEquals(3, map.get("Aa"));
+        assertEquals(5002, map.size());
+    }
+
     @Test public void testMultipleExpressionDependencies() {
         String expression = 
                   "x = (a + b + a * b) / (a + 2 * b) / b;\n"
@@ -159,4 +190,499 @@ public class PackageTests {
         evald.enableAllOutputs();
         assertEquals("xyout1out2", evald.executionSequence());
     }
+
+    private void assertCompactMatches(Evald evald, String expression, double... values) {
+        evald.parse(expression);
+        String[] variables = evald.listAllVariables();
+        for (int i = 0; i < variables.length; i++) {
+            evald.addVariable(variables[i], values[i % values.length]);
+        }
+        CompactProgram program = evald.compact();
+        double[] frame = program.newFrame();
+        for (int i = 0; i < variables.length; i++) {
+            frame[program.getVariableIndex(variables[i])] = evald.getVariableValue(variables[i]);
+        }
+        double expected = evald.evaluate();
+        double actual = program.evaluate(frame);
+        assertEquals(expression, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+        for (int i = 0; i < variables.length; i++) {
+            assertEquals(expression + " " + variables[i], Double.doubleToLongBits(evald.getVariableValue(variables[i])), Double.doubleToLongBits(frame[i]));
+        }
+    }
+
+    @Test public void testCompactProgram() {
+        Evald evald = new Evald(Library.ALL);
+        evald.addUserFunction(new OneArgFunction("twice") {
+            @Override protected double get(double value) {
+                return value * 2;
+            }
+        });
+        evald.addUserFunction(new NArgFunction("sum") {
+            @Override protected double get(double... args) {
+                double sum = 0;
+                for (double arg : args) {
+                    sum += arg;
+                }
+                return sum;
+            }
+        });
+        String[] expressions = {
+                "a * b + c",
+                "-a^2 % 3 - b / c",
+                "if(a > b, sin(a), cos(b)) + if(c, 1, 2)",
+                "a && b || !c",
+                "(a < b) + (a <= b) + (a == b) + (a != b) + (a >= b) + (a > b)",
+                "isnan(a / 0 * 0) + isinf(b / 0)",
+                "(a xor b) + (a | c) + (a & b) + ~c",
+                "sign(a) + log2(b) + rint(c) + tan(a) + tanh(b) + toDegrees(c) + toRadians(a) + round(b) + sqrt(c)",
+                "hypot(a, b) + mod(a, c) + max(a, b) + min(b, c) + sinh(a) + log(b) + log10(c) + exp(a)",
+                "floor(a) + cbrt(b) + ceil(c) + cosh(a) + abs(b) + asin(c) + acos(a) + atan(b) + atan2(a, c)",
+                "pow(a, b) + sec(a) + cosec(b) + cot(c) + asinh(a) + acosh(b) + atanh(c) + e + pi",
+                "twice(a) + sum(a, b, c) + sum()",
+                "x = a * b; y = x + c; z = if(y > x, y, x) && a",
+        };
+        for (String expression : expressions) {
+            assertCompactMatches(evald, expression, 0.25, -3.5, 7.0);
+            assertCompactMatches(evald, expression, 0.0, Double.NaN, Double.NEGATIVE_INFINITY);
+            assertCompactMatches(evald, expression, -0.0, 1.0, 1e300);
+        }
+        evald.parse("x = a * b; y = x + c; z = y * 2");
+        evald.enableOutputs("y");
+        assertEquals(8, evald.compact().size());
+        evald.enableAllOutputs();
+        assertEquals(12, evald.compact().size());
+    }
+
+    @Test public void testCompactUnsupportedOperator() {
+        Evald evald = new Evald();
+        evald.addParser(new PostfixOperatorParser("!") {
+            @Override public PostfixOperatorNode create() {
+                return new PostfixOperatorNode(token) {
+                    @Override protected double get() {
+                        return getFactorial(b.get());
+                    }
+                };
+            }
+        });
+        evald.parse("a! + 1");
+        try {
+            evald.compact();
+            fail();
+        } catch (Throwable t) {
+            assertThat(t, instanceOf(UncompilableEvaldException.class));
+        }
+    }
+
+    private static void assertInvalidProgram(byte[] bytes, ArgFunction... functions) {
+        try {
+            CompactProgram.load(ByteBuffer.wrap(bytes), functions);
+            fail();
+        } catch (Throwable t) {
+            assertThat(t, instanceOf(InvalidProgramEvaldException.class));
+        }
+    }
+
+    @Test public void testCompactSaveLoad() throws IOException {
+        ArgFunction twice = new OneArgFunction("twice") {
+            @Override protected double get(double value) {
+                return value * 2;
+            }
+        };
+        Evald evald = new Evald(Library.ALL);
+        evald.addUserFunction(twice);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        evald.parse("x = twice(a) * 1.5; y = if(x > b, sin(x), -b) || a");
+        evald.compact().save(out);
+        int aIndex = evald.getVariableIndex("a");
+        int bIndex = evald.getVariableIndex("b");
+        evald.setVariable(aIndex, 0.75);
+        evald.setVariable(bIndex, 2);
+        double first = evald.evaluate();
+        evald.parse("a / b + pi");
+        evald.compact().save(out);
+        double second = evald.evaluate();
+
+        byte[] bytes = out.toByteArray();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (double expected : new double[] { first, second }) {
+            CompactProgram program = CompactProgram.load(buffer, twice);
+            double[] frame = program.newFrame();
+            frame[program.getVariableIndex("a")] = 0.75;
+            frame[program.getVariableIndex("b")] = 2;
+            assertEquals(expected, program.evaluate(frame), 0);
+        }
+        assertFalse(buffer.hasRemaining());
+
+        assertInvalidProgram(bytes);
+        assertInvalidProgram(new byte[] { 1, 2, 3, 4, 5, 6 }, twice);
+        buffer.rewind();
+        CompactProgram.load(buffer, twice);
+        for (int length = 0; length < buffer.position(); length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(bytes, 0, truncated, 0, length);
+            assertInvalidProgram(truncated, twice);
+        }
+    }
+
+    @Test public void testCompactLoadVerifiesStack() throws IOException {
+        Evald evald = new Evald(Library.ALL);
+        evald.parse("y = if(a > b, a, b)");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        evald.compact().save(out);
+        byte[] bytes = out.toByteArray();
+        //LOAD a, LOAD b, GT, IF 6, LOAD a, JUMP 7, LOAD b, STORE y: opcodes 0-4 are LOAD, GT, IF, JUMP, STORE
+        int code = bytes.length - 5 * 8;
+        int operands = bytes.length - 4 * 8;
+        assertEquals(2, ByteBuffer.wrap(bytes).getInt(6));
+        CompactProgram.load(ByteBuffer.wrap(bytes));
+
+        //The stack depth must be exactly that used, so that a frame can't be too small, or too large to allocate
+        assertInvalidProgram(corruptInt(bytes, 6, -1));
+        assertInvalidProgram(corruptInt(bytes, 6, 1));
+        assertInvalidProgram(corruptInt(bytes, 6, 3));
+        assertInvalidProgram(corruptInt(bytes, 6, Integer.MAX_VALUE));
+        //GT with nothing on the stack
+        assertInvalidProgram(corruptByte(bytes, code, 1));
+        //STORE with two values on the stack
+        assertInvalidProgram(corruptInt(corruptByte(bytes, code + 2, 4), operands + 4 * 2, 0));
+        //JUMP to the else branch, which is reached with a different stack depth
+        assertInvalidProgram(corruptInt(bytes, operands + 4 * 5, 6));
+        //JUMP past the STORE, leaving a value on the stack
+        assertInvalidProgram(corruptInt(bytes, operands + 4 * 5, 8));
+    }
+
+    private static byte[] corruptByte(byte[] bytes, int offset, int value) {
+        byte[] corrupt = bytes.clone();
+        corrupt[offset] = (byte) value;
+        return corrupt;
+    }
+
+    private static byte[] corruptInt(byte[] bytes, int offset, int value) {
+        byte[] corrupt = bytes.clone();
+        ByteBuffer.wrap(corrupt).putInt(offset, value);
+        return corrupt;
+    }
+
+    @Test public void testTieredCompilation() {
+        Evald evald = new Evald(Library.ALL);
+        evald.setCompileThreshold(5);
+        evald.parse("x = a * 2; y = x + b");
+        int a = evald.getVariableIndex("a");
+        int b = evald.getVariableIndex("b");
+        evald.setVariable(b, 1);
+        for (int i = 0; i < 4; i++) {
+            evald.setVariable(a, i);
+            assertEquals(i * 2 + 1, evald.evaluate(), 0);
+        }
+        assertFalse(evald.isCompiled());
+        evald.evaluate();
+        assertTrue(Engine.awaitCompiled(evald));
+        evald.setVariable(a, 10);
+        assertEquals(21, evald.evaluate(), 0);
+        assertEquals(20, evald.getVariableValue("x"), 0);
+
+        evald.enableOutputs("x");
+        assertFalse(evald.isCompiled());
+        evald.setVariable(a, 3);
+        assertEquals(6, evald.evaluate(), 0);
+        evald.parse("a - b");
+        assertFalse(evald.isCompiled());
+        assertEquals(2, evald.evaluate(), 0);
+
+        //An expression which can't be compacted continues to be evaluated as a tree
+        Evald custom = new Evald();
+        custom.addParser(new PostfixOperatorParser("!") {
+            @Override public PostfixOperatorNode create() {
+                return new PostfixOperatorNode(token) {
+                    @Override protected double get() {
+                        return getFactorial(b.get());
+                    }
+                };
+            }
+        });
+        custom.setCompileThreshold(0);
+        custom.parse("a! + 1");
+        custom.setVariable(custom.getVariableIndex("a"), 4);
+        assertEquals(25, custom.evaluate(), 0);
+        //Expressions are compiled in order, so once this one is compiled the custom operator has been attempted
+        Evald later = new Evald();
+        later.setCompileThreshold(0);
+        later.parse("a + 1");
+        later.evaluate();
+        assertTrue(Engine.awaitCompiled(later));
+        assertFalse(custom.isCompiled());
+        assertEquals(25, custom.evaluate(), 0);
+    }
+
+    @Test public void testReparseReusesStatements() {
+        Evald evald = new Evald(Library.ALL);
+        evald.parse("x = a * 2; y = x + b; z = c / 2");
+        Node x = evald.expressions.get(0).expressionRoot;
+        Node z = evald.expressions.get(2).expressionRoot;
+
+        evald.reparse("z = c / 2; x = a  *  2; y = x - b");
+        assertSame(z, evald.expressions.get(0).expressionRoot);
+        assertSame(x, evald.expressions.get(1).expressionRoot);
+
+        try {
+            evald.reparse("z = c / 2; x = a * 2; y = x - b; w = d +");
+            fail();
+        } catch (EvaldException e) {
+            //expected
+        }
+        assertEquals(3, evald.expressions.size());
+
+        //Reused statements read the value array as it grows
+        for (int i = 0; i < 100; i++) {
+            evald.addVariable("v" + i, i);
+        }
+        evald.addVariable("a", 3);
+        evald.addVariable("b", 1);
+        evald.addVariable("c", 8);
+        assertEquals(5, evald.evaluate(), 0);
+        assertEquals(4, evald.getVariableValue("z"), 0);
+    }
+
+    @Test public void testReuseIntermediateSlots() {
+        Evald evald = new Evald();
+        evald.setReuseIntermediateSlots(true);
+        evald.addVariable("a", 2);
+        evald.addVariable("out");
+        evald.parse("x = a + 1; y = x * 2; z = y - 3; w = z + x; out = w / 4");
+        int[] slots = new int[evald.expressions.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = evald.expressions.get(i).outputSlot;
+        }
+        //z reuses the slot of y, which it reads last; w reuses it again once z and x are read
+        int x = evald.getVariableIndex("x");
+        int y = evald.getVariableIndex("y");
+        assertArrayEquals(new int[] { x, y, y, y, evald.getVariableIndex("out") }, slots);
+        assertEquals(1.5, evald.evaluate(), 0);
+        assertEquals(1.5, evald.getVariableValue("out"), 0);
+
+        //Adding an intermediate makes it readable
+        evald.addVariable("z");
+        assertEquals(1.5, evald.evaluate(), 0);
+        assertEquals(3, evald.getVariableValue("z"), 0);
+        evald.setReuseIntermediateSlots(false);
+        evald.evaluate();
+        assertEquals(6, evald.getVariableValue("y"), 0);
+
+        //Outputs requested with enableOutputs, or by a plan, keep their own slots
+        evald = new Evald();
+        evald.setReuseIntermediateSlots(true);
+        evald.addVariable("p", 3);
+        evald.parse("x = p + 1; y = p * 2; out1 = x + y; out2 = x * y");
+        evald.enableOutputs("out1", "out2");
+        evald.evaluate();
+        assertEquals(10, evald.getVariableValue("out1"), 0);
+        assertEquals(24, evald.getVariableValue("out2"), 0);
+        evald.enableAllOutputs();
+        evald.parse("x = p + 1; y = p * 2; out1 = x + y; out2 = x * y");
+        OutputPlan plan = evald.createOutputPlan("out1", "out2");
+        evald.evaluate(plan);
+        assertEquals(10, evald.getVariableValue("out1"), 0);
+        assertEquals(24, evald.getVariableValue("out2"), 0);
+
+        //Random programs, with only the last output added, match the result without shared slots
+        DifferentialFuzzTests.Generator generator = new DifferentialFuzzTests.Generator(11);
+        for (int round = 0; round < 40; round++) {
+            StringBuilder sb = new StringBuilder();
+            String last = null;
+            for (int p = 0; p < 10; p++) {
+                DifferentialFuzzTests.Program program = generator.program();
+                try {
+                    Engine.newEvald().parse(program.toString());
+                } catch (AbstractEvaldException e) {
+                    continue; //not a valid program
+                }
+                //Later programs read the outputs of earlier ones
+                sb.append(program.toString().replaceAll("\\bt(\\d+)\\b", "p" + p + "t$1").replaceAll("\\bd\\b", last == null ? "d" : last));
+                last = "p" + p + "t" + (program.outputs().length - 1);
+            }
+            if (last == null)
+                continue;
+            Evald reference = Engine.newEvald();
+            reference.parse(sb.toString());
+            Evald shared = Engine.newEvald();
+            shared.setReuseIntermediateSlots(true);
+            shared.setCompileThreshold(2);
+            shared.addVariable(last);
+            shared.parse(sb.toString());
+            for (int i = 0; i < 4; i++) {
+                double[] inputs = generator.inputs();
+                for (int j = 0; j < inputs.length; j++) {
+                    reference.addVariable(DifferentialFuzzTests.INPUTS[j], inputs[j]);
+                    shared.addVariable(DifferentialFuzzTests.INPUTS[j], inputs[j]);
+                }
+                double expected = reference.evaluate();
+                if (i == 3)
+                    assertTrue(Engine.awaitCompiled(shared));
+                assertTrue(sb.toString(), DifferentialFuzzTests.same(expected, shared.evaluate()));
+                assertTrue(sb.toString(), DifferentialFuzzTests.same(reference.getVariableValue(last), shared.getVariableValue(last)));
+            }
+        }
+    }
+
+    /** Parse with the specified number of threads, returning the variables and tree, or the error */
+    private static String parseWithThreads(String source, int threads, double[] inputs) {
+        Evald evald = Engine.newEvald();
+        evald.setParseThreads(threads);
+        evald.addVariable("declared");
+        try {
+            evald.parse(source);
+        } catch (AbstractEvaldException e) {
+            return e.getMessage() + Arrays.toString(evald.listAllVariables());
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            evald.setVariable(evald.getVariableIndex(DifferentialFuzzTests.INPUTS[i]), inputs[i]);
+        }
+        return Arrays.toString(evald.listAllVariables()) + evald.toTree() + Double.doubleToLongBits(evald.evaluate());
+    }
+
+    @Test public void testParallelParse() {
+        DifferentialFuzzTests.Generator generator = new DifferentialFuzzTests.Generator(7);
+        StringBuilder sb = new StringBuilder();
+        int statements = 0;
+        for (int p = 0; statements < 4 * Evald.PARALLEL_PARSE_MINIMUM; p++) {
+            DifferentialFuzzTests.Program program = generator.program();
+            try {
+                Engine.newEvald().parse(program.toString());
+            } catch (AbstractEvaldException e) {
+                continue; //not a valid program
+            }
+            sb.append(program.toString().replaceAll("\\bt(\\d+)\\b", "p" + p + "t$1"));
+            statements += program.outputs().length;
+        }
+        String source = sb.toString();
+        double[] inputs = generator.inputs();
+        String sequential = parseWithThreads(source, 1, inputs);
+        assertEquals(sequential, parseWithThreads(source, 4, inputs));
+
+        //The first error in statement order is reported, with the same variables declared
+        int middle = source.indexOf(';', source.length() / 2) + 1;
+        String broken = source.substring(0, middle) + "x = a * b; y = (x + ; z = q +; " + source.substring(middle);
+        String error = parseWithThreads(broken, 1, inputs);
+        assertThat(error, containsString("y = (x +"));
+        assertEquals(error, parseWithThreads(broken, 4, inputs));
+
+        //A small expression is parsed sequentially
+        assertEquals(parseWithThreads("x = a * b; y = x + c * d", 1, inputs), parseWithThreads("x = a * b; y = x + c * d", 4, inputs));
+    }
+
+    @Test public void testFold() {
+        String[] expressions = {
+                "a + b - c + a - b + c * 2",
+                "a * b / c * a / b / 0.5",
+                "2 + 3 - a + b + 1 - c",
+                "(a + b + c + a) - (b - c - a - b)",
+                "max(max(a, b), max(c, max(a, -b)))",
+                "min(a, min(b, min(c, a + b + c - a)))",
+                "x = a - b - c - a; y = x * x / a * b",
+        };
+        Evald evald = new Evald(Library.ALL);
+        for (String expression : expressions) {
+            assertCompactMatches(evald, expression, 0.25, -3.5, 7.0);
+            assertCompactMatches(evald, expression, 0.0, Double.NaN, Double.NEGATIVE_INFINITY);
+            assertCompactMatches(evald, expression, -0.0, 1.0, 1e300);
+        }
+
+        evald.parse("a + b - c + a");
+        assertThat(evald.toTree(), containsString("= Fold"));
+        evald.parse("a + b - c");
+        assertThat(evald.toTree(), not(containsString("= Fold")));
+        //Leading constants are combined when collapsed
+        evald.parse("1 + 2 + a + 3 + 4");
+        assertEquals(8, evald.toTree().split("[\n]").length);
+        evald.setOptimisation(false);
+        evald.parse("a + b - c + a");
+        assertThat(evald.toTree(), not(containsString("= Fold")));
+    }
+
+    @Test public void testBindInputsInPlace() {
+        Evald evald = new Evald(Library.ALL);
+        evald.parse("x = a * b; c = 10; out = x + a + c");
+        int a = evald.getVariableIndex("a");
+        int c = evald.getVariableIndex("c");
+        double[] inputs = { 99, 2, 3, 4 };
+        //The second element isn't an input, and c is set by a statement, so isn't read from the array
+        evald.bindInputs(inputs, -1, a, -1, c);
+        evald.bindOutputs(evald.getVariableIndex("out"));
+        evald.setVariable(evald.getVariableIndex("b"), 1);
+        double[] outputs = new double[1];
+        assertEquals(14, evald.evaluateInto(outputs), 0);
+        assertEquals(14, outputs[0], 0);
+        inputs[1] = 5;
+        assertEquals(20, evald.evaluate(), 0);
+
+        //Compiled statements read a copy of the inputs
+        evald.setCompileThreshold(1);
+        evald.evaluate();
+        assertTrue(Engine.awaitCompiled(evald));
+        inputs[1] = 1;
+        assertEquals(12, evald.evaluate(), 0);
+
+        //The inputs of a heap buffer are read in place, and those of a direct buffer are copied
+        evald.setCompileThreshold(-1);
+        evald.parse("out = a * b");
+        evald.bindInputs(DoubleBuffer.wrap(new double[] { 0, 3, 4, 5 }, 1, 2).slice(), a, evald.getVariableIndex("b"));
+        assertEquals(12, evald.evaluate(), 0);
+        DoubleBuffer direct = ByteBuffer.allocateDirect(16).asDoubleBuffer();
+        direct.put(0, 6).put(1, 7);
+        evald.bindInputs(direct, a, evald.getVariableIndex("b"));
+        assertEquals(42, evald.evaluate(), 0);
+        direct.put(1, 2);
+        assertEquals(12, evald.evaluate(), 0);
+
+        //A statement too deep to evaluate recursively is compiled, so also reads a copy
+        StringBuilder sb = new StringBuilder("a");
+        for (int i = 1; i < 1000; i++) {
+            sb.append(" < b");
+        }
+        evald.parse(sb.toString());
+        assertEquals(1, evald.evaluate(), 0);
+        direct.put(1, 0);
+        assertEquals(0, evald.evaluate(), 0);
+
+        evald.unbindInputs();
+        evald.setVariable(evald.getVariableIndex("b"), 7);
+        assertEquals(1, evald.evaluate(), 0);
+    }
+
+    @Test public void testDeepExpression() {
+        int terms = 20000;
+        StringBuilder sb = new StringBuilder("a");
+        double expected = 0.5;
+        for (int i = 1; i < terms; i++) {
+            sb.append(i % 3 == 0 ? " - " : " + ").append(i);
+            expected = i % 3 == 0 ? expected - i : expected + i;
+        }
+        Evald evald = new Evald(Library.ALL);
+        evald.addVariable("a", 0.5);
+        evald.parse(sb.toString());
+        assertEquals(expected, evald.evaluate(), 0);
+
+        //A chain which can't be folded is evaluated without recursion
+        sb.setLength(0);
+        sb.append("a");
+        for (int i = 1; i < terms; i++) {
+            sb.append(" < a");
+        }
+        evald.parse(sb.toString());
+        assertEquals(0, evald.evaluate(), 0);
+        evald.addVariable("a", 2);
+        assertEquals(1, evald.evaluate(), 0);
+
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            nested.append("(a ^ ");
+        }
+        nested.append("1");
+        for (int i = 0; i < 500; i++) {
+            nested.append(")");
+        }
+        evald.addVariable("a", 1);
+        evald.parse(nested.toString());
+        assertEquals(1, evald.evaluate(), 0);
+    }
 }
@@ -0,0 +1,99 @@
+package net.benmann.evald.benchmark;
+
+import java.lang.reflect.Field;
+
+import net.benmann.evald.Evald;
+import net.benmann.evald.InputBinder;
+import net.benmann.evald.Library;
+
+/**
+ * Compares setting the inputs of an expression from an object's fields by name, reading each field by reflection and
+ * setting it with {@link Evald#addVariable(String, double)}, with setting them using an {@link InputBinder}.
+ *
+ * Run with: ant benchmark -Dbenchmark=BinderBenchmark
+ */
+public class BinderBenchmark {
+    private static final int FIELDS = 100;
+    private static final int EVALUATIONS = 200000;
+    private static final int ROUNDS = 5;
+
+    public static class Inputs {
+        public double v0, v1, v2, v3, v4, v5, v6, v7, v8, v9;
+        public double v10, v11, v12, v13, v14, v15, v16, v17, v18, v19;
+        public double v20, v21, v22, v23, v24, v25, v26, v27, v28, v29;
+        public double v30, v31, v32, v33, v34, v35, v36, v37, v38, v39;
+        public double v40, v41, v42, v43, v44, v45, v46, v47, v48, v49;
+        public double v50, v51, v52, v53, v54, v55, v56, v57, v58, v59;
+        public double v60, v61, v62, v63, v64, v65, v66, v67, v68, v69;
+        public double v70, v71, v72, v73, v74, v75, v76, v77, v78, v79;
+        public double v80, v81, v82, v83, v84, v85, v86, v87, v88, v89;
+        public double v90, v91, v92, v93, v94, v95, v96, v97, v98, v99;
+    }
+
+    private static Inputs[] inputs() {
+        Inputs[] inputs = new Inputs[64];
+        Field[] fields = Inputs.class.getFields();
+        try {
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = new Inputs();
+                for (int j = 0; j < fields.length; j++) {
+                    fields[j].setDouble(inputs[i], 1 + (i * 31 + j) % 17);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return inputs;
+    }
+
+    private static long byName(Evald evald, Inputs[] inputs) throws IllegalAccessException {
+        String[] names = evald.listAllInputs();
+        Field[] fields = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            try {
+                fields[i] = Inputs.class.getField(names[i]);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        double total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < EVALUATIONS; i++) {
+            Inputs input = inputs[i & (inputs.length - 1)];
+            for (int j = 0; j < names.length; j++) {
+                evald.addVariable(names[j], fields[j].getDouble(input));
+            }
+            total += evald.evaluate();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (Double.isNaN(total))
+            System.out.println(total);
+        return elapsed;
+    }
+
+    private static long bound(InputBinder<Inputs> binder, Inputs[] inputs) {
+        double total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < EVALUATIONS; i++) {
+            total += binder.evaluate(inputs[i & (inputs.length - 1)]);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (Double.isNaN(total))
+            System.out.println(total);
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws IllegalAccessException {
+        Evald evald = new Evald(Library.CORE, Library.MATH);
+        evald.parse(FootprintBenchmark.expression(FIELDS));
+        InputBinder<Inputs> binder = new InputBinder<Inputs>(evald, Inputs.class);
+        Inputs[] inputs = inputs();
+        System.out.println(FIELDS + " inputs, " + EVALUATIONS + " evaluations");
+        System.out.println("round\tby name ms\tbinder ms\tspeedup");
+        for (int round = 1; round <= ROUNDS; round++) {
+            long name = byName(evald, inputs);
+            long bound = bound(binder, inputs);
+            System.out.printf("%d\t%.1f\t%.1f\t%.1fx%n", round, name / 1e6, bound / 1e6, (double) name / bound);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.benmann.evald.benchmark;
+
+import net.benmann.evald.CompactProgram;
+import net.benmann.evald.Evald;
+import net.benmann.evald.Library;
+
+/**
+ * Measures the heap retained per parsed program, as a function of program size, for both a parsed
+ * {@link Evald} instance and the equivalent {@link CompactProgram}.
+ *
+ * Run with: ant benchmark -Dbenchmark=FootprintBenchmark
+ */
+public class FootprintBenchmark {
+    private static final int[] TERMS = { 1, 4, 16, 64, 256 };
+    /** The heap retained by the objects measured for each size and form */
+    private static final int RETAINED_BYTES = 64 * 1024 * 1024;
+    private static final int SAMPLE_COUNT = 10;
+
+    /** Generate an expression with the specified number of terms, each using a distinct variable */
+    static String expression(int terms) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0)
+                sb.append(i % 3 == 0 ? " - " : " + ");
+            sb.append("v").append(i).append(" * ").append(i + 1.5);
+            if (i % 4 == 1)
+                sb.append(" / sqrt(v").append(i).append(")");
+        }
+        return sb.toString();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static Evald parse(String source) {
+        Evald evald = new Evald(Library.CORE, Library.MATH);
+        evald.parse(source);
+        return evald;
+    }
+
+    private static abstract class Factory {
+        abstract Object create(String source);
+    }
+
+    /** Create count objects, and return the average heap retained by each */
+    private static long retainedBytes(Factory factory, String source, int count) {
+        long before = usedHeap();
+        Object[] retained = new Object[count];
+        for (int i = 0; i < count; i++) {
+            retained[i] = factory.create(source);
+        }
+        long after = usedHeap();
+        if (retained[count - 1] == null)
+            throw new IllegalStateException();
+        return (after - before - 16 - 4L * count) / count;
+    }
+
+    /** Estimate the heap retained by one object from a small sample, and create as many as fit in the budget */
+    private static long retainedBytes(Factory factory, String source) {
+        long sample = Math.max(1, retainedBytes(factory, source, SAMPLE_COUNT));
+        int count = (int) Math.max(SAMPLE_COUNT, Math.min(Integer.MAX_VALUE, RETAINED_BYTES / sample));
+        return retainedBytes(factory, source, count);
+    }
+
+    public static void main(String[] args) {
+        Factory evaldFactory = new Factory() {
+            @Override Object create(String source) {
+                return parse(source);
+            }
+        };
+        Factory compactFactory = new Factory() {
+            @Override Object create(String source) {
+                return parse(source).compact();
+            }
+        };
+
+        //The ratio of the totals is dominated by the fixed overhead of each form for small programs, so the cost of
+        //each additional instruction is also reported, from the slope between consecutive sizes
+        System.out.println("terms\tinstructions\tevald bytes\tcompact bytes\tratio\tevald bytes/node\tcompact bytes/node\tratio");
+        int lastInstructions = 0;
+        long lastEvaldBytes = 0;
+        long lastCompactBytes = 0;
+        for (int terms : TERMS) {
+            String source = expression(terms);
+            int instructions = parse(source).compact().size();
+            long evaldBytes = retainedBytes(evaldFactory, source);
+            long compactBytes = retainedBytes(compactFactory, source);
+            System.out.printf("%d\t%d\t%d\t%d\t%.1f", terms, instructions, evaldBytes, compactBytes, (double) evaldBytes / compactBytes);
+            if (lastInstructions > 0) {
+                double evaldPerNode = (double) (evaldBytes - lastEvaldBytes) / (instructions - lastInstructions);
+                double compactPerNode = (double) (compactBytes - lastCompactBytes) / (instructions - lastInstructions);
+                System.out.printf("\t%.1f\t%.1f\t%.1f", evaldPerNode, compactPerNode, evaldPerNode / compactPerNode);
+            }
+            System.out.println();
+            lastInstructions = instructions;
+            lastEvaldBytes = evaldBytes;
+            lastCompactBytes = compactBytes;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package net.benmann.evald.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import net.benmann.evald.CompactProgram;
+import net.benmann.evald.Evald;
+import net.benmann.evald.Library;
+
+/**
+ * Compares the time taken to parse a large number of expressions with the time taken to load the
+ * equivalent saved {@link CompactProgram}s from a memory mapped file.
+ *
+ * Run with: ant benchmark -Dbenchmark=LoadBenchmark
+ */
+public class LoadBenchmark {
+    private static final int FORMULAS = 50000;
+    private static final int ROUNDS = 5;
+
+    private static String[] formulas() {
+        String[] formulas = new String[FORMULAS];
+        for (int i = 0; i < FORMULAS; i++) {
+            formulas[i] = FootprintBenchmark.expression(1 + i % 24);
+        }
+        return formulas;
+    }
+
+    private static long parseAll(String[] formulas) {
+        long start = System.nanoTime();
+        for (String formula : formulas) {
+            new Evald(Library.CORE, Library.MATH).parse(formula);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long loadAll(MappedByteBuffer buffer) {
+        long start = System.nanoTime();
+        buffer.rewind();
+        int loaded = 0;
+        while (buffer.hasRemaining()) {
+            CompactProgram.load(buffer);
+            loaded++;
+        }
+        if (loaded != FORMULAS)
+            throw new IllegalStateException("Loaded " + loaded + " programs");
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String[] formulas = formulas();
+        Path file = Files.createTempFile("evald", ".programs");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                for (String formula : formulas) {
+                    Evald evald = new Evald(Library.CORE, Library.MATH);
+                    evald.parse(formula);
+                    evald.compact().save(out);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                System.out.println(FORMULAS + " formulas, " + channel.size() / 1024 + "KB saved");
+                System.out.println("round\tparse ms\tload ms\tspeedup");
+                for (int round = 1; round <= ROUNDS; round++) {
+                    long parse = parseAll(formulas);
+                    long load = loadAll(buffer);
+                    System.out.printf("%d\t%.1f\t%.1f\t%.1fx%n", round, parse / 1e6, load / 1e6, (double) parse / load);
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
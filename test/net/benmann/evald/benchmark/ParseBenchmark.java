@@ -0,0 +1,53 @@
+package net.benmann.evald.benchmark;
+
+import net.benmann.evald.Evald;
+import net.benmann.evald.Library;
+
+/**
+ * Measures the time taken to parse a single expression with a large number of statements, using an increasing
+ * number of parse threads.
+ *
+ * Arguments: [maxThreads] [statements]
+ *
+ * Run with: ant benchmark -Dbenchmark=ParseBenchmark
+ */
+public class ParseBenchmark {
+    private static final int ROUNDS = 5;
+
+    private static String model(int statements) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            sb.append("s").append(i).append(" = ").append(FootprintBenchmark.expression(1 + i % 24));
+            if (i > 0)
+                sb.append(" + s").append(i - 1);
+            sb.append(";\n");
+        }
+        return sb.toString();
+    }
+
+    private static long parse(String model, int threads) {
+        Evald evald = new Evald(Library.CORE, Library.MATH);
+        evald.setParseThreads(threads);
+        long start = System.nanoTime();
+        evald.parse(model);
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int statements = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        String model = model(statements);
+        System.out.println(statements + " statements, up to " + maxThreads + " threads");
+        System.out.println("threads\tbest ms\tspeedup");
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                best = Math.min(best, parse(model, threads));
+            }
+            if (threads == 1)
+                single = best;
+            System.out.printf("%d\t%.1f\t%.2fx%n", threads, best / 1e6, single / best);
+        }
+    }
+}
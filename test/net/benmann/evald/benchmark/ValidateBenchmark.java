@@ -0,0 +1,75 @@
+package net.benmann.evald.benchmark;
+
+import java.util.Random;
+
+import net.benmann.evald.AbstractEvaldException;
+import net.benmann.evald.Diagnostics;
+import net.benmann.evald.Evald;
+import net.benmann.evald.Library;
+
+/**
+ * Compares the throughput of checking formulas by parsing them, and catching any exception, with
+ * {@link Evald#validate(String, Diagnostics)}. A quarter of the formulas are invalid.
+ *
+ * Run with: ant benchmark -Dbenchmark=ValidateBenchmark
+ */
+public class ValidateBenchmark {
+    private static final int FORMULAS = 10000;
+    private static final int ROUNDS = 10;
+
+    private static String[] formulas() {
+        Random random = new Random(1);
+        String[] formulas = new String[FORMULAS];
+        for (int i = 0; i < FORMULAS; i++) {
+            String formula = FootprintBenchmark.expression(1 + i % 24);
+            if (i % 4 == 3) {
+                //Drop a character, typically unbalancing the braces or leaving an operator without a value
+                int position = random.nextInt(formula.length());
+                formula = formula.substring(0, position) + formula.substring(position + 1) + " *";
+            }
+            formulas[i] = formula;
+        }
+        return formulas;
+    }
+
+    private static long parseAll(String[] formulas) {
+        long start = System.nanoTime();
+        int valid = 0;
+        for (String formula : formulas) {
+            try {
+                new Evald(Library.CORE, Library.MATH).parse(formula);
+                valid++;
+            } catch (AbstractEvaldException e) {
+                //invalid
+            }
+        }
+        if (valid == formulas.length)
+            throw new IllegalStateException("Expected invalid formulas");
+        return System.nanoTime() - start;
+    }
+
+    private static long validateAll(String[] formulas) {
+        Evald evald = new Evald(Library.CORE, Library.MATH);
+        Diagnostics diagnostics = new Diagnostics();
+        long start = System.nanoTime();
+        int valid = 0;
+        for (String formula : formulas) {
+            if (evald.validate(formula, diagnostics))
+                valid++;
+        }
+        if (valid == formulas.length)
+            throw new IllegalStateException("Expected invalid formulas");
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        String[] formulas = formulas();
+        System.out.println(FORMULAS + " formulas");
+        System.out.println("round\tparse/s\tvalidate/s\tspeedup");
+        for (int round = 1; round <= ROUNDS; round++) {
+            long parse = parseAll(formulas);
+            long validate = validateAll(formulas);
+            System.out.printf("%d\t%.0f\t%.0f\t%.1fx%n", round, FORMULAS * 1e9 / parse, FORMULAS * 1e9 / validate, (double) parse / validate);
+        }
+    }
+}
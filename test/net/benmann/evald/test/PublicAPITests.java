@@ -3,6 +3,13 @@ package net.benmann.evald.test;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandles;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -12,6 +19,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import net.benmann.evald.AbstractEvaldException;
+import net.benmann.evald.AbstractEvaldException.BudgetExceededEvaldException;
+import net.benmann.evald.AbstractEvaldException.BudgetExceededEvaldException.Budget;
 import net.benmann.evald.AbstractEvaldException.EmptyExpressionEvaldException;
 import net.benmann.evald.AbstractEvaldException.EvaldException;
 import net.benmann.evald.AbstractEvaldException.InvalidTokenEvaldException;
@@ -19,12 +29,19 @@ import net.benmann.evald.AbstractEvaldException.OperatorExpectedEvaldException;
 import net.benmann.evald.AbstractEvaldException.UndeclaredVariableEvaldException;
 import net.benmann.evald.AbstractEvaldException.UninitialisedEvaldException;
 import net.benmann.evald.AbstractEvaldException.UnknownMethodEvaldException;
+import net.benmann.evald.ArgFunction;
 import net.benmann.evald.ArgFunction.ImpureNArgFunction;
 import net.benmann.evald.ArgFunction.NArgFunction;
 import net.benmann.evald.ArgFunction.OneArgFunction;
 import net.benmann.evald.ArgFunction.TwoArgFunction;
+import net.benmann.evald.Diagnostics;
 import net.benmann.evald.Evald;
+import net.benmann.evald.InputBinder;
 import net.benmann.evald.Library;
+import net.benmann.evald.OutputPlan;
+import net.benmann.evald.ProgramHolder;
+import net.benmann.evald.Recorder;
+import net.benmann.evald.Replayer;
 
 public class PublicAPITests {
     static final double DEFAULT_PRECISION = 0.00001;
@@ -519,6 +536,15 @@ public class PublicAPITests {
         assertEquals(2 * (a + (b - (c / (d + 4)) / 7) * (5 + (((6))))) / 3, evald.evaluate(), DEFAULT_PRECISION);
     }
 
+    @Test public void testCollapsedBraces() {
+        Evald evald = new Evald();
+        evald.addVariable("b", 3);
+        evald.parse("(0 + b) ^ 2");
+        assertEquals(9.0, evald.evaluate(), DEFAULT_PRECISION);
+        evald.parse("2 * (b * 1) + 1");
+        assertEquals(7.0, evald.evaluate(), DEFAULT_PRECISION);
+    }
+
     @Test public void testPositive() {
         Evald evald = new Evald();
         evald.parse("+a * b + +c");
@@ -1017,6 +1043,189 @@ public class PublicAPITests {
         assertEquals(6, evald.getVariableValue("b"), DEFAULT_PRECISION);
     }
 
+    @Test public void testOutputPlan() {
+        Evald evald = new Evald();
+        evald.addVariable("a", 3);
+        evald.parse("x = a * 2; y = a + 1; out1 = x * y; out2 = y / 2");
+        OutputPlan plan1 = evald.createOutputPlan("out1");
+        OutputPlan plan2 = evald.createOutputPlan("out2");
+        assertEquals(3, plan1.getStatementCount());
+        assertEquals(2, plan2.getStatementCount());
+        evald.enableOutputs("x");
+        assertEquals(24, evald.evaluate(plan1), DEFAULT_PRECISION);
+        assertEquals(2, evald.evaluate(plan2), DEFAULT_PRECISION);
+        //The enabled outputs are unchanged
+        assertEquals(6, evald.evaluate(), DEFAULT_PRECISION);
+
+        //Once the compile threshold is reached, a plan is evaluated in its compiled form
+        evald.setCompileThreshold(2);
+        evald.setVariable(evald.getVariableIndex("a"), 4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(40, evald.evaluate(plan1), DEFAULT_PRECISION);
+            assertEquals(40, evald.getVariableValue("out1"), DEFAULT_PRECISION);
+        }
+        evald.setReuseIntermediateSlots(true);
+        evald.setVariable(evald.getVariableIndex("a"), 1);
+        assertEquals(4, evald.evaluate(plan1), DEFAULT_PRECISION);
+        assertEquals(1, evald.evaluate(plan2), DEFAULT_PRECISION);
+        evald.setReuseIntermediateSlots(false);
+        evald.setCompileThreshold(-1);
+
+        //A frame evaluates the plan without using the instance, starting from the values when the plan was created
+        double[] frame = plan1.newFrame();
+        assertEquals(24, plan1.evaluate(frame), DEFAULT_PRECISION);
+        frame[evald.getVariableIndex("a")] = 2;
+        assertEquals(12, plan1.evaluate(frame), DEFAULT_PRECISION);
+        assertEquals(12, frame[evald.getVariableIndex("out1")], DEFAULT_PRECISION);
+        assertEquals(4, evald.getVariableValue("out1"), DEFAULT_PRECISION);
+
+        //Only the plan's statements are parsed when parsing lazily
+        evald.setLazyParsing(true);
+        evald.parse("x = a * 2; y = a + 1; out1 = x * y; out2 = y / 2; bad = (");
+        plan2 = evald.createOutputPlan("out2");
+        evald.setVariable(evald.getVariableIndex("a"), 5);
+        assertEquals(3, evald.evaluate(plan2), DEFAULT_PRECISION);
+
+        //A plan is invalidated by parsing, and can't be used with another instance
+        try {
+            evald.evaluate(plan1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new Evald().evaluate(plan2);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        //Compacting the variables changes their indices, so also invalidates plans
+        plan2 = evald.createOutputPlan("out2");
+        evald.compactVariables();
+        try {
+            evald.evaluate(plan2);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test public void testBindInputsAndOutputs() {
+        Evald evald = new Evald();
+        evald.setReuseIntermediateSlots(true);
+        evald.parse("x = a + b; y = x * 2; z = y - a; out = z / b");
+        evald.bindInputs(evald.getVariableIndex("b"), evald.getVariableIndex("a"));
+        evald.bindOutputs(evald.getVariableIndex("out"), evald.getVariableIndex("y"));
+        double[] outputs = new double[2];
+        assertEquals(3.5, evald.evaluate(new double[] { 2, 3 }, outputs), DEFAULT_PRECISION);
+        assertEquals(3.5, outputs[0], DEFAULT_PRECISION);
+        assertEquals(10, outputs[1], DEFAULT_PRECISION);
+        assertEquals(3, evald.getVariableValue("a"), DEFAULT_PRECISION);
+
+        //Bound variables are kept and remapped when compacting
+        evald.parse("y = a * b; out = y + 1");
+        evald.compactVariables();
+        assertEquals(7, evald.evaluate(new double[] { 2, 3 }, outputs), DEFAULT_PRECISION);
+        assertEquals(7, outputs[0], DEFAULT_PRECISION);
+        assertEquals(6, outputs[1], DEFAULT_PRECISION);
+
+        try {
+            evald.bindInputs(100);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+
+    public static class Quote {
+        public double bid = 99;
+        public int size = 10;
+        public static double venue = 5;
+
+        public double getAsk() {
+            return 101;
+        }
+
+        public long spread() {
+            return 2;
+        }
+    }
+
+    static class PrivateQuote {
+        double bid() {
+            return 50;
+        }
+    }
+
+    @Test public void testInputBinder() {
+        Evald evald = new Evald();
+        evald.parse("(bid + ask) / 2 * size + spread + venue");
+        InputBinder<Quote> binder = new InputBinder<Quote>(evald, Quote.class);
+        //Static members aren't bound
+        assertArrayEquals(binder.getUnboundInputs(), "venue");
+        evald.addVariable("venue", 3);
+        assertEquals(1005, binder.evaluate(new Quote()), DEFAULT_PRECISION);
+        Quote quote = new Quote();
+        quote.size = 1;
+        assertEquals(105, binder.evaluate(quote), DEFAULT_PRECISION);
+
+        //A class which isn't public is only accessible with the caller's lookup
+        evald.parse("bid * 2");
+        assertArrayEquals(new InputBinder<PrivateQuote>(evald, PrivateQuote.class).getUnboundInputs(), "bid");
+        InputBinder<PrivateQuote> lookupBinder = new InputBinder<PrivateQuote>(evald, PrivateQuote.class, MethodHandles.lookup());
+        assertEquals(0, lookupBinder.getUnboundInputs().length);
+        assertEquals(100, lookupBinder.evaluate(new PrivateQuote()), DEFAULT_PRECISION);
+    }
+
+    @Test public void testProgramHolder() throws IOException, InterruptedException {
+        ProgramHolder holder = new ProgramHolder(new ProgramHolder.Factory() {
+            @Override public Evald create() {
+                return new Evald(Library.ALL);
+            }
+        }, "x = a * 2; y = x + b");
+        Evald first = holder.get();
+        first.addVariable("a", 3);
+        first.addVariable("b", 1);
+        assertEquals(7, first.evaluate(), DEFAULT_PRECISION);
+
+        //The new version keeps the values of the variables it still uses, and the old one is unchanged
+        holder.update("y = a - c");
+        assertEquals(2, holder.getVersion());
+        ProgramHolder.Snapshot snapshot = holder.current();
+        assertEquals(2, snapshot.getVersion());
+        Evald second = snapshot.get();
+        assertSame(second, holder.get());
+        assertEquals(3, second.evaluate(), DEFAULT_PRECISION);
+        assertEquals(7, first.evaluate(), DEFAULT_PRECISION);
+
+        try {
+            holder.update("y = (");
+            fail();
+        } catch (AbstractEvaldException e) {
+        }
+        assertSame(snapshot, holder.current());
+
+        Path directory = Files.createTempDirectory("evald");
+        Path file = directory.resolve("formulas.txt");
+        Closeable watch = holder.watch(file);
+        try {
+            Files.write(file, "y = a * 10".getBytes("UTF-8"));
+            long deadline = System.currentTimeMillis() + 20000;
+            //The file may be seen part written, which can't be parsed or gives a different result
+            while (holder.get().evaluate() != 30 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(30, holder.get().evaluate(), DEFAULT_PRECISION);
+
+            //Once closed, changes to the file are ignored
+            watch.close();
+            Files.write(file, "y = a * 100".getBytes("UTF-8"));
+            Thread.sleep(500);
+            assertEquals(30, holder.get().evaluate(), DEFAULT_PRECISION);
+        } finally {
+            watch.close();
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
     @Test public void testAddManyVariables() {
         Evald evald = new Evald();
         evald.parse("aa+bb");
@@ -1043,4 +1252,416 @@ public class PublicAPITests {
             assertTrue(e.getMessage().contains("abc"));
         }
     }
+
+    @Test public void testRecordReplay() throws IOException {
+        Path file = Files.createTempFile("evald", ".rec");
+        try {
+            Evald evald = new Evald(Library.ALL);
+            int a = evald.addVariable("a", 2);
+            try (Recorder recorder = new Recorder(file)) {
+                evald.setRecorder(recorder);
+                evald.parse("x = a * b; y = x + c; z = sqrt(a)");
+                int b = evald.getVariableIndex("b");
+                int c = evald.getVariableIndex("c");
+                evald.enableOutputs("y");
+                for (int i = 0; i < 100; i++) {
+                    evald.setVariable(b, i);
+                    evald.setVariable(c, i * 0.5f);
+                    evald.evaluate();
+                }
+                evald.parse("a / d");
+                evald.addVariable("d", 4);
+                assertEquals(0.5, evald.evaluate(), DEFAULT_PRECISION);
+                evald.setRecorder(null);
+                evald.setVariable(a, 1);
+                evald.evaluate();
+            }
+
+            //Declare variables in a different order, so indices differ from the recording
+            Evald replay = new Evald(Library.ALL);
+            replay.addVariable("d");
+            replay.addVariable("c");
+            replay.setOptimisation(false);
+            Replayer.Report report = Replayer.replay(file, replay);
+            assertEquals(2, report.getParses());
+            assertEquals(101, report.getEvaluations());
+            assertEquals(0, report.getMismatches());
+            assertTrue(report.getLatencyPercentile(50) <= report.getLatencyPercentile(99));
+            assertTrue(report.getLatencyPercentile(99) <= report.getMaxLatency());
+            assertEquals(report.getChecksum(), Replayer.replay(file, new Evald(Library.ALL)).getChecksum());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void testRecordLargeScript() throws IOException {
+        //A script, and its variables, larger than the recording buffer, attached before anything is parsed
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            script.append("x").append(i).append(" = a * b").append(i).append(";\n");
+        }
+        script.append("out = x9999 + 1");
+        assertTrue(script.length() > 64 * 1024);
+        Path file = Files.createTempFile("evald", ".rec");
+        try {
+            Evald evald = new Evald();
+            assertEquals(0, evald.listAllVariables().length);
+            try (Recorder recorder = new Recorder(file)) {
+                evald.setRecorder(recorder);
+                evald.parse(script.toString());
+                evald.addVariable("a", 2);
+                evald.addVariable("b9999", 3);
+                assertEquals(7, evald.evaluate(), 0);
+                evald.setRecorder(null);
+            }
+            Replayer.Report report = Replayer.replay(file, new Evald());
+            assertEquals(1, report.getParses());
+            assertEquals(1, report.getEvaluations());
+            assertEquals(0, report.getMismatches());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void testRecordInputsReadInPlace() throws IOException {
+        Path file = Files.createTempFile("evald", ".rec");
+        try {
+            Evald evald = new Evald();
+            double[] inputs = { 2, 3 };
+            try (Recorder recorder = new Recorder(file)) {
+                evald.setRecorder(recorder);
+                evald.parse("out = a * b + c");
+                evald.bindInputs(inputs, evald.getVariableIndex("a"), evald.getVariableIndex("b"));
+                evald.setVariable(evald.getVariableIndex("c"), 1);
+                assertEquals(7, evald.evaluate(), 0);
+                inputs[0] = 5;
+                assertEquals(16, evald.evaluate(), 0);
+                inputs[1] = -1;
+                assertEquals(-4, evald.evaluate(), 0);
+                evald.setRecorder(null);
+            }
+            inputs[1] = 2;
+            assertEquals(11, evald.evaluate(), 0);
+            Replayer.Report report = Replayer.replay(file, new Evald());
+            assertEquals(3, report.getEvaluations());
+            assertEquals(0, report.getMismatches());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void testCompactVariables() throws IOException {
+        Evald evald = new Evald(Library.ALL);
+        int a = evald.addVariable("a", 2);
+        for (int formula = 0; formula < 1000; formula++) {
+            evald.parse("x" + formula + " = a * b" + formula + "; y = x" + formula + " + c" + formula);
+        }
+        assertEquals(3002, evald.listAllVariables().length);
+        evald.setVariable(evald.getVariableIndex("b999"), 3);
+        int y = evald.getVariableIndex("y");
+        int b0 = evald.getVariableIndex("b0");
+
+        int[] remap = evald.compactVariables();
+        assertEquals(3002, remap.length);
+        assertArrayEquals(new String[] { "a", "y", "x999", "b999", "c999" }, evald.listAllVariables());
+        assertEquals(0, remap[a]);
+        assertEquals(1, remap[y]);
+        assertEquals(-1, remap[b0]);
+        assertEquals(3, evald.getVariableValue("b999"), 0);
+        evald.setVariable(evald.getVariableIndex("c999"), 1);
+        assertEquals(7, evald.evaluate(), 0);
+        assertEquals(7, evald.getVariableValue(remap[y]), 0);
+        try {
+            evald.getVariableIndex("b0");
+            fail();
+        } catch (UndeclaredVariableEvaldException e) {
+            //expected
+        }
+
+        //Enabled outputs, and variables added by the caller, are kept
+        evald.addVariable("unused", 5);
+        evald.parse("p = a + 1; q = p * 2; r = a - 1");
+        evald.enableOutputs("q");
+        remap = evald.compactVariables();
+        assertArrayEquals(new String[] { "a", "unused", "p", "q", "r" }, evald.listAllVariables());
+        assertEquals(6, evald.evaluate(), 0);
+        assertEquals(5, evald.getVariableValue("unused"), 0);
+
+        //A recording remains valid across compaction
+        Path file = Files.createTempFile("evald", ".rec");
+        try {
+            try (Recorder recorder = new Recorder(file)) {
+                evald.setRecorder(recorder);
+                evald.parse("m = a * n");
+                evald.addVariable("n", 3);
+                evald.evaluate();
+                evald.compactVariables();
+                evald.setVariable(evald.getVariableIndex("n"), 4);
+                assertEquals(8, evald.evaluate(), 0);
+                evald.setRecorder(null);
+            }
+            Replayer.Report report = Replayer.replay(file, new Evald(Library.ALL));
+            assertEquals(2, report.getEvaluations());
+            assertEquals(0, report.getMismatches());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void testLazyParsing() {
+        String script = "x = a * 2; y = x + b; broken = (((; z = sqrt(c)";
+        Evald eager = new Evald(Library.ALL);
+        try {
+            eager.parse(script);
+            fail();
+        } catch (EvaldException e) {
+            assertTrue(e.getMessage().contains("broken"));
+        }
+
+        Evald evald = new Evald(Library.ALL);
+        evald.setLazyParsing(true);
+        evald.parse(script);
+        evald.enableOutputs("y");
+        evald.setVariable(evald.getVariableIndex("a"), 3);
+        evald.setVariable(evald.getVariableIndex("b"), 1);
+        assertEquals(7, evald.evaluate(), DEFAULT_PRECISION);
+        assertEquals(6, evald.getVariableValue("x"), DEFAULT_PRECISION);
+        assertFalse(Arrays.asList(evald.listAllVariables()).contains("c"));
+
+        evald.enableOutputs("z");
+        evald.setVariable(evald.getVariableIndex("c"), 16);
+        assertEquals(4, evald.evaluate(), DEFAULT_PRECISION);
+
+        evald.enableAllOutputs();
+        try {
+            evald.evaluate();
+            fail();
+        } catch (EvaldException e) {
+            assertTrue(e.getMessage().contains("broken"));
+        }
+    }
+
+    @Test public void testReparse() {
+        Evald evald = new Evald(Library.ALL);
+        evald.parse("x = a * 2; y = x + b; z = sqrt(c)");
+        int a = evald.getVariableIndex("a");
+        int x = evald.getVariableIndex("x");
+        int y = evald.getVariableIndex("y");
+        evald.enableOutputs(y);
+        evald.setVariable(a, 3);
+        evald.setVariable(evald.getVariableIndex("b"), 1);
+        assertEquals(7, evald.evaluate(), DEFAULT_PRECISION);
+
+        //Whitespace changes are ignored, and the enabled outputs are retained
+        evald.reparse("x  =  a * 2;  y = x - b; z = sqrt(c); w = y * d");
+        assertEquals(a, evald.getVariableIndex("a"));
+        assertEquals(x, evald.getVariableIndex("x"));
+        assertEquals(y, evald.getVariableIndex("y"));
+        evald.setVariable(evald.getVariableIndex("d"), 10);
+        assertEquals(5, evald.evaluate(), DEFAULT_PRECISION);
+        assertEquals(0, evald.getVariableValue("w"), DEFAULT_PRECISION);
+
+        //A syntax error leaves the previous expression in use
+        try {
+            evald.reparse("x = a * 2; y = x - ((b");
+            fail();
+        } catch (EvaldException e) {
+            assertTrue(e.getMessage().contains("y = x - ((b"));
+        }
+        evald.enableAllOutputs();
+        assertEquals(50, evald.evaluate(), DEFAULT_PRECISION);
+
+        evald.reparse("y = a - b");
+        assertEquals(2, evald.evaluate(), DEFAULT_PRECISION);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(Arrays.asList(evald.listAllInputs())));
+    }
+
+    /** Parse the expression from a string or a source, and describe the outcome */
+    private static String describeParse(String expression, Readable source) throws IOException {
+        Evald evald = new Evald(Library.ALL);
+        evald.addVariable("declared");
+        try {
+            if (source == null) {
+                evald.parse(expression);
+            } else {
+                evald.parse(source);
+            }
+        } catch (AbstractEvaldException e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage() + Arrays.toString(evald.listAllVariables());
+        }
+        for (String input : evald.listAllInputs()) {
+            evald.setVariable(evald.getVariableIndex(input), input.length());
+        }
+        return Arrays.toString(evald.listAllVariables()) + evald.evaluate();
+    }
+
+    @Test public void testStreamingParse() throws IOException {
+        String[] expressions = { "a + b", "a + bc;", " x = a; y = x * 2;", "; x = a", "x = a;; y = (a", "", "x = ", "2 * (a + b); c", "x = a;\n;\n", "a + b; ", "a + b;;" };
+        for (final String expression : expressions) {
+            String expected = describeParse(expression, null);
+            assertEquals(expression, expected, describeParse(expression, new StringReader(expression)));
+            //A source which returns a single character at a time
+            assertEquals(expression, expected, describeParse(expression, new Readable() {
+                int position;
+
+                @Override public int read(CharBuffer buffer) {
+                    if (position == expression.length())
+                        return -1;
+                    buffer.put(expression.charAt(position++));
+                    return 1;
+                }
+            }));
+        }
+
+        Path file = Files.createTempFile("evald", ".txt");
+        try {
+            Files.write(file, "x = a * 2;\ny = x + b".getBytes("UTF-8"));
+            Evald evald = new Evald(Library.ALL);
+            evald.parse(file);
+            evald.setVariable(evald.getVariableIndex("a"), 3);
+            evald.setVariable(evald.getVariableIndex("b"), 1);
+            assertEquals(7, evald.evaluate(), DEFAULT_PRECISION);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void testValidate() {
+        Evald evald = new Evald(Library.ALL);
+        evald.addVariable("a");
+        Diagnostics diagnostics = new Diagnostics();
+        assertTrue(evald.validate("x = a * 2; y = sqrt(x) + b", diagnostics));
+        assertEquals(Diagnostics.Kind.NONE, diagnostics.getKind());
+
+        assertFalse(evald.validate("x = a * 2; y = hypot(x) + 1", diagnostics));
+        assertEquals(Diagnostics.Kind.TOO_FEW_ARGUMENTS, diagnostics.getKind());
+        assertEquals("hypot", diagnostics.getToken());
+        assertEquals(15, diagnostics.getOffset());
+
+        assertFalse(evald.validate("x = (a + 1", diagnostics));
+        assertEquals(Diagnostics.Kind.MISMATCHED_BRACES, diagnostics.getKind());
+        assertFalse(evald.validate("a +", diagnostics));
+        assertEquals(Diagnostics.Kind.MISSING_VALUE, diagnostics.getKind());
+        assertEquals("+", diagnostics.getToken());
+        assertFalse(evald.validate("x = a; b", diagnostics));
+        assertEquals(Diagnostics.Kind.EXPECTED_ASSIGNMENT, diagnostics.getKind());
+        assertEquals("b", diagnostics.getToken());
+
+        //Undeclared variables are only reported if they aren't allowed, and outputs of earlier statements are declared
+        evald.setAllowUndeclared(false);
+        assertTrue(evald.validate("x = a * 2; y = x + a", diagnostics));
+        assertFalse(evald.validate("x = a * 2; y = x + b", diagnostics));
+        assertEquals(Diagnostics.Kind.UNDECLARED_VARIABLE, diagnostics.getKind());
+        assertEquals("b", diagnostics.getToken());
+        //A syntax error is reported in preference to an earlier undeclared variable
+        assertEquals(Diagnostics.Kind.EMPTY_BRACES, evald.validate("x = b; y = ()").getKind());
+
+        //Validation declares nothing
+        assertArrayEquals(new String[] { "a" }, evald.listAllVariables());
+    }
+
+    private static BudgetExceededEvaldException.Budget exceeded(Evald evald, String expression) {
+        try {
+            evald.parse(expression);
+        } catch (BudgetExceededEvaldException e) {
+            return e.getBudget();
+        }
+        fail(expression);
+        return null;
+    }
+
+    private static String repeat(String prefix, String body, String suffix, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(prefix);
+        }
+        sb.append(body);
+        for (int i = 0; i < count; i++) {
+            sb.append(suffix);
+        }
+        return sb.toString();
+    }
+
+    @Test public void testBudgets() throws IOException {
+        Evald evald = new Evald(Library.ALL);
+        evald.setMaxSourceLength(20);
+        assertEquals(Budget.SOURCE_LENGTH, exceeded(evald, "x = a + b + c + d + e"));
+        try {
+            evald.parse(new StringReader("x = a + b + c + d + e"));
+            fail();
+        } catch (BudgetExceededEvaldException e) {
+            assertEquals(Budget.SOURCE_LENGTH, e.getBudget());
+        }
+        evald.setMaxSourceLength(-1);
+
+        evald.setMaxStatements(2);
+        evald.parse("x = a; y = b");
+        assertEquals(Budget.STATEMENTS, exceeded(evald, "x = a; y = b; z = c"));
+        evald.setMaxStatements(-1);
+
+        //Deep nesting and long chains are rejected without exhausting the stack
+        evald.setMaxDepth(50);
+        evald.parse(repeat("(", "a", ")", 49));
+        assertEquals(Budget.DEPTH, exceeded(evald, repeat("(", "a", ")", 10000)));
+        assertEquals(Budget.DEPTH, exceeded(evald, repeat("sin(", "a", ")", 10000)));
+        assertEquals(Budget.DEPTH, exceeded(evald, "a" + repeat(" < a", "", "", 10000)));
+        //Long chains of additions are folded into a single node
+        evald.parse("a" + repeat(" + a", "", "", 10000));
+        evald.setMaxDepth(-1);
+
+        //Nodes are counted before constants are collapsed, and cost after
+        String constants = "1" + repeat(" + 1", "", "", 99);
+        evald.setMaxNodes(100);
+        assertEquals(Budget.NODES, exceeded(evald, "x = " + constants + "; y = a"));
+        evald.setMaxNodes(-1);
+        evald.setMaxCost(2.5);
+        evald.parse("x = " + constants + "; y = a + b");
+        assertEquals(Budget.COST, exceeded(evald, "x = " + constants + "; y = a + b; z = x"));
+        assertEquals(Budget.COST, exceeded(evald, "a * b + c"));
+
+        //A rejected edit leaves the previous expression in use
+        evald.parse("x = a + b");
+        try {
+            evald.reparse("x = a + b; y = x * 2");
+            fail();
+        } catch (BudgetExceededEvaldException e) {
+            assertEquals(Budget.COST, e.getBudget());
+        }
+        evald.setVariable(evald.getVariableIndex("a"), 1);
+        evald.setVariable(evald.getVariableIndex("b"), 2);
+        assertEquals(3.0, evald.evaluate(), 0);
+    }
+
+    @Test public void testEstimateCost() {
+        Evald evald = new Evald(Library.ALL);
+        evald.parse("a + b");
+        assertEquals(2.0, evald.estimateCost(), 0);
+        //Constants are collapsed before the cost is estimated
+        evald.parse("a + 2 * 3");
+        assertEquals(1.75, evald.estimateCost(), 0);
+        evald.parse("sin(a)");
+        double sin = evald.estimateCost();
+        assertTrue(sin > 10);
+        //The condition, and half of each branch
+        evald.parse("if(a, sin(a), b)");
+        assertEquals(1 + 0.5 + sin / 2 + 0.5 / 2, evald.estimateCost(), 0);
+
+        OneArgFunction expensive = new OneArgFunction("expensive") {
+            @Override protected double get(double value) {
+                return value;
+            }
+        };
+        evald.addUserFunction(expensive);
+        evald.parse("expensive(a)");
+        double defaultCost = evald.estimateCost();
+        expensive.setCost(1000);
+        evald.parse("expensive(a)");
+        assertEquals(defaultCost + 1000 - ArgFunction.DEFAULT_COST, evald.estimateCost(), 0);
+
+        //Only enabled outputs are included
+        evald.parse("x = a + b; y = sin(a); z = x * 2");
+        double all = evald.estimateCost();
+        evald.enableOutputs("z");
+        assertEquals(all - sin, evald.estimateCost(), 1e-9);
+    }
 }